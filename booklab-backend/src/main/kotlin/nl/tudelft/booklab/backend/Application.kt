@@ -17,9 +17,11 @@
 package nl.tudelft.booklab.backend
 
 import com.fasterxml.jackson.annotation.JsonInclude
+import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.databind.SerializationFeature
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer
 import com.fasterxml.jackson.databind.module.SimpleModule
+import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import io.ktor.application.Application
 import io.ktor.application.install
 import io.ktor.auth.Authentication
@@ -29,13 +31,15 @@ import io.ktor.features.Compression
 import io.ktor.features.ContentNegotiation
 import io.ktor.features.DefaultHeaders
 import io.ktor.features.DataConversion
+import io.ktor.http.ContentType
 import io.ktor.http.HttpHeaders
 import io.ktor.http.HttpMethod
-import io.ktor.jackson.jackson
+import io.ktor.jackson.JacksonConverter
 import io.ktor.locations.Locations
 import io.ktor.routing.Routing
 import io.ktor.routing.route
 import io.ktor.routing.routing
+import io.ktor.util.AttributeKey
 import nl.tudelft.booklab.backend.api.v1.api
 import nl.tudelft.booklab.backend.ktor.Routes
 import nl.tudelft.booklab.backend.ktor.TypedConversionService
@@ -50,7 +54,7 @@ fun Application.booklab() {
     install(DefaultHeaders)
     install(Compression)
     install(ContentNegotiation) {
-        jackson {
+        val mapper = jacksonObjectMapper().apply {
             configure(SerializationFeature.INDENT_OUTPUT, true)
             setSerializationInclusion(JsonInclude.Include.NON_NULL)
             registerModule(SimpleModule().apply {
@@ -63,6 +67,8 @@ fun Application.booklab() {
                 }
             })
         }
+        attributes.put(ObjectMapperKey, mapper)
+        register(ContentType.Application.Json, JacksonConverter(mapper))
     }
     install(Authentication) {
         oauth(inject<BooklabOAuthServer>())
@@ -92,6 +98,16 @@ fun Application.booklab() {
     }
 }
 
+/**
+ * The key of the attribute that holds the [ObjectMapper] with which the application serializes its responses.
+ */
+private val ObjectMapperKey = AttributeKey<ObjectMapper>("ObjectMapper")
+
+/**
+ * Retrieve the [ObjectMapper] with which the application serializes its responses.
+ */
+val Application.mapper: ObjectMapper get() = attributes[ObjectMapperKey]
+
 /**
  * Retrieve the base url of the server.
  */
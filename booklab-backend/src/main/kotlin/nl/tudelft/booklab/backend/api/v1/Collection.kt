@@ -261,7 +261,7 @@ internal fun Route.collectionResource() {
  * @return The list of books that has been parsed.
  */
 internal suspend fun parseBooks(bookService: CatalogueService, books: List<String>): Map<String, Book?> =
-    books.map { it to bookService.findById(it) }.toMap()
+    bookService.findByIds(books)
 
 /**
  * The route to a collection.
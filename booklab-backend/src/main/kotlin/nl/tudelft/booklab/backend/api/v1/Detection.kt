@@ -16,21 +16,35 @@
 
 package nl.tudelft.booklab.backend.api.v1
 
+import com.fasterxml.jackson.databind.SerializationFeature
+import io.ktor.application.ApplicationCall
 import io.ktor.application.application
 import io.ktor.application.call
 import io.ktor.application.log
+import io.ktor.auth.oauth2.AccessToken
+import io.ktor.auth.oauth2.repository.ClientIdPrincipal
 import io.ktor.auth.oauth2.scoped
+import io.ktor.auth.principal
+import io.ktor.http.ContentType
 import io.ktor.http.HttpHeaders
 import io.ktor.http.HttpStatusCode
+import io.ktor.pipeline.PipelineContext
 import io.ktor.request.header
 import io.ktor.request.receiveStream
 import io.ktor.response.respond
+import io.ktor.response.respondWrite
 import io.ktor.routing.Route
 import io.ktor.routing.application
 import io.ktor.routing.post
+import io.ktor.routing.route
+import nl.tudelft.booklab.backend.mapper
+import nl.tudelft.booklab.backend.services.user.User
+import nl.tudelft.booklab.backend.services.vision.BookDetection
 import nl.tudelft.booklab.backend.services.vision.VisionService
 import nl.tudelft.booklab.backend.spring.inject
+import nl.tudelft.booklab.vision.ImageTooLargeException
 import nl.tudelft.booklab.vision.toMat
+import org.opencv.core.Mat
 
 /**
  * Define vision endpoints at the current route for the REST api.
@@ -40,15 +54,33 @@ fun Route.detection() {
     scoped("detection") { detect(vision) }
 }
 
+/**
+ * The content type of a stream of newline-delimited JSON documents.
+ */
+internal val NewlineDelimitedJson = ContentType("application", "x-ndjson")
+
+/**
+ * The owner to which the cached detections of this call are scoped: the user on whose behalf the call is made or
+ * otherwise the client that makes the call.
+ */
+internal val ApplicationCall.owner: String?
+    get() = principal<AccessToken<ClientIdPrincipal, User>>()?.let { token ->
+        token.user?.let { "user:${it.id}" } ?: "client:${token.client.id}"
+    }
+
 /**
  * Define the endpoint for detecting a books based on an image.
  */
 internal fun Route.detect(vision: VisionService) {
+    route("/stream") { detectStream(vision) }
+
     post {
-        val size = call.request.header(HttpHeaders.ContentLength)?.toIntOrNull() ?: DEFAULT_BUFFER_SIZE
         val response = try {
-            val image = call.receiveStream().use { it.toMat(size) }
-            vision.detect(image)
+            val image = receiveImage(vision)
+            vision.detect(image, call.owner)
+        } catch (e: ImageTooLargeException) {
+            call.respond(HttpStatusCode.PayloadTooLarge, PayloadTooLarge(e.message))
+            return@post
         } catch (e: Throwable) {
             application.log.warn("An error occurred while processing an image", e)
             call.respond(
@@ -63,3 +95,83 @@ internal fun Route.detect(vision: VisionService) {
 
     handle { call.respond(HttpStatusCode.MethodNotAllowed, MethodNotAllowed()) }
 }
+
+/**
+ * Define the endpoint for detecting books based on an image, which streams each detection as soon as it has been
+ * matched against the catalogue.
+ *
+ * The response consists of newline-delimited JSON documents: each detection is sent as a separate response and the
+ * stream is terminated by a summary response without data that carries the `count` meta information. If an error
+ * occurs after the stream has started, the stream is terminated by an error response instead. If the client goes away,
+ * the stream is aborted without either response and the remaining work for the image is cancelled.
+ */
+internal fun Route.detectStream(vision: VisionService) {
+    post {
+        val detections = try {
+            vision.stream(receiveImage(vision), call.owner)
+        } catch (e: ImageTooLargeException) {
+            call.respond(HttpStatusCode.PayloadTooLarge, PayloadTooLarge(e.message))
+            return@post
+        } catch (e: Throwable) {
+            application.log.warn("An error occurred while processing an image", e)
+            call.respond(
+                HttpStatusCode.InternalServerError,
+                ServerError("An error occurred while processing the image.")
+            )
+            return@post
+        }
+
+        // The documents in the stream must not contain any newlines
+        val mapper = application.mapper.writer().without(SerializationFeature.INDENT_OUTPUT)
+        val summary = Success<BookDetection?>(null)
+        call.respondWrite(NewlineDelimitedJson) {
+            var count = 0
+            var writing = false
+            try {
+                val last = try {
+                    for (detection in detections) {
+                        writing = true
+                        write(mapper.writeValueAsString(ApiResponse.Success(detection)))
+                        write("\n")
+                        flush()
+                        writing = false
+                        count++
+                    }
+                    summary.copy(meta = mapOf("count" to count))
+                } catch (e: Throwable) {
+                    if (writing) {
+                        // The client has gone away, so there is no one left to send the trailer to
+                        application.log.debug("Failed to write detection to the stream", e)
+                        return@respondWrite
+                    }
+
+                    application.log.warn("An error occurred while processing an image", e)
+                    ServerError("An error occurred while processing the image.", meta = mapOf("count" to count))
+                }
+
+                write(mapper.writeValueAsString(last))
+                write("\n")
+            } finally {
+                // Stop the pipeline for this image if the stream is aborted
+                detections.cancel()
+            }
+        }
+    }
+
+    handle { call.respond(HttpStatusCode.MethodNotAllowed, MethodNotAllowed()) }
+}
+
+/**
+ * Receive the image sent in the body of the request as OpenCV matrix.
+ *
+ * The `Content-Length` of the request is only used as hint for the size of the buffer to read the image into, the
+ * actual size of the image is enforced while reading.
+ *
+ * @param vision The vision service that provides the buffers to read the image into.
+ * @throws ImageTooLargeException if the image exceeds the maximum size that is accepted.
+ */
+private suspend fun PipelineContext<Unit, ApplicationCall>.receiveImage(vision: VisionService): Mat {
+    val pool = vision.images
+    val size = call.request.header(HttpHeaders.ContentLength)?.toIntOrNull() ?: pool.initialCapacity
+    return call.receiveStream().use { it.toMat(pool, size) }
+}
@@ -17,7 +17,9 @@
 package nl.tudelft.booklab.backend.api.v1
 
 import io.ktor.application.call
+import io.ktor.auth.authenticate
 import io.ktor.auth.oauth2.oauthTokenEndpoint
+import io.ktor.auth.oauth2.scoped
 import io.ktor.http.HttpStatusCode
 import io.ktor.response.respond
 import io.ktor.routing.Route
@@ -25,15 +27,53 @@ import io.ktor.routing.application
 import io.ktor.routing.get
 import io.ktor.routing.route
 import nl.tudelft.booklab.backend.services.auth.BooklabOAuthServer
+import nl.tudelft.booklab.backend.services.health.MetricsSource
+import nl.tudelft.booklab.backend.services.health.ReadinessCheck
 import nl.tudelft.booklab.backend.spring.inject
+import nl.tudelft.booklab.backend.spring.injectAll
 
 /**
  * Define meta endpoints at the current route for the REST api.
  */
 fun Route.meta() {
     route("/auth") { auth() }
-    route("/health") {
-        get { call.respond(Success(HealthCheck(true))) }
+    route("/health") { health() }
+    authenticate {
+        route("/metrics") { metrics() }
+    }
+}
+
+/**
+ * Define the health endpoint at the current route of the REST api, which reports the server as unavailable until all
+ * [ReadinessCheck] components are ready (e.g. have been warmed up).
+ */
+internal fun Route.health() {
+    val checks: List<ReadinessCheck> = application.injectAll()
+
+    get {
+        if (checks.all { it.isReady }) {
+            call.respond(Success(HealthCheck(true)))
+        } else {
+            call.respond(HttpStatusCode.ServiceUnavailable, NotReady("The server is still warming up."))
+        }
+    }
+    handle { call.respond(HttpStatusCode.MethodNotAllowed, MethodNotAllowed()) }
+}
+
+/**
+ * Define the metrics endpoint at the current route of the REST api, which reports a snapshot of the statistics of all
+ * [MetricsSource] components (e.g. the caches, the detection pipeline and the outbound HTTP client). Since these
+ * statistics reveal the load and usage of the server, the endpoint requires the `metrics` scope.
+ */
+internal fun Route.metrics() {
+    val sources: List<MetricsSource> = application.injectAll()
+
+    scoped("metrics") {
+        get {
+            val metrics = sortedMapOf<String, Any>()
+            sources.forEach { metrics.putAll(it.metrics()) }
+            call.respond(Success(metrics))
+        }
         handle { call.respond(HttpStatusCode.MethodNotAllowed, MethodNotAllowed()) }
     }
 }
@@ -159,6 +159,24 @@ fun ResourceAlreadyExists(
     )
 }
 
+/**
+ * Indicate to the client that the server is not yet ready to handle requests.
+ *
+ * @param detail A human-readable explanation specific to this occurrence of the problem. Like title, this
+ * field’s value can be localized.
+ * @param meta A meta object containing non-standard meta-information about the error.
+ */
+fun NotReady(
+    detail: String? = null,
+    meta: Map<String, Any> = emptyMap()
+): ApiResponse.Failure {
+    val error = ApiError(code = "not_ready", title = "The server is not ready to handle requests yet", detail = detail)
+    return ApiResponse.Failure(
+        error = error,
+        meta = meta
+    )
+}
+
 /**
  * Indicate to the client that it accesses a resource it is not allowed to.
  *
@@ -194,3 +212,21 @@ fun NotFound(
         meta = meta
     )
 }
+
+/**
+ * Indicate to the client that the payload of the request exceeds the limits of the server.
+ *
+ * @param detail A human-readable explanation specific to this occurrence of the problem. Like title, this
+ * field’s value can be localized.
+ * @param meta A meta object containing non-standard meta-information about the error.
+ */
+fun PayloadTooLarge(
+    detail: String? = null,
+    meta: Map<String, Any> = emptyMap()
+): ApiResponse.Failure {
+    val error = ApiError(code = "payload_too_large", title = "The payload of the request is too large", detail = detail)
+    return ApiResponse.Failure(
+        error = error,
+        meta = meta
+    )
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.catalogue
+
+import kotlinx.coroutines.experimental.channels.ReceiveChannel
+import kotlinx.coroutines.experimental.withContext
+import nl.tudelft.booklab.backend.services.health.MetricsSource
+import nl.tudelft.booklab.catalogue.CatalogueClient
+import org.springframework.dao.DataAccessException
+import java.security.MessageDigest
+import java.time.Clock
+import java.time.Instant
+import java.util.LinkedHashMap
+import java.util.Locale
+import java.util.concurrent.atomic.AtomicLong
+import nl.tudelft.booklab.catalogue.Book as AbstractBook
+
+/**
+ * The configuration of a [CachingCatalogueClient].
+ *
+ * @property maximumSize The maximum amount of lookups that are kept in memory.
+ * @property ttl The time in seconds a non-empty result is kept in memory.
+ * @property negativeTtl The time in seconds an empty result is kept (both in memory and in the database).
+ * @property persistentTtl The time in seconds a non-empty result is kept in the database.
+ * @property persistent A flag to indicate whether results should also be cached in the database.
+ * @property failoverTtl The time in seconds a result that was served by a fallback catalogue (see [Failover]) is kept
+ * in memory. Such results are never persisted.
+ */
+data class CatalogueCacheConfiguration(
+    val maximumSize: Int = 10000,
+    val ttl: Long = 3600,
+    val negativeTtl: Long = 300,
+    val persistentTtl: Long = 7 * 24 * 3600,
+    val persistent: Boolean = true,
+    val failoverTtl: Long = 60
+) {
+    init {
+        require(maximumSize >= 0) { "The maximum size must not be negative" }
+        require(ttl >= 0) { "The time-to-live must not be negative" }
+        require(negativeTtl >= 0) { "The time-to-live of empty results must not be negative" }
+        require(persistentTtl >= 0) { "The time-to-live of persisted results must not be negative" }
+        require(failoverTtl >= 0) { "The time-to-live of failover results must not be negative" }
+    }
+}
+
+/**
+ * A [CatalogueClient] that caches the results of another [CatalogueClient].
+ *
+ * Lookups are keyed by their normalized query and the maximum amount of results. The results are first looked up in
+ * a bounded in-memory LRU cache and afterwards in the database (if enabled), before the delegate client is queried.
+ * Empty results are cached as well, but for a shorter time. Results that the delegate served from a fallback
+ * catalogue are only kept in memory for a short time, so the cache does not outlive the outage of the catalogue.
+ * Expired entries are deleted from the database when they are read, and entries that are never read again are deleted
+ * by [purge], which should be called periodically.
+ *
+ * @property delegate The client to cache the results of.
+ * @property books The repository to resolve the books of persisted results with.
+ * @property entries The repository in which the results are persisted or `null` to only cache in memory.
+ * @property configuration The configuration of the cache.
+ * @property clock The clock to determine the expiration of entries with.
+ */
+class CachingCatalogueClient(
+    private val delegate: CatalogueClient,
+    private val books: CatalogueRepository? = null,
+    private val entries: CatalogueCacheRepository? = null,
+    private val configuration: CatalogueCacheConfiguration = CatalogueCacheConfiguration(),
+    private val clock: Clock = Clock.systemUTC()
+) : CatalogueClient, MetricsSource {
+    /**
+     * The in-memory tier of the cache, ordered from least to most recently accessed.
+     */
+    private val memory = object : LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<String, Entry>): Boolean {
+            val remove = size > configuration.maximumSize
+            if (remove) {
+                evictions.incrementAndGet()
+            }
+            return remove
+        }
+    }
+
+    /**
+     * The amount of lookups that were served from memory.
+     */
+    private val hits = AtomicLong()
+
+    /**
+     * The amount of lookups that were served from the database.
+     */
+    private val persistentHits = AtomicLong()
+
+    /**
+     * The amount of lookups that were served with a cached empty result.
+     */
+    private val negativeHits = AtomicLong()
+
+    /**
+     * The amount of lookups that had to be forwarded to the delegate.
+     */
+    private val misses = AtomicLong()
+
+    /**
+     * The amount of entries that were evicted from memory to respect the maximum size.
+     */
+    private val evictions = AtomicLong()
+
+    /**
+     * The amount of entries that were found to be expired.
+     */
+    private val expirations = AtomicLong()
+
+    override suspend fun find(isbn: String): AbstractBook? =
+        lookup(key("find", isbn.trim())) { listOfNotNull(delegate.find(isbn)) }.firstOrNull()
+
+    override suspend fun findAll(isbns: Collection<String>): Map<String, AbstractBook> {
+        val now = clock.instant()
+        val result = LinkedHashMap<String, AbstractBook>()
+        val keys = isbns.distinct().associate { it to key("find", it.trim()) }
+        val cached = HashMap<String, List<AbstractBook>>()
+        val unresolved = ArrayList<String>()
+        for (key in keys.values) {
+            val books = fromMemory(key, now)
+            if (books == null) {
+                unresolved += key
+            } else {
+                cached[key] = books
+            }
+        }
+
+        // Look up the keys that are not in memory in the database with a single query
+        cached += fromDatabase(unresolved, now)
+
+        val missing = ArrayList<String>()
+        for ((isbn, key) in keys) {
+            val books = cached[key]
+            if (books == null) {
+                missing += isbn
+            } else {
+                if (books.isEmpty()) {
+                    negativeHits.incrementAndGet()
+                }
+                books.firstOrNull()?.let { result[isbn] = it }
+            }
+        }
+
+        if (missing.isEmpty()) {
+            return result
+        }
+
+        // Resolve all misses in a single call to the delegate
+        misses.addAndGet(missing.size.toLong())
+        val failover = Failover()
+        val found = withContext(failover) { delegate.findAll(missing) }
+        for (isbn in missing) {
+            val book = found[isbn]
+            store(key("find", isbn.trim()), listOfNotNull(book), now, failover.occurred)
+            book?.let { result[isbn] = it }
+        }
+        return result
+    }
+
+    override suspend fun query(keywords: String, max: Int): List<AbstractBook> =
+        lookup(key("query", max, keywords.normalizeQuery())) { delegate.query(keywords, max) }
+
+    override suspend fun query(title: String, author: String, max: Int): List<AbstractBook> =
+        lookup(key("title-author", max, title.normalizeQuery(), author.normalizeQuery())) {
+            delegate.query(title, author, max)
+        }
+
+    // Streams are meant for large result sets that would only pollute the cache, so they are not cached
+    override fun stream(keywords: String, max: Int): ReceiveChannel<AbstractBook> = delegate.stream(keywords, max)
+
+    override fun stream(title: String, author: String, max: Int): ReceiveChannel<AbstractBook> =
+        delegate.stream(title, author, max)
+
+    /**
+     * Take a snapshot of the statistics of this cache.
+     */
+    val statistics: CatalogueCacheStatistics
+        get() = CatalogueCacheStatistics(
+            hits.get(),
+            persistentHits.get(),
+            negativeHits.get(),
+            misses.get(),
+            evictions.get(),
+            expirations.get(),
+            synchronized(memory) { memory.size }
+        )
+
+    override fun metrics(): Map<String, Any> = mapOf("catalogue.cache" to statistics)
+
+    /**
+     * Remove all entries from the in-memory tier of the cache.
+     */
+    fun invalidate() {
+        synchronized(memory) { memory.clear() }
+    }
+
+    /**
+     * Delete the expired entries from the database tier of the cache.
+     *
+     * @return The amount of deleted entries.
+     */
+    fun purge(): Long {
+        val entries = entries ?: return 0
+        val now = clock.instant()
+        return try {
+            entries.deleteByBooksIsEmptyAndCreatedAtBefore(now.minusSeconds(configuration.negativeTtl)) +
+                entries.deleteByCreatedAtBefore(now.minusSeconds(configuration.persistentTtl))
+        } catch (e: DataAccessException) {
+            // The database tier is best-effort
+            0
+        }
+    }
+
+    /**
+     * Look up the result for the given key in the cache or load it using the given block.
+     *
+     * @param key The normalized key of the lookup.
+     * @param load The block to load the result with on a miss.
+     * @return The result of the lookup.
+     */
+    private suspend fun lookup(key: String, load: suspend () -> List<AbstractBook>): List<AbstractBook> {
+        val now = clock.instant()
+        val cached = cached(key, now)
+        if (cached != null) {
+            return cached
+        }
+
+        misses.incrementAndGet()
+        val failover = Failover()
+        val result = withContext(failover) { load() }
+        store(key, result, now, failover.occurred)
+        return result
+    }
+
+    /**
+     * Store the given result in the cache, where results that were served by a fallback catalogue are only kept in
+     * memory for a short time.
+     */
+    private fun store(key: String, result: List<AbstractBook>, now: Instant, failover: Boolean) {
+        if (failover) {
+            toMemory(key, result, now, configuration.failoverTtl)
+        } else {
+            toMemory(key, result, now)
+            toDatabase(key, result, now)
+        }
+    }
+
+    /**
+     * Look up the given key in either tier of the cache.
+     *
+     * @return The cached result or `null` if the key is not cached.
+     */
+    private fun cached(key: String, now: Instant): List<AbstractBook>? {
+        val cached = fromMemory(key, now) ?: fromDatabase(listOf(key), now)[key]
+        if (cached != null && cached.isEmpty()) {
+            negativeHits.incrementAndGet()
+        }
+        return cached
+    }
+
+    /**
+     * Look up the given key in the in-memory tier.
+     */
+    private fun fromMemory(key: String, now: Instant): List<AbstractBook>? = synchronized(memory) {
+        val entry = memory[key] ?: return null
+        if (entry.expiresAt <= now) {
+            expirations.incrementAndGet()
+            memory.remove(key)
+            return null
+        }
+        hits.incrementAndGet()
+        entry.books
+    }
+
+    /**
+     * Store the given result in the in-memory tier.
+     */
+    private fun toMemory(
+        key: String,
+        result: List<AbstractBook>,
+        now: Instant,
+        ttl: Long = if (result.isEmpty()) configuration.negativeTtl else configuration.ttl
+    ) {
+        if (ttl == 0L || configuration.maximumSize == 0) {
+            return
+        }
+
+        synchronized(memory) {
+            memory[key] = Entry(result, now.plusSeconds(ttl))
+        }
+    }
+
+    /**
+     * Look up the given keys in the database tier and promote them into memory on a hit.
+     *
+     * @return The cached results of the keys that were found.
+     */
+    private fun fromDatabase(keys: Collection<String>, now: Instant): Map<String, List<AbstractBook>> {
+        val books = books ?: return emptyMap()
+        val entries = entries ?: return emptyMap()
+        if (!configuration.persistent || keys.isEmpty()) {
+            return emptyMap()
+        }
+
+        try {
+            val digests = keys.associateBy { digest(it) }
+            val (valid, expired) = entries.findAllById(digests.keys).partition { entry ->
+                val ttl = if (entry.books.isEmpty()) configuration.negativeTtl else configuration.persistentTtl
+                entry.createdAt.plusSeconds(ttl) > now
+            }
+            if (expired.isNotEmpty()) {
+                expirations.addAndGet(expired.size.toLong())
+                entries.deleteAll(expired)
+            }
+
+            // Resolve the books of all entries in a single query and treat an entry as a miss when one of its books is
+            // unknown
+            val found = books.findAllById(valid.flatMap { it.books }.distinct()).associateBy { it.id }
+            val result = HashMap<String, List<AbstractBook>>()
+            for (entry in valid) {
+                val key = digests[entry.id] ?: continue
+                val resolved = entry.books.mapNotNull { found[it] }
+                if (resolved.size == entry.books.size) {
+                    persistentHits.incrementAndGet()
+                    toMemory(key, resolved, now)
+                    result[key] = resolved
+                }
+            }
+            return result
+        } catch (e: DataAccessException) {
+            return emptyMap()
+        }
+    }
+
+    /**
+     * Store the given result in the database tier.
+     */
+    private fun toDatabase(key: String, result: List<AbstractBook>, now: Instant) {
+        val entries = entries ?: return
+        if (books == null || !configuration.persistent) {
+            return
+        }
+
+        val ids = result.map { it.primaryIdentifier ?: return }
+        try {
+            entries.save(CatalogueCacheEntry(digest(key), ids, now))
+        } catch (e: DataAccessException) {
+            // The database tier is best-effort
+        }
+    }
+
+    /**
+     * Construct the key of a lookup from its parts.
+     */
+    private fun key(vararg parts: Any): String = parts.joinToString("\u0000")
+
+    /**
+     * Compute the database key of the given lookup key, so that long queries fit in the identifier column.
+     */
+    private fun digest(key: String): String =
+        MessageDigest.getInstance("SHA-256")
+            .digest(key.toByteArray(Charsets.UTF_8))
+            .joinToString("") { String.format("%02x", it) }
+
+    /**
+     * An entry in the in-memory tier.
+     *
+     * @property books The cached result.
+     * @property expiresAt The moment at which the entry expires.
+     */
+    private data class Entry(val books: List<AbstractBook>, val expiresAt: Instant)
+}
+
+/**
+ * The pattern of whitespace in a query.
+ */
+private val WHITESPACE = Regex("\\s+")
+
+/**
+ * Normalize the given query string, such that queries that only differ in case or whitespace are considered equal.
+ */
+internal fun String.normalizeQuery(): String = trim().toLowerCase(Locale.ROOT).split(WHITESPACE).joinToString(" ")
+
+/**
+ * A snapshot of the statistics of a [CachingCatalogueClient].
+ *
+ * @property hits The amount of lookups that were served from memory.
+ * @property persistentHits The amount of lookups that were served from the database.
+ * @property negativeHits The amount of lookups that were served with a cached empty result.
+ * @property misses The amount of lookups that had to be forwarded to the catalogue.
+ * @property evictions The amount of entries that were evicted from memory to respect the maximum size.
+ * @property expirations The amount of entries that were found to be expired.
+ * @property size The amount of entries currently kept in memory.
+ */
+data class CatalogueCacheStatistics(
+    val hits: Long,
+    val persistentHits: Long,
+    val negativeHits: Long,
+    val misses: Long,
+    val evictions: Long,
+    val expirations: Long,
+    val size: Int
+)
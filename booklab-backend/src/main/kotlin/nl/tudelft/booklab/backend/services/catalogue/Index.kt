@@ -0,0 +1,376 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.catalogue
+
+import nl.tudelft.booklab.backend.services.health.MetricsSource
+import org.apache.lucene.analysis.Analyzer
+import org.apache.lucene.analysis.Analyzer.TokenStreamComponents
+import org.apache.lucene.analysis.LowerCaseFilter
+import org.apache.lucene.analysis.miscellaneous.ASCIIFoldingFilter
+import org.apache.lucene.analysis.standard.StandardTokenizer
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute
+import org.apache.lucene.document.Document
+import org.apache.lucene.document.Field
+import org.apache.lucene.document.StringField
+import org.apache.lucene.document.TextField
+import org.apache.lucene.index.IndexWriter
+import org.apache.lucene.index.IndexWriterConfig
+import org.apache.lucene.index.MultiFields
+import org.apache.lucene.index.Term
+import org.apache.lucene.search.BooleanClause
+import org.apache.lucene.search.BooleanQuery
+import org.apache.lucene.search.BoostQuery
+import org.apache.lucene.search.DisjunctionMaxQuery
+import org.apache.lucene.search.Query
+import org.apache.lucene.search.SearcherManager
+import org.apache.lucene.search.TermQuery
+import org.apache.lucene.store.Directory
+import org.apache.lucene.store.FSDirectory
+import org.apache.lucene.store.RAMDirectory
+import java.io.Closeable
+import java.nio.file.Paths
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.ceil
+
+/**
+ * The configuration of a [CatalogueIndex].
+ *
+ * @property minimumMatch The fraction of the (distinct) query terms that must match a book for it to be considered
+ * relevant.
+ * @property minimumScore The minimum relevance score a book must have to be returned.
+ * @property maximumTerms The maximum amount of query terms that are taken into account.
+ */
+data class CatalogueIndexConfiguration(
+    val minimumMatch: Double = 0.75,
+    val minimumScore: Float = 0.0f,
+    val maximumTerms: Int = 32
+) {
+    init {
+        require(minimumMatch in 0.0..1.0) { "The minimum match must be between 0 and 1" }
+        require(minimumScore >= 0) { "The minimum score must not be negative" }
+        require(maximumTerms > 0) { "The maximum amount of terms must be positive" }
+    }
+}
+
+/**
+ * A full-text index over the books persisted in the catalogue, which allows us to answer queries locally instead of
+ * querying an external catalogue.
+ *
+ * The index covers the title, subtitle, authors, publisher and categories of the books. Changes are visible to the
+ * next search, but the searcher is only refreshed once for all changes since the previous search. Changes are only
+ * committed to the directory when the index is closed. Use [synchronize] on startup to recover from an index that is
+ * out of date.
+ *
+ * @property directory The directory in which the index is stored.
+ * @property configuration The configuration of the index.
+ */
+class CatalogueIndex(
+    private val directory: Directory,
+    private val configuration: CatalogueIndexConfiguration = CatalogueIndexConfiguration()
+) : MetricsSource, Closeable {
+    /**
+     * The analyzer used for both indexing books and parsing queries.
+     */
+    private val analyzer = object : Analyzer() {
+        override fun createComponents(fieldName: String): TokenStreamComponents {
+            val tokenizer = StandardTokenizer()
+            return TokenStreamComponents(tokenizer, ASCIIFoldingFilter(LowerCaseFilter(tokenizer)))
+        }
+    }
+
+    /**
+     * The writer to update the index with.
+     */
+    private val writer = IndexWriter(
+        directory,
+        IndexWriterConfig(analyzer).setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND)
+    )
+
+    /**
+     * The manager of the near real-time searchers over the index.
+     */
+    private val searchers = SearcherManager(writer, null)
+
+    /**
+     * A flag to indicate that the index has changed since the searcher was last refreshed.
+     */
+    private val dirty = AtomicBoolean()
+
+    /**
+     * The amount of searches that yielded relevant books.
+     */
+    private val hits = AtomicLong()
+
+    /**
+     * The amount of searches that yielded no relevant books.
+     */
+    private val misses = AtomicLong()
+
+    /**
+     * The amount of books in the index.
+     */
+    val size: Int
+        get() {
+            refresh()
+            val searcher = searchers.acquire()
+            try {
+                return searcher.indexReader.numDocs()
+            } finally {
+                searchers.release(searcher)
+            }
+        }
+
+    /**
+     * Take a snapshot of the statistics of this index.
+     */
+    val statistics: CatalogueIndexStatistics
+        get() = CatalogueIndexStatistics(hits.get(), misses.get(), size)
+
+    override fun metrics(): Map<String, Any> = mapOf("catalogue.index" to statistics)
+
+    /**
+     * Add the given [Book] to the index or update it if it is already indexed.
+     *
+     * @param book The book to index.
+     */
+    fun add(book: Book) {
+        writer.updateDocument(Term(ID, book.id), document(book))
+        dirty.set(true)
+    }
+
+    /**
+     * Make sure the index contains exactly the books with the given identifiers, by removing the books that should
+     * not be in the index and adding the books that are missing from the index.
+     *
+     * The missing books are resolved in chunks of at most [chunkSize] identifiers, such that a (re)build of the index
+     * neither loads the whole catalogue at once nor exceeds the bind parameter limit of the database.
+     *
+     * @param ids The identifiers of the books that are expected to be in the index.
+     * @param chunkSize The maximum amount of identifiers to resolve at once.
+     * @param books A function to resolve the books with the given identifiers that are missing from the index.
+     * @return `true` if the index was changed, `false` otherwise.
+     */
+    fun synchronize(
+        ids: Collection<String>,
+        chunkSize: Int = SYNCHRONIZE_CHUNK_SIZE,
+        books: (Collection<String>) -> Iterable<Book>
+    ): Boolean {
+        require(chunkSize > 0) { "The chunk size must be positive" }
+
+        val indexed = indexed()
+        val expected = ids.toSet()
+        val stale = indexed - expected
+        val missing = expected - indexed
+
+        if (stale.isEmpty() && missing.isEmpty()) {
+            return false
+        }
+
+        stale.forEach { writer.deleteDocuments(Term(ID, it)) }
+        for (chunk in missing.chunked(chunkSize)) {
+            books(chunk).forEach { writer.updateDocument(Term(ID, it.id), document(it)) }
+        }
+        writer.commit()
+        searchers.maybeRefreshBlocking()
+        return true
+    }
+
+    /**
+     * Search the index for books matching the given keywords.
+     *
+     * @param keywords The keywords to search for.
+     * @param max The maximum amount of results.
+     * @return The identifiers of the relevant books ordered by relevance.
+     */
+    fun search(keywords: String, max: Int): List<String> = search(match(terms(keywords), KEYWORD_FIELDS), max)
+
+    /**
+     * Search the index for books with the given title and author.
+     *
+     * @param title The keywords of the title of the book.
+     * @param author The keywords of the author of the book.
+     * @param max The maximum amount of results.
+     * @return The identifiers of the relevant books ordered by relevance.
+     */
+    fun search(title: String, author: String, max: Int): List<String> {
+        val titleQuery = match(terms(title), TITLE_FIELDS) ?: return search(author, max)
+        val query = BooleanQuery.Builder().add(titleQuery, BooleanClause.Occur.MUST)
+        match(terms(author), AUTHOR_FIELDS)?.let { query.add(it, BooleanClause.Occur.SHOULD) }
+        return search(query.build(), max)
+    }
+
+    override fun close() {
+        searchers.close()
+        writer.close()
+    }
+
+    /**
+     * Execute the given query and return the identifiers of the relevant books.
+     */
+    private fun search(query: Query?, max: Int): List<String> {
+        if (query == null || max <= 0) {
+            misses.incrementAndGet()
+            return emptyList()
+        }
+
+        refresh()
+        val searcher = searchers.acquire()
+        try {
+            val result = searcher.search(query, max).scoreDocs
+                .filter { it.score >= configuration.minimumScore }
+                .map { searcher.doc(it.doc).get(ID) }
+            if (result.isEmpty()) {
+                misses.incrementAndGet()
+            } else {
+                hits.incrementAndGet()
+            }
+            return result
+        } finally {
+            searchers.release(searcher)
+        }
+    }
+
+    /**
+     * Refresh the searcher if the index has changed since its last refresh.
+     */
+    private fun refresh() {
+        if (dirty.compareAndSet(true, false)) {
+            searchers.maybeRefreshBlocking()
+        }
+    }
+
+    /**
+     * Determine the identifiers of the books in the index.
+     */
+    private fun indexed(): Set<String> {
+        refresh()
+        val searcher = searchers.acquire()
+        try {
+            val reader = searcher.indexReader
+            val live = MultiFields.getLiveBits(reader)
+            return (0 until reader.maxDoc())
+                .filter { live == null || live.get(it) }
+                .mapTo(HashSet()) { reader.document(it, setOf(ID)).get(ID) }
+        } finally {
+            searchers.release(searcher)
+        }
+    }
+
+    /**
+     * Construct a query that matches the given terms in the given (boosted) fields, of which at least the configured
+     * fraction of terms must match.
+     */
+    private fun match(terms: List<String>, fields: Map<String, Float>): Query? {
+        if (terms.isEmpty()) {
+            return null
+        }
+
+        val builder = BooleanQuery.Builder()
+        for (term in terms) {
+            val disjuncts = fields.map { (field, boost) -> BoostQuery(TermQuery(Term(field, term)), boost) }
+            builder.add(DisjunctionMaxQuery(disjuncts, 0.1f), BooleanClause.Occur.SHOULD)
+        }
+        builder.setMinimumNumberShouldMatch(ceil(terms.size * configuration.minimumMatch).toInt())
+        return builder.build()
+    }
+
+    /**
+     * Split the given text into the distinct terms of the index.
+     */
+    private fun terms(text: String): List<String> {
+        val terms = LinkedHashSet<String>()
+        analyzer.tokenStream(ALL, text).use { stream ->
+            val attribute = stream.addAttribute(CharTermAttribute::class.java)
+            stream.reset()
+            while (stream.incrementToken() && terms.size < configuration.maximumTerms) {
+                terms += attribute.toString()
+            }
+            stream.end()
+        }
+        return terms.toList()
+    }
+
+    /**
+     * Convert the given [Book] into a Lucene document.
+     */
+    private fun document(book: Book): Document {
+        val document = Document()
+        document.add(StringField(ID, book.id, Field.Store.YES))
+        document.add(TextField(TITLE, book.title, Field.Store.NO))
+        book.subtitle?.let { document.add(TextField(SUBTITLE, it, Field.Store.NO)) }
+        book.authors.forEach { document.add(TextField(AUTHORS, it, Field.Store.NO)) }
+        book.publisher?.let { document.add(TextField(PUBLISHER, it, Field.Store.NO)) }
+        book.categories.forEach { document.add(TextField(CATEGORIES, it, Field.Store.NO)) }
+        return document
+    }
+
+    companion object {
+        private const val ID = "id"
+        private const val ALL = "all"
+        private const val TITLE = "title"
+        private const val SUBTITLE = "subtitle"
+        private const val AUTHORS = "authors"
+        private const val PUBLISHER = "publisher"
+        private const val CATEGORIES = "categories"
+
+        /**
+         * The default amount of identifiers to resolve at once when synchronizing the index.
+         */
+        const val SYNCHRONIZE_CHUNK_SIZE = 1000
+
+        /**
+         * The fields (and their boosts) to search for keywords.
+         */
+        private val KEYWORD_FIELDS = mapOf(
+            TITLE to 3.0f,
+            SUBTITLE to 1.5f,
+            AUTHORS to 2.0f,
+            PUBLISHER to 0.5f,
+            CATEGORIES to 0.5f
+        )
+
+        /**
+         * The fields (and their boosts) to search for the title of a book.
+         */
+        private val TITLE_FIELDS = mapOf(TITLE to 2.0f, SUBTITLE to 1.0f)
+
+        /**
+         * The fields (and their boosts) to search for the author of a book.
+         */
+        private val AUTHOR_FIELDS = mapOf(AUTHORS to 1.0f)
+
+        /**
+         * Open the [Directory] at the given path or an in-memory directory if the path is empty.
+         *
+         * @param path The path to the directory.
+         * @return The directory that has been opened.
+         */
+        @JvmStatic
+        fun directory(path: String): Directory =
+            if (path.isBlank()) RAMDirectory() else FSDirectory.open(Paths.get(path))
+    }
+}
+
+/**
+ * A snapshot of the statistics of a [CatalogueIndex].
+ *
+ * @property hits The amount of searches that yielded relevant books.
+ * @property misses The amount of searches that yielded no relevant books.
+ * @property size The amount of books in the index.
+ */
+data class CatalogueIndexStatistics(val hits: Long, val misses: Long, val size: Int)
@@ -0,0 +1,439 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.catalogue
+
+import java.text.Normalizer
+import java.util.Arrays
+import java.util.Locale
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * The configuration of a [BookMatcher].
+ *
+ * @property candidates The amount of candidates (selected by their trigram similarity) that are ranked.
+ * @property minimumSimilarity The minimum trigram similarity of a candidate to be ranked.
+ * @property minimumLength The minimum length of normalized text to be matched at all.
+ */
+data class BookMatcherConfiguration(
+    val candidates: Int = 16,
+    val minimumSimilarity: Double = 0.2,
+    val minimumLength: Int = 4
+) {
+    init {
+        require(candidates > 0) { "The amount of candidates must be positive" }
+        require(minimumSimilarity in 0.0..1.0) { "The minimum similarity must be between 0 and 1" }
+        require(minimumLength >= 0) { "The minimum length must not be negative" }
+    }
+}
+
+/**
+ * A book that has been matched against a piece of text.
+ *
+ * @property book The book that has been matched.
+ * @property confidence The confidence of the match between 0 and 1.
+ */
+data class BookMatch(val book: Book, val confidence: Double)
+
+/**
+ * An in-memory matching engine that matches noisy OCR output (e.g. the text on the spine of a book) against the
+ * persisted books of the catalogue.
+ *
+ * The text is first normalized to undo common OCR misreadings, after which candidates are selected from a trigram
+ * index by their Dice similarity. The candidates are then ranked by the edit distance between their words and the
+ * words in the text, which yields a confidence between 0 and 1 that can be used to decide whether the match should
+ * be trusted.
+ *
+ * Only the identifier and the normalized text of each book are kept in memory, such that the matcher can cover the
+ * whole catalogue. The caller resolves the matched identifiers into books.
+ *
+ * @property configuration The configuration of the matcher.
+ */
+class BookMatcher(private val configuration: BookMatcherConfiguration = BookMatcherConfiguration()) {
+    /**
+     * The lock guarding the index.
+     */
+    private val lock = ReentrantReadWriteLock()
+
+    /**
+     * The indexed books. A replaced book keeps the position of its previous entry.
+     */
+    private val entries = ArrayList<Entry>()
+
+    /**
+     * The position of the entry of each book in [entries].
+     */
+    private val positions = HashMap<String, Int>()
+
+    /**
+     * The postings of each trigram, containing the positions of the entries that contain the trigram.
+     */
+    private val postings = arrayOfNulls<Postings>(TRIGRAMS)
+
+    /**
+     * The scratch space of the threads that match text.
+     */
+    private val scratch = ThreadLocal.withInitial { Scratch() }
+
+    /**
+     * The amount of books that have been indexed.
+     */
+    val size: Int
+        get() = lock.read { entries.size }
+
+    /**
+     * Add the given [Book] to the matcher or replace it if it has already been added.
+     *
+     * @param book The book to add.
+     */
+    fun add(book: Book) {
+        val text = normalize(listOfNotNull(book.title, book.subtitle).joinToString(" "))
+        val authors = normalize(book.authors.joinToString(" "))
+        val trigrams = trigrams("$text $authors")
+        val entry = Entry(book.id, words(text), words(authors), trigrams)
+
+        lock.write {
+            val position = positions[book.id]
+            if (position == null) {
+                entries += entry
+                positions[book.id] = entries.size - 1
+                trigrams.forEach { post(it, entries.size - 1) }
+                return
+            }
+
+            // Rewrite only the postings of the trigrams that have changed
+            val previous = entries[position].trigrams.toHashSet()
+            val current = trigrams.toHashSet()
+            previous.filter { it !in current }.forEach { postings[it]?.remove(position) }
+            current.filter { it !in previous }.forEach { post(it, position) }
+            entries[position] = entry
+        }
+    }
+
+    /**
+     * Add the entry at the given position to the postings of the given trigram.
+     */
+    private fun post(trigram: Int, position: Int) {
+        val list = postings[trigram] ?: Postings().also { postings[trigram] = it }
+        list.add(position)
+    }
+
+    /**
+     * Remove all books from the matcher and add the given books. The books are not retained, so they may be loaded
+     * lazily while they are iterated.
+     *
+     * @param books The books to add.
+     */
+    fun reset(books: Iterable<Book>) {
+        lock.write {
+            entries.clear()
+            positions.clear()
+            Arrays.fill(postings, null)
+        }
+        books.forEach { add(it) }
+    }
+
+    /**
+     * Match the given text against the books of the matcher.
+     *
+     * @param text The (noisy) text to match.
+     * @param max The maximum amount of matches to return.
+     * @return The matches ordered by descending confidence.
+     */
+    fun match(text: String, max: Int = 1): List<Match> {
+        val normalized = normalize(text)
+        if (normalized.length < configuration.minimumLength || max <= 0) {
+            return emptyList()
+        }
+
+        val trigrams = trigrams(normalized)
+        val words = words(normalized)
+        val candidates = lock.read { candidates(trigrams) }
+        return candidates
+            .map { (entry, similarity) -> Match(entry.id, confidence(entry, words, similarity)) }
+            .sortedByDescending { it.confidence }
+            .take(max)
+    }
+
+    /**
+     * Select the entries that share the most trigrams with the given trigrams.
+     *
+     * @return The candidates and their Dice similarity.
+     */
+    private fun candidates(trigrams: IntArray): List<Pair<Entry, Double>> {
+        val scratch = scratch.get()
+        scratch.ensure(entries.size)
+        val counts = scratch.counts
+        val touched = scratch.touched
+        var size = 0
+
+        for (trigram in trigrams) {
+            val list = postings[trigram] ?: continue
+            for (i in 0 until list.size) {
+                val position = list.values[i]
+                if (counts[position]++ == 0) {
+                    touched[size++] = position
+                }
+            }
+        }
+
+        val candidates = ArrayList<Pair<Entry, Double>>(min(size, configuration.candidates * 2))
+        for (i in 0 until size) {
+            val position = touched[i]
+            val shared = counts[position]
+            counts[position] = 0
+
+            val entry = entries[position]
+            val similarity = 2.0 * shared / (trigrams.size + entry.trigrams.size)
+            if (similarity >= configuration.minimumSimilarity) {
+                candidates += entry to similarity
+            }
+        }
+
+        candidates.sortByDescending { it.second }
+        return candidates.take(configuration.candidates)
+    }
+
+    /**
+     * Compute the confidence of the match between the given entry and the words of the text.
+     *
+     * The confidence mostly depends on how well the words of the title are found in the text (allowing for
+     * misspellings), but also on how much of the text is explained by the book and on the trigram similarity.
+     */
+    private fun confidence(entry: Entry, words: Array<String>, similarity: Double): Double {
+        val title = coverage(entry.title, words)
+        val authors = if (entry.authors.isEmpty()) title else coverage(entry.authors, words)
+        val text = coverage(words, entry.title + entry.authors)
+        return (0.5 * title + 0.1 * authors + 0.2 * text + 0.2 * similarity).coerceIn(0.0, 1.0)
+    }
+
+    /**
+     * Compute the fraction (weighted by length) of the given words that approximately occur in the given text.
+     */
+    private fun coverage(words: Array<String>, text: Array<String>): Double {
+        if (words.isEmpty() || text.isEmpty()) {
+            return 0.0
+        }
+
+        var total = 0.0
+        var found = 0.0
+        for (word in words) {
+            var best = 0.0
+            for (other in text) {
+                best = max(best, similarity(word, other))
+                if (best == 1.0) {
+                    break
+                }
+            }
+            total += word.length
+            found += best * word.length
+        }
+        return found / total
+    }
+
+    /**
+     * Compute the similarity between two words based on their Levenshtein distance.
+     */
+    private fun similarity(a: String, b: String): Double {
+        if (a == b) {
+            return 1.0
+        }
+
+        val longest = max(a.length, b.length)
+        // Words that differ too much in length can never be similar enough to count
+        if (longest - min(a.length, b.length) > longest / 2) {
+            return 0.0
+        }
+        return 1.0 - distance(a, b).toDouble() / longest
+    }
+
+    /**
+     * Compute the Levenshtein distance between two words.
+     */
+    private fun distance(a: String, b: String): Int {
+        val scratch = scratch.get()
+        var previous = scratch.row(b.length + 1, 0)
+        var current = scratch.row(b.length + 1, 1)
+        for (j in 0..b.length) {
+            previous[j] = j
+        }
+
+        for (i in 1..a.length) {
+            current[0] = i
+            for (j in 1..b.length) {
+                val cost = if (a[i - 1] == b[j - 1]) 0 else 1
+                current[j] = min(min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost)
+            }
+            val swap = previous
+            previous = current
+            current = swap
+        }
+        return previous[b.length]
+    }
+
+    /**
+     * A book that has been matched against a piece of text by the matcher.
+     *
+     * @property id The identifier of the book that has been matched.
+     * @property confidence The confidence of the match between 0 and 1.
+     */
+    data class Match(val id: String, val confidence: Double)
+
+    /**
+     * An indexed book.
+     *
+     * @property id The identifier of the book that has been indexed.
+     * @property title The normalized words of the title and subtitle.
+     * @property authors The normalized words of the authors.
+     * @property trigrams The distinct trigrams of the book.
+     */
+    private class Entry(val id: String, val title: Array<String>, val authors: Array<String>, val trigrams: IntArray)
+
+    /**
+     * A growable list of entry positions.
+     */
+    private class Postings {
+        var values = IntArray(4)
+        var size = 0
+
+        fun add(value: Int) {
+            if (size == values.size) {
+                values = values.copyOf(size * 2)
+            }
+            values[size++] = value
+        }
+
+        fun remove(value: Int) {
+            val index = (0 until size).firstOrNull { values[it] == value } ?: return
+            values[index] = values[--size]
+        }
+    }
+
+    /**
+     * The per-thread scratch space used while matching.
+     */
+    private class Scratch {
+        var counts = IntArray(0)
+        var touched = IntArray(0)
+        private val rows = arrayOf(IntArray(16), IntArray(16))
+
+        fun ensure(size: Int) {
+            if (counts.size < size) {
+                counts = IntArray(size)
+                touched = IntArray(size)
+            }
+        }
+
+        fun row(size: Int, index: Int): IntArray {
+            if (rows[index].size < size) {
+                rows[index] = IntArray(size)
+            }
+            return rows[index]
+        }
+    }
+
+    companion object {
+        /**
+         * The size of the alphabet of normalized text (a space, the letters and the digits).
+         */
+        private const val ALPHABET = 37
+
+        /**
+         * The amount of distinct trigrams.
+         */
+        private const val TRIGRAMS = ALPHABET * ALPHABET * ALPHABET
+
+        /**
+         * The pattern of combining diacritical marks.
+         */
+        private val MARKS = Regex("\\p{M}+")
+
+        /**
+         * The letters that are commonly misread as digits or symbols by OCR engines.
+         */
+        private val CONFUSIONS = mapOf(
+            '0' to 'o', '1' to 'l', '3' to 'e', '4' to 'a', '5' to 's', '6' to 'b', '7' to 't', '8' to 'b', '9' to 'g',
+            '|' to 'l', '!' to 'l', '$' to 's', '@' to 'a', '€' to 'e'
+        )
+
+        /**
+         * Normalize the given (OCR) text into lowercase words consisting of only letters and digits separated by
+         * single spaces.
+         *
+         * Diacritics are removed and digits or symbols within words that also contain letters are assumed to be
+         * misread letters. Words of a single character are considered noise and removed.
+         *
+         * @param text The text to normalize.
+         * @return The normalized text.
+         */
+        @JvmStatic
+        fun normalize(text: String): String {
+            val folded = Normalizer.normalize(text, Normalizer.Form.NFD).replace(MARKS, "").toLowerCase(Locale.ROOT)
+            return folded
+                .split(' ', '\t', '\n', '\r', '-', '/', ',', '.', ':', ';', '(', ')', '"', '\'')
+                .asSequence()
+                .map { word ->
+                    val letters = word.any { it in 'a'..'z' }
+                    word.mapNotNull { c ->
+                        when {
+                            c in 'a'..'z' -> c
+                            c in '0'..'9' -> if (letters) CONFUSIONS[c] else c
+                            else -> if (letters) CONFUSIONS[c] else null
+                        }
+                    }.joinToString("")
+                }
+                .filter { it.length > 1 }
+                .joinToString(" ")
+        }
+
+        /**
+         * Split the given normalized text into its words.
+         */
+        private fun words(text: String): Array<String> =
+            if (text.isEmpty()) emptyArray() else text.split(' ').toTypedArray()
+
+        /**
+         * Compute the distinct trigrams of the given normalized text, where each word is padded with spaces.
+         */
+        private fun trigrams(text: String): IntArray {
+            val result = HashSet<Int>()
+            for (word in text.split(' ')) {
+                if (word.isEmpty()) {
+                    continue
+                }
+
+                val padded = " $word "
+                for (i in 0 until padded.length - 2) {
+                    result += (code(padded[i]) * ALPHABET + code(padded[i + 1])) * ALPHABET + code(padded[i + 2])
+                }
+            }
+            return result.toIntArray()
+        }
+
+        /**
+         * Map the given character of normalized text into the alphabet.
+         */
+        private fun code(c: Char): Int = when (c) {
+            in 'a'..'z' -> c - 'a' + 1
+            in '0'..'9' -> c - '0' + 27
+            else -> 0
+        }
+    }
+}
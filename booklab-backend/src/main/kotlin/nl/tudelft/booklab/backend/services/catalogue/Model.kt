@@ -23,6 +23,7 @@ import com.fasterxml.jackson.databind.ser.std.ToStringSerializer
 import nl.tudelft.booklab.catalogue.Identifier
 import nl.tudelft.booklab.catalogue.Ratings
 import java.net.URL
+import java.time.Instant
 import java.time.temporal.TemporalAccessor
 import javax.persistence.Entity
 import nl.tudelft.booklab.catalogue.Book as AbstractBook
@@ -61,3 +62,17 @@ class Book(
     override val ratings: Ratings? = null,
     override val images: Map<String, URL> = emptyMap()
 ) : AbstractBook()
+
+/**
+ * A domain model class representing the cached result of a lookup in an external catalogue.
+ *
+ * @property id The normalized key of the lookup.
+ * @property books The identifiers of the books that resulted from the lookup, ordered by relevance.
+ * @property createdAt The moment at which the result was stored.
+ */
+@Entity
+class CatalogueCacheEntry(
+    val id: String,
+    val books: List<String>,
+    val createdAt: Instant
+)
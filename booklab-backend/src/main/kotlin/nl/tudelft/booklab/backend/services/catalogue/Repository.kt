@@ -17,6 +17,8 @@
 package nl.tudelft.booklab.backend.services.catalogue
 
 import org.springframework.data.repository.CrudRepository
+import org.springframework.transaction.annotation.Transactional
+import java.time.Instant
 
 /**
  * A repository for accessing books in a database.
@@ -29,4 +31,42 @@ interface CatalogueRepository : CrudRepository<Book, String> {
      * @return The book that has been found or `null`.
      */
     fun findByIndustryId(id: String): Book?
+
+    /**
+     * Find the [Book]s that match one of the given industry identifiers in a single query.
+     *
+     * @param ids The identifiers of the books to find.
+     * @return The books that have been found.
+     */
+    fun findAllByIndustryId(ids: Collection<String>): List<Book>
+
+    /**
+     * Find the identifiers of all [Book]s in the database without loading the books themselves.
+     *
+     * @return The identifiers of all books.
+     */
+    fun findAllIds(): List<String>
+}
+
+/**
+ * A repository for accessing the cached results of lookups in an external catalogue.
+ */
+interface CatalogueCacheRepository : CrudRepository<CatalogueCacheEntry, String> {
+    /**
+     * Delete the [CatalogueCacheEntry]s that were stored before the given moment.
+     *
+     * @param instant The moment before which the entries were stored.
+     * @return The amount of deleted entries.
+     */
+    @Transactional
+    fun deleteByCreatedAtBefore(instant: Instant): Long
+
+    /**
+     * Delete the empty [CatalogueCacheEntry]s that were stored before the given moment.
+     *
+     * @param instant The moment before which the entries were stored.
+     * @return The amount of deleted entries.
+     */
+    @Transactional
+    fun deleteByBooksIsEmptyAndCreatedAtBefore(instant: Instant): Long
 }
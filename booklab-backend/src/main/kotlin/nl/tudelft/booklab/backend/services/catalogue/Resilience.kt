@@ -0,0 +1,452 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.backend.services.catalogue
+
+import kotlinx.coroutines.experimental.CancellationException
+import kotlinx.coroutines.experimental.Deferred
+import kotlinx.coroutines.experimental.Unconfined
+import kotlinx.coroutines.experimental.async
+import kotlinx.coroutines.experimental.channels.ReceiveChannel
+import kotlinx.coroutines.experimental.selects.select
+import kotlinx.coroutines.experimental.withTimeoutOrNull
+import nl.tudelft.booklab.backend.services.health.MetricsSource
+import nl.tudelft.booklab.catalogue.CatalogueClient
+import java.time.Clock
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.coroutines.experimental.AbstractCoroutineContextElement
+import kotlin.coroutines.experimental.CoroutineContext
+import kotlin.coroutines.experimental.coroutineContext
+import nl.tudelft.booklab.catalogue.Book as AbstractBook
+
+/**
+ * The configuration of a [ResilientCatalogueClient].
+ *
+ * @property failureThreshold The amount of consecutive failed (or slow) calls after which the circuit is opened.
+ * @property slowCallThreshold The duration in milliseconds after which a call is considered to have failed, even if
+ * it succeeded.
+ * @property openDuration The time in milliseconds the circuit stays open before a single probe is let through.
+ * @property hedging A flag to indicate whether a second request is sent when the first one is slower than usual.
+ * @property hedgePercentile The percentile of the recent latencies after which a hedged request is sent.
+ * @property minimumHedgeDelay The minimum time in milliseconds before a hedged request is sent.
+ * @property minimumSamples The amount of latencies that must have been recorded before requests are hedged.
+ * @property window The amount of recent latencies from which the percentile is computed.
+ */
+data class ResilienceConfiguration(
+    val failureThreshold: Int = 5,
+    val slowCallThreshold: Long = 5000,
+    val openDuration: Long = 30000,
+    val hedging: Boolean = true,
+    val hedgePercentile: Double = 95.0,
+    val minimumHedgeDelay: Long = 50,
+    val minimumSamples: Int = 20,
+    val window: Int = 128
+) {
+    init {
+        require(failureThreshold > 0) { "The failure threshold must be positive" }
+        require(slowCallThreshold >= 0) { "The slow call threshold must not be negative" }
+        require(openDuration >= 0) { "The open duration must not be negative" }
+        require(hedgePercentile in 0.0..100.0) { "The hedge percentile must be between 0 and 100" }
+        require(minimumHedgeDelay >= 0) { "The minimum hedge delay must not be negative" }
+        require(window > 0) { "The window must be positive" }
+        require(minimumSamples in 1..window) { "The minimum amount of samples must be positive and fit the window" }
+    }
+}
+
+/**
+ * The states of a [CircuitBreaker].
+ */
+enum class CircuitState {
+    /**
+     * All calls are let through.
+     */
+    CLOSED,
+
+    /**
+     * All calls are rejected.
+     */
+    OPEN,
+
+    /**
+     * A single call is let through to probe whether the remote service has recovered.
+     */
+    HALF_OPEN
+}
+
+/**
+ * An [Exception] thrown when a call is rejected because the circuit is open.
+ */
+class CircuitOpenException : Exception("The circuit is open")
+
+/**
+ * A coroutine context element through which a [ResilientCatalogueClient] reports to its caller that a call has been
+ * served by the secondary catalogue, such that the caller (e.g. a cache) can treat the result as provisional.
+ */
+class Failover : AbstractCoroutineContextElement(Failover) {
+    /**
+     * A flag to indicate whether a call has been served by the secondary catalogue.
+     */
+    @Volatile
+    var occurred: Boolean = false
+        internal set
+
+    companion object Key : CoroutineContext.Key<Failover>
+}
+
+/**
+ * A circuit breaker that stops calls to a remote service after a series of consecutive failures, such that callers
+ * fail fast instead of waiting for the timeouts of a service that is down. After some time, a single probe is let
+ * through, which closes the circuit again if it succeeds.
+ *
+ * @property failureThreshold The amount of consecutive failures after which the circuit is opened.
+ * @property openDuration The time in milliseconds the circuit stays open before a probe is let through.
+ * @property clock The clock to determine when the circuit should be half-opened.
+ */
+class CircuitBreaker(
+    private val failureThreshold: Int,
+    private val openDuration: Long,
+    private val clock: Clock = Clock.systemUTC()
+) {
+    /**
+     * The state of the circuit (without taking the open duration into account).
+     */
+    private var current = CircuitState.CLOSED
+
+    /**
+     * The amount of consecutive failures.
+     */
+    private var failures = 0
+
+    /**
+     * The time in milliseconds at which the circuit was opened.
+     */
+    private var openedAt = 0L
+
+    /**
+     * A flag to indicate whether a probe is in flight.
+     */
+    private var probing = false
+
+    /**
+     * The state of the circuit.
+     */
+    val state: CircuitState
+        get() = synchronized(this) { advance() }
+
+    /**
+     * Try to acquire permission for a call. Every acquired call must be followed by [onSuccess], [onFailure] or
+     * [release].
+     *
+     * @return `true` if the call may proceed, `false` if it should be rejected.
+     */
+    fun acquire(): Boolean = synchronized(this) {
+        when (advance()) {
+            CircuitState.CLOSED -> true
+            CircuitState.OPEN -> false
+            CircuitState.HALF_OPEN -> if (probing) {
+                false
+            } else {
+                probing = true
+                true
+            }
+        }
+    }
+
+    /**
+     * Report that a call has succeeded, which closes the circuit.
+     */
+    fun onSuccess() = synchronized(this) {
+        current = CircuitState.CLOSED
+        failures = 0
+        probing = false
+    }
+
+    /**
+     * Report that a call has failed, which opens the circuit if the threshold is reached or if the call was a probe.
+     */
+    fun onFailure() = synchronized(this) {
+        probing = false
+        if (current == CircuitState.HALF_OPEN || ++failures >= failureThreshold) {
+            current = CircuitState.OPEN
+            openedAt = clock.millis()
+            failures = 0
+        }
+    }
+
+    /**
+     * Report that a call has been abandoned without an outcome (e.g. because it was cancelled).
+     */
+    fun release() = synchronized(this) {
+        probing = false
+    }
+
+    /**
+     * Half-open the circuit if it has been open for long enough.
+     */
+    private fun advance(): CircuitState {
+        if (current == CircuitState.OPEN && clock.millis() - openedAt >= openDuration) {
+            current = CircuitState.HALF_OPEN
+        }
+        return current
+    }
+}
+
+/**
+ * A [CatalogueClient] that protects the callers against a slow or failing remote catalogue.
+ *
+ * Calls to the primary catalogue go through a [CircuitBreaker], such that the callers fail fast (or fail over to the
+ * secondary catalogue) once the primary catalogue keeps failing or responding slowly. Additionally, single lookups are
+ * hedged: if the primary catalogue has not responded after the configured percentile of its recent latencies, the
+ * request is sent a second time and the first response is used. Callers that want to know whether a call has been
+ * served by the secondary catalogue can add a [Failover] element to their coroutine context.
+ *
+ * @property primary The catalogue to query.
+ * @property secondary The catalogue to fail over to when the primary catalogue fails or its circuit is open, or
+ * `null` to fail instead.
+ * @property configuration The configuration of the client.
+ * @param clock The clock to determine when the circuit should be half-opened.
+ */
+class ResilientCatalogueClient(
+    private val primary: CatalogueClient,
+    private val secondary: CatalogueClient? = null,
+    private val configuration: ResilienceConfiguration = ResilienceConfiguration(),
+    clock: Clock = Clock.systemUTC()
+) : CatalogueClient, MetricsSource {
+    /**
+     * The circuit breaker guarding the primary catalogue.
+     */
+    val breaker = CircuitBreaker(configuration.failureThreshold, configuration.openDuration, clock)
+
+    /**
+     * The latencies of the recent successful calls to the primary catalogue.
+     */
+    private val latencies = LatencyWindow(configuration.window)
+
+    /**
+     * The amount of calls that have been made.
+     */
+    private val calls = AtomicLong()
+
+    /**
+     * The amount of calls to the primary catalogue that have failed.
+     */
+    private val failures = AtomicLong()
+
+    /**
+     * The amount of calls to the primary catalogue that were too slow.
+     */
+    private val slowCalls = AtomicLong()
+
+    /**
+     * The amount of calls that were rejected by the circuit breaker.
+     */
+    private val rejected = AtomicLong()
+
+    /**
+     * The amount of requests that have been hedged.
+     */
+    private val hedged = AtomicLong()
+
+    /**
+     * The amount of hedged requests that responded before the original request.
+     */
+    private val hedgeWins = AtomicLong()
+
+    /**
+     * The amount of calls that have been served by the secondary catalogue.
+     */
+    private val failovers = AtomicLong()
+
+    override suspend fun find(isbn: String): AbstractBook? = call(hedge = true) { find(isbn) }
+
+    override suspend fun findAll(isbns: Collection<String>): Map<String, AbstractBook> =
+        call(hedge = false) { findAll(isbns) }
+
+    override suspend fun query(keywords: String, max: Int): List<AbstractBook> =
+        call(hedge = true) { query(keywords, max) }
+
+    override suspend fun query(title: String, author: String, max: Int): List<AbstractBook> =
+        call(hedge = true) { query(title, author, max) }
+
+    // Streams are consumed lazily, so they are only routed to the secondary catalogue when the circuit is open
+    override fun stream(keywords: String, max: Int): ReceiveChannel<AbstractBook> =
+        route().stream(keywords, max)
+
+    override fun stream(title: String, author: String, max: Int): ReceiveChannel<AbstractBook> =
+        route().stream(title, author, max)
+
+    /**
+     * Take a snapshot of the statistics of this client.
+     */
+    val statistics: ResilienceStatistics
+        get() = ResilienceStatistics(
+            breaker.state,
+            calls.get(),
+            failures.get(),
+            slowCalls.get(),
+            rejected.get(),
+            hedged.get(),
+            hedgeWins.get(),
+            failovers.get()
+        )
+
+    override fun metrics(): Map<String, Any> = mapOf("catalogue.resilience" to statistics)
+
+    /**
+     * Determine the catalogue to route a call to that bypasses the circuit breaker.
+     */
+    private fun route(): CatalogueClient {
+        val secondary = secondary
+        return if (secondary != null && breaker.state == CircuitState.OPEN) secondary else primary
+    }
+
+    /**
+     * Perform the given call on the primary catalogue if the circuit breaker allows it, or on the secondary
+     * catalogue otherwise.
+     *
+     * @param hedge A flag to indicate whether the call to the primary catalogue may be hedged.
+     * @param block The call to perform.
+     * @return The result of the call.
+     */
+    private suspend fun <T> call(hedge: Boolean, block: suspend CatalogueClient.() -> T): T {
+        calls.incrementAndGet()
+        if (!breaker.acquire()) {
+            rejected.incrementAndGet()
+            return failover(CircuitOpenException(), block)
+        }
+
+        val start = System.nanoTime()
+        val result = try {
+            if (hedge && configuration.hedging) hedge { primary.block() } else primary.block()
+        } catch (e: CancellationException) {
+            breaker.release()
+            throw e
+        } catch (e: Exception) {
+            failures.incrementAndGet()
+            breaker.onFailure()
+            return failover(e, block)
+        }
+
+        val millis = (System.nanoTime() - start) / 1_000_000
+        if (millis >= configuration.slowCallThreshold) {
+            slowCalls.incrementAndGet()
+            breaker.onFailure()
+        } else {
+            breaker.onSuccess()
+        }
+        latencies.record(millis)
+        return result
+    }
+
+    /**
+     * Perform the given call on the secondary catalogue or throw the given exception if there is none.
+     */
+    private suspend fun <T> failover(cause: Exception, block: suspend CatalogueClient.() -> T): T {
+        val secondary = secondary ?: throw cause
+        failovers.incrementAndGet()
+        coroutineContext[Failover]?.occurred = true
+        return secondary.block()
+    }
+
+    /**
+     * Run the given block and run it a second time if it has not completed after the hedge delay, returning the
+     * result of whichever completes first.
+     */
+    private suspend fun <T> hedge(block: suspend () -> T): T {
+        val delay = latencies.percentile(configuration.hedgePercentile, configuration.minimumSamples)
+            ?.coerceAtLeast(configuration.minimumHedgeDelay)
+            ?: return block()
+
+        val first = async(Unconfined) { block() }
+        var second: Deferred<T>? = null
+        try {
+            if (withTimeoutOrNull(delay) { first.join() } != null) {
+                return first.await()
+            }
+
+            hedged.incrementAndGet()
+            val hedge = async(Unconfined) { block() }
+            second = hedge
+            return try {
+                select<T> {
+                    first.onAwait { it }
+                    hedge.onAwait { hedgeWins.incrementAndGet(); it }
+                }
+            } catch (e: CancellationException) {
+                throw e
+            } catch (e: Exception) {
+                // The fastest request failed, so wait for the other one
+                if (first.isCompletedExceptionally) hedge.await() else first.await()
+            }
+        } finally {
+            first.cancel()
+            second?.cancel()
+        }
+    }
+
+    /**
+     * A fixed-size window over the most recent latencies.
+     *
+     * @param size The amount of latencies to keep.
+     */
+    private class LatencyWindow(size: Int) {
+        private val values = LongArray(size)
+        private var count = 0
+        private var next = 0
+
+        @Synchronized
+        fun record(millis: Long) {
+            values[next] = millis
+            next = (next + 1) % values.size
+            count = minOf(count + 1, values.size)
+        }
+
+        /**
+         * Compute the given percentile of the latencies in the window or `null` if too few have been recorded.
+         */
+        @Synchronized
+        fun percentile(percentile: Double, minimumSamples: Int): Long? {
+            if (count < minimumSamples) {
+                return null
+            }
+            val sorted = values.copyOf(count).also { it.sort() }
+            val rank = Math.ceil(percentile / 100 * count).toInt().coerceIn(1, count)
+            return sorted[rank - 1]
+        }
+    }
+}
+
+/**
+ * A snapshot of the statistics of a [ResilientCatalogueClient].
+ *
+ * @property state The state of the circuit of the primary catalogue.
+ * @property calls The amount of calls that have been made.
+ * @property failures The amount of calls to the primary catalogue that have failed.
+ * @property slowCalls The amount of calls to the primary catalogue that were slower than the threshold.
+ * @property rejected The amount of calls that were rejected because the circuit was open.
+ * @property hedged The amount of requests that have been hedged.
+ * @property hedgeWins The amount of hedged requests that responded before the original request.
+ * @property failovers The amount of calls that have been served by the secondary catalogue.
+ */
+data class ResilienceStatistics(
+    val state: CircuitState,
+    val calls: Long,
+    val failures: Long,
+    val slowCalls: Long,
+    val rejected: Long,
+    val hedged: Long,
+    val hedgeWins: Long,
+    val failovers: Long
+)
@@ -16,6 +16,7 @@
 
 package nl.tudelft.booklab.backend.services.catalogue
 
+import nl.tudelft.booklab.backend.services.health.MetricsSource
 import nl.tudelft.booklab.backend.services.user.UserServiceException
 import nl.tudelft.booklab.catalogue.CatalogueClient
 import nl.tudelft.booklab.catalogue.Identifier
@@ -25,11 +26,52 @@ import nl.tudelft.booklab.catalogue.Book as AbstractBook
 
 /**
  * A service for managing books in the catalogue.
+ *
+ * Concurrent lookups for the same identifier or the same (normalized) query are coalesced, such that they share a
+ * single call to the external catalogue and a single save of its results.
+ *
+ * @property books The repository in which the books are persisted.
+ * @property client The external catalogue to fall back to.
+ * @property index The full-text index over the persisted books or `null` to always query the external catalogue.
+ * @property matcher The matcher for noisy text over the persisted books or `null` to disable [match].
  */
 class CatalogueService(
     private val books: CatalogueRepository,
-    private val client: CatalogueClient
-) {
+    private val client: CatalogueClient,
+    private val index: CatalogueIndex? = null,
+    private val matcher: BookMatcher? = null
+) : MetricsSource {
+    init {
+        val ids = books.findAllIds()
+
+        // Bring the index up to date with the database if it has diverged (e.g. after a crash)
+        index?.synchronize(ids) { books.findAllById(it) }
+
+        // The matcher only keeps the normalized text of each book, so load the books a chunk at a time
+        matcher?.reset(ids.asSequence()
+            .chunked(CatalogueIndex.SYNCHRONIZE_CHUNK_SIZE)
+            .flatMap { books.findAllById(it).asSequence() }
+            .asIterable())
+    }
+
+    /**
+     * The lookups by identifier that are in flight.
+     */
+    private val lookups = SingleFlight<String, Book?>()
+
+    /**
+     * The queries that are in flight.
+     */
+    private val queries = SingleFlight<String, List<Book>>()
+
+    /**
+     * Take a snapshot of the statistics of the coalesced lookups of this service.
+     */
+    val statistics: CatalogueServiceStatistics
+        get() = CatalogueServiceStatistics(lookups.statistics, queries.statistics)
+
+    override fun metrics(): Map<String, Any> = mapOf("catalogue.service" to statistics)
+
     /**
      * Find a [Book] by its ISBN identifier or look it up in the catalogue.
      *
@@ -40,54 +82,99 @@ class CatalogueService(
      * @return The book that has been found.
      */
     @Transactional
-    suspend fun findById(id: String): Book? {
-        return books.findByIndustryId(id) ?: client.find(id)?.let {
-            try {
-                save(map(it))
-            } catch (e: CatalogueServiceException) {
-                null
+    suspend fun findById(id: String): Book? = lookups.execute(id) {
+        books.findByIndustryId(id) ?: client.find(id)?.let { persist(listOf(it)).single() }
+    }
+
+    /**
+     * Find multiple [Book]s by their ISBN identifiers or look them up in the catalogue.
+     *
+     * Internally, this method will look up all identifiers in the database using a single query and then resolve the
+     * identifiers that were not found in a single batch using the external catalogue.
+     *
+     * @param ids The identifiers to do the lookup with.
+     * @return A map from the given identifiers (in order) to the books that have been found or `null` if the
+     * book could not be found.
+     */
+    @Transactional
+    suspend fun findByIds(ids: List<String>): Map<String, Book?> {
+        val wanted = ids.toSet()
+        if (wanted.isEmpty()) {
+            return emptyMap()
+        }
+
+        val found = HashMap<String, Book>()
+        for (book in books.findAllByIndustryId(wanted)) {
+            (book.identifiers.values + book.id)
+                .filter { it in wanted }
+                .forEach { found[it] = book }
+        }
+
+        val missing = wanted.filter { it !in found }
+        if (missing.isNotEmpty()) {
+            val resolved = client.findAll(missing).toList()
+            for ((id, book) in resolved.map { it.first }.zip(persist(resolved.map { it.second }))) {
+                // Treat the books that could not be saved as not found
+                book?.let { found[id] = it }
             }
         }
+
+        return ids.associate { it to found[it] }
     }
 
     /**
      * Query the catalogue with the given keywords.
      *
-     * At the moment, we use the external catalogue for querying with keywords as opposed to our own database. In the
-     * future, we should be able to move away from simply by changing the implementation of the methods.
+     * By default, the external catalogue is queried, such that the results are not limited to the books we happen to
+     * have persisted. If [localFirst] is set, the books persisted in our own database are searched first and the
+     * external catalogue is only queried if none of them is relevant enough. This is meant for callers that look up
+     * a single specific book (e.g. the detection pipeline), for which a relevant local book is a good enough answer.
      *
      * @param query The query to search in the catalogue with.
      * @param max The amount of results to return at maximum.
+     * @param localFirst A flag to search the persisted books before the external catalogue.
      * @return A collection of books related to the keywords ordered by relevance.
      */
     @Transactional
-    suspend fun query(query: String, max: Int = 5): List<Book> {
-        return client.query(query, max).mapNotNull {
-            try {
-                save(map(it))
-            } catch (e: CatalogueServiceException) {
-                null
-            }
+    suspend fun query(query: String, max: Int = 5, localFirst: Boolean = false): List<Book> =
+        queries.execute("$max:$localFirst:${query.normalizeQuery()}") {
+            (if (localFirst) local { it.search(query, max) } else null)
+                ?: persist(client.query(query, max)).filterNotNull()
         }
-    }
 
     /**
      * Query the catalogue for the book with the given title and author.
      *
+     * Like [query], the books persisted in our own database are only searched before the external catalogue if
+     * [localFirst] is set.
+     *
      * @param title The title of the book.
      * @param author The author of the book to look for.
      * @param max The amount of results to return at maximum.
+     * @param localFirst A flag to search the persisted books before the external catalogue.
      * @return A collection of books associated with the title and author.
      */
     @Transactional
-    suspend fun query(title: String, author: String, max: Int = 5): List<Book> {
-        return client.query(title, author, max).mapNotNull {
-            try {
-                save(map(it))
-            } catch (e: CatalogueServiceException) {
-                null
-            }
+    suspend fun query(title: String, author: String, max: Int = 5, localFirst: Boolean = false): List<Book> =
+        queries.execute("$max:$localFirst:${title.normalizeQuery()}\u0000${author.normalizeQuery()}") {
+            (if (localFirst) local { it.search(title, author, max) } else null)
+                ?: persist(client.query(title, author, max)).filterNotNull()
         }
+
+    /**
+     * Match the given noisy text (e.g. the OCR output of a book spine) against the persisted books.
+     *
+     * As opposed to [query], this method never queries the external catalogue, but returns the confidence of each
+     * match, such that the caller can decide whether to trust the match or to query the external catalogue.
+     *
+     * @param text The text to match.
+     * @param max The amount of matches to return at maximum.
+     * @return The matches ordered by descending confidence.
+     */
+    fun match(text: String, max: Int = 1): List<BookMatch> {
+        val matches = matcher?.match(text, max)?.takeIf { it.isNotEmpty() } ?: return emptyList()
+        val found = books.findAllById(matches.map { it.id }).associateBy { it.id }
+        return matches.mapNotNull { match -> found[match.id]?.let { BookMatch(it, match.confidence) } }
     }
 
     /**
@@ -100,7 +187,10 @@ class CatalogueService(
     @Throws(UserServiceException::class)
     fun save(book: Book): Book {
         try {
-            return books.save(book)
+            val saved = books.save(book)
+            index?.add(saved)
+            matcher?.add(saved)
+            return saved
         } catch (e: ConstraintViolationException) {
             throw CatalogueServiceException.InvalidInformationException(
                 e.message ?: "A constraint violation occurred"
@@ -108,13 +198,70 @@ class CatalogueService(
         }
     }
 
+    /**
+     * Search the local index with the given block and resolve the resulting books from the database.
+     *
+     * @return The books that have been found (ordered by relevance) or `null` if no relevant book was found.
+     */
+    private fun local(search: (CatalogueIndex) -> List<String>): List<Book>? {
+        val ids = index?.let(search)?.takeIf { it.isNotEmpty() } ?: return null
+        val found = books.findAllById(ids).associateBy { it.id }
+        return ids.mapNotNull { found[it] }.takeIf { it.isNotEmpty() }
+    }
+
+    /**
+     * Persist the given books from the external catalogue. Books that have been persisted before and have not changed
+     * since (e.g. because the external catalogue is cached) are not saved again.
+     *
+     * @param found The books to persist.
+     * @return The persisted books in the same order, where a book that could not be saved is `null`.
+     */
+    private fun persist(found: List<AbstractBook>): List<Book?> {
+        val mapped = found.map {
+            try {
+                map(it)
+            } catch (e: CatalogueServiceException) {
+                null
+            }
+        }
+
+        val stored = books.findAllById(mapped.mapNotNull { it?.id }).associateBy { it.id }
+        return mapped.map { book ->
+            val existing = book?.let { stored[it.id] }
+            when {
+                book == null -> null
+                existing != null && existing.isSameAs(book) -> existing
+                else -> try {
+                    save(book)
+                } catch (e: CatalogueServiceException) {
+                    null
+                }
+            }
+        }
+    }
+
+    /**
+     * Determine whether this persisted [Book] carries the same information as the given book.
+     */
+    private fun Book.isSameAs(other: Book): Boolean =
+        identifiers == other.identifiers &&
+            title == other.title &&
+            subtitle == other.subtitle &&
+            authors.toList() == other.authors.toList() &&
+            publisher == other.publisher &&
+            categories.toSet() == other.categories.toSet() &&
+            publishedAt?.toString() == other.publishedAt?.toString() &&
+            description == other.description &&
+            language == other.language &&
+            ratings == other.ratings &&
+            // Compare the images by their string form, since URL#equals resolves the hosts
+            images.mapValues { it.value.toString() } == other.images.mapValues { it.value.toString() }
+
     /**
      * Map an external [AbstractBook] into a persistent [Book].
      */
     private fun map(book: AbstractBook): Book {
-        val identifier = book.identifiers[Identifier.ISBN_13]
-            ?: book.identifiers[Identifier.ISBN_10]
-            ?: book.identifiers[Identifier.INTERNAL]
+        val identifier = book.primaryIdentifier
             ?: throw CatalogueServiceException.InvalidInformationException("No valid identifier for book")
         return Book(
             identifier,
@@ -133,6 +280,23 @@ class CatalogueService(
     }
 }
 
+/**
+ * A snapshot of the statistics of the coalesced lookups of a [CatalogueService].
+ *
+ * @property findById The statistics of the lookups by identifier.
+ * @property query The statistics of the queries.
+ */
+data class CatalogueServiceStatistics(val findById: SingleFlightStatistics, val query: SingleFlightStatistics)
+
+/**
+ * The identifier under which an external [AbstractBook] is stored in the catalogue or `null` if the book has no
+ * suitable identifier.
+ */
+internal val AbstractBook.primaryIdentifier: String?
+    get() = identifiers[Identifier.ISBN_13]
+        ?: identifiers[Identifier.ISBN_10]
+        ?: identifiers[Identifier.INTERNAL]
+
 /**
  * An exception that is possibly thrown by a method of the [CatalogueService] class.
  */
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.catalogue
+
+import kotlinx.coroutines.experimental.CancellationException
+import kotlinx.coroutines.experimental.CompletableDeferred
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A mechanism for deduplicating concurrent calls: while a call for a certain key is in flight, other callers asking
+ * for the same key wait for and share the result of that call instead of starting their own.
+ *
+ * @param K The type of the keys.
+ * @param V The type of the results.
+ */
+class SingleFlight<K : Any, V> {
+    /**
+     * The calls that are currently in flight.
+     */
+    private val flights = ConcurrentHashMap<K, CompletableDeferred<V>>()
+
+    /**
+     * The amount of calls that have been executed.
+     */
+    private val calls = AtomicLong()
+
+    /**
+     * The amount of callers that shared the result of a call in flight.
+     */
+    private val coalesced = AtomicLong()
+
+    /**
+     * Execute the given block for the given key, or wait for the result of a call for the same key that is already
+     * in flight.
+     *
+     * The block runs in the coroutine of the caller that started the call. If that caller is cancelled, the outcome
+     * of the call is unknown rather than failed, so the callers waiting for it retry the call instead of failing.
+     *
+     * @param key The key that identifies the call.
+     * @param block The block to execute.
+     * @return The result of the call.
+     */
+    suspend fun execute(key: K, block: suspend () -> V): V {
+        while (true) {
+            val flight = CompletableDeferred<V>()
+            val existing = flights.putIfAbsent(key, flight)
+            if (existing != null) {
+                coalesced.incrementAndGet()
+                try {
+                    return existing.await()
+                } catch (e: AbandonedException) {
+                    continue
+                }
+            }
+
+            calls.incrementAndGet()
+            val result = try {
+                block()
+            } catch (e: Throwable) {
+                // Remove the flight before completing it, so that retrying callers start a new call
+                flights.remove(key, flight)
+                flight.completeExceptionally(if (e is CancellationException) AbandonedException() else e)
+                throw e
+            }
+
+            flights.remove(key, flight)
+            flight.complete(result)
+            return result
+        }
+    }
+
+    /**
+     * Take a snapshot of the statistics of this instance.
+     */
+    val statistics: SingleFlightStatistics
+        get() = SingleFlightStatistics(calls.get(), coalesced.get(), flights.size)
+}
+
+/**
+ * A snapshot of the statistics of a [SingleFlight] instance.
+ *
+ * @property calls The amount of calls that have been executed (including calls that were retried).
+ * @property coalesced The amount of callers that shared the result of a call in flight instead of executing it.
+ * @property inFlight The amount of calls that are currently in flight.
+ */
+data class SingleFlightStatistics(val calls: Long, val coalesced: Long, val inFlight: Int)
+
+/**
+ * An exception to signal the callers waiting for a call of a [SingleFlight] that the caller executing it has been
+ * cancelled.
+ */
+private class AbandonedException : Exception("The call has been abandoned")
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.health
+
+/**
+ * A component of the application that has to be prepared (e.g. warmed up) before the application is able to serve
+ * traffic. The application reports itself as ready on its health endpoint only once all components are ready.
+ */
+interface ReadinessCheck {
+    /**
+     * A flag to indicate whether the component is ready to serve traffic.
+     */
+    val isReady: Boolean
+}
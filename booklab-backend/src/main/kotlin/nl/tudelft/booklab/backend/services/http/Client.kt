@@ -0,0 +1,157 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.backend.services.http
+
+import io.ktor.client.HttpClient
+import io.ktor.client.engine.apache.Apache
+import io.ktor.client.engine.config
+import nl.tudelft.booklab.backend.services.health.MetricsSource
+import org.apache.http.HttpRequestInterceptor
+import org.apache.http.HttpResponseInterceptor
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor
+import org.apache.http.impl.nio.reactor.IOReactorConfig
+import java.io.Closeable
+
+/**
+ * The configuration of the [OutboundHttpClient].
+ *
+ * @property maxConnections The maximum amount of pooled connections.
+ * @property maxConnectionsPerRoute The maximum amount of pooled connections to a single host.
+ * @property connectTimeout The timeout in milliseconds for establishing a connection.
+ * @property socketTimeout The maximum time in milliseconds of inactivity while reading a response.
+ * @property connectionRequestTimeout The maximum time in milliseconds to wait for a connection from the pool.
+ * @property keepAlive The time in milliseconds an idle connection is kept alive if the server does not say otherwise.
+ */
+data class OutboundHttpConfiguration(
+    val maxConnections: Int = 64,
+    val maxConnectionsPerRoute: Int = 16,
+    val connectTimeout: Int = 5000,
+    val socketTimeout: Int = 30000,
+    val connectionRequestTimeout: Int = 5000,
+    val keepAlive: Long = 30000
+) {
+    init {
+        require(maxConnections > 0) { "The maximum amount of connections must be positive" }
+        require(maxConnectionsPerRoute in 1..maxConnections) {
+            "The maximum amount of connections per route must be positive and at most the maximum amount of connections"
+        }
+        require(connectTimeout >= 0) { "The connect timeout must not be negative" }
+        require(socketTimeout >= 0) { "The socket timeout must not be negative" }
+        require(connectionRequestTimeout >= 0) { "The connection request timeout must not be negative" }
+        require(keepAlive >= 0) { "The keep-alive time must not be negative" }
+    }
+}
+
+/**
+ * The single, managed HTTP client through which the backend talks to remote services (e.g. catalogues and
+ * recommenders), such that all outbound requests share one bounded pool of kept-alive connections.
+ *
+ * The latency of each request (from sending the request to receiving the head of the response) is recorded in a
+ * histogram, which together with the state of the connection pool is exposed through [statistics].
+ *
+ * @property configuration The configuration of the client.
+ */
+class OutboundHttpClient(
+    private val configuration: OutboundHttpConfiguration = OutboundHttpConfiguration()
+) : MetricsSource, Closeable {
+    /**
+     * The pool of connections shared by all requests.
+     */
+    private val pool = PoolingNHttpClientConnectionManager(
+        DefaultConnectingIOReactor(
+            IOReactorConfig.custom()
+                .setConnectTimeout(configuration.connectTimeout)
+                .setSoTimeout(configuration.socketTimeout)
+                .build()
+        )
+    ).apply {
+        maxTotal = configuration.maxConnections
+        defaultMaxPerRoute = configuration.maxConnectionsPerRoute
+    }
+
+    /**
+     * The latencies of the requests that have been made.
+     */
+    private val latency = LatencyHistogram()
+
+    /**
+     * The Ktor [HttpClient] to inject into the clients of remote services.
+     */
+    val client: HttpClient = HttpClient(Apache.config {
+        connectTimeout = configuration.connectTimeout
+        socketTimeout = configuration.socketTimeout
+        connectionRequestTimeout = configuration.connectionRequestTimeout
+        customizeClient {
+            setConnectionManager(pool)
+            setKeepAliveStrategy { response, context ->
+                val duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context)
+                if (duration > 0) minOf(duration, configuration.keepAlive) else configuration.keepAlive
+            }
+            addInterceptorFirst(HttpRequestInterceptor { _, context -> context.setAttribute(START, System.nanoTime()) })
+            addInterceptorLast(HttpResponseInterceptor { _, context ->
+                (context.getAttribute(START) as? Long)?.let { latency.record(System.nanoTime() - it) }
+            })
+        }
+    })
+
+    /**
+     * Take a snapshot of the statistics of this client.
+     */
+    val statistics: OutboundHttpStatistics
+        get() {
+            val stats = pool.totalStats
+            return OutboundHttpStatistics(stats.leased, stats.pending, stats.available, stats.max, latency.snapshot)
+        }
+
+    override fun metrics(): Map<String, Any> = mapOf("http.outbound" to statistics)
+
+    override fun close() {
+        client.close()
+    }
+
+    companion object {
+        /**
+         * The attribute of the HTTP context in which the start time of a request is stored.
+         */
+        private const val START = "booklab.start"
+    }
+}
+
+/**
+ * A snapshot of the statistics of an [OutboundHttpClient].
+ *
+ * @property leased The amount of connections that are in use.
+ * @property pending The amount of requests that are waiting for a connection.
+ * @property available The amount of idle connections that are kept alive.
+ * @property max The maximum amount of connections in the pool.
+ * @property latency The latencies of the requests that have been made.
+ */
+data class OutboundHttpStatistics(
+    val leased: Int,
+    val pending: Int,
+    val available: Int,
+    val max: Int,
+    val latency: LatencySnapshot
+) {
+    /**
+     * The fraction of the pool that is in use, where a value of one means requests will have to wait for a
+     * connection.
+     */
+    val saturation: Double
+        get() = leased.toDouble() / max
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.backend.services.http
+
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * A lock-free histogram of latencies with fixed, roughly exponentially growing buckets.
+ */
+class LatencyHistogram {
+    /**
+     * The amount of latencies recorded in each bucket, where the last bucket holds the latencies above the highest
+     * bound.
+     */
+    private val counts = AtomicLongArray(BOUNDS.size + 1)
+
+    /**
+     * Record the given latency.
+     *
+     * @param nanos The latency in nanoseconds.
+     */
+    fun record(nanos: Long) {
+        val millis = nanos / 1e6
+        val index = BOUNDS.indexOfFirst { millis <= it }
+        counts.incrementAndGet(if (index < 0) BOUNDS.size else index)
+    }
+
+    /**
+     * Take a snapshot of the histogram.
+     */
+    val snapshot: LatencySnapshot
+        get() = LatencySnapshot(BOUNDS.toList(), List(counts.length()) { counts.get(it) })
+
+    companion object {
+        /**
+         * The (inclusive) upper bounds of the buckets in milliseconds.
+         */
+        private val BOUNDS = doubleArrayOf(
+            1.0, 2.5, 5.0, 10.0, 25.0, 50.0, 100.0, 250.0, 500.0, 1000.0, 2500.0, 5000.0, 10000.0, 30000.0
+        )
+    }
+}
+
+/**
+ * A snapshot of a [LatencyHistogram].
+ *
+ * @property bounds The (inclusive) upper bounds of the buckets in milliseconds.
+ * @property counts The amount of latencies in each bucket, where the last bucket holds the latencies above the
+ * highest bound.
+ */
+data class LatencySnapshot(val bounds: List<Double>, val counts: List<Long>) {
+    /**
+     * The total amount of latencies that have been recorded.
+     */
+    val count: Long
+        get() = counts.sum()
+
+    /**
+     * Estimate the given percentile of the latencies by the upper bound of the bucket it falls into.
+     *
+     * @param percentile The percentile to estimate between 0 and 100.
+     * @return The estimated percentile in milliseconds, [Double.POSITIVE_INFINITY] if it exceeds the highest bound or
+     * [Double.NaN] if no latencies have been recorded.
+     */
+    fun percentile(percentile: Double): Double {
+        require(percentile in 0.0..100.0) { "The percentile must be between 0 and 100" }
+        val count = count
+        if (count == 0L) {
+            return Double.NaN
+        }
+
+        val rank = Math.ceil(percentile / 100 * count).toLong().coerceAtLeast(1)
+        var seen = 0L
+        for ((i, bucket) in counts.withIndex()) {
+            seen += bucket
+            if (seen >= rank) {
+                return bounds.getOrElse(i) { Double.POSITIVE_INFINITY }
+            }
+        }
+        return Double.POSITIVE_INFINITY
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.vision
+
+import nl.tudelft.booklab.backend.services.health.MetricsSource
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import java.time.Clock
+import java.time.Instant
+import java.util.LinkedHashMap
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The configuration of a [DetectionCache].
+ *
+ * @property maximumSize The maximum amount of results that are kept in memory, or zero to disable the cache.
+ * @property ttl The time in seconds a result is kept in memory.
+ * @property maximumDistance The maximum Hamming distance between the coarse perceptual hashes of two images for them to
+ * be considered the same image (out of 64 bits).
+ * @property maximumDetailDistance The maximum Hamming distance between the detailed perceptual hashes of two images
+ * that confirms them to be the same image (out of 256 bits).
+ */
+data class DetectionCacheConfiguration(
+    val maximumSize: Int = 256,
+    val ttl: Long = 600,
+    val maximumDistance: Int = 0,
+    val maximumDetailDistance: Int = 8
+) {
+    init {
+        require(maximumSize >= 0) { "The maximum size must not be negative" }
+        require(ttl >= 0) { "The time-to-live must not be negative" }
+        require(maximumDistance in 0..64) { "The maximum distance must be between 0 and 64" }
+        require(maximumDetailDistance in 0..256) { "The maximum detail distance must be between 0 and 256" }
+    }
+}
+
+/**
+ * The perceptual fingerprint of an image.
+ *
+ * @property hash The coarse (64-bit) difference hash of the image.
+ * @property width The width of the image in pixels.
+ * @property height The height of the image in pixels.
+ * @property detail The detailed (256-bit) difference hash of the image, which distinguishes images that only differ in
+ * details (e.g. the books on two shelves photographed with the same phone).
+ */
+data class ImageFingerprint(val hash: Long, val width: Int, val height: Int, val detail: List<Long> = emptyList()) {
+    /**
+     * Compute the Hamming distance between the coarse hashes of this fingerprint and the given fingerprint.
+     *
+     * @return The distance between the fingerprints or `null` if the images are of different sizes, in which case
+     * their detections cannot be exchanged.
+     */
+    fun distance(other: ImageFingerprint): Int? =
+        if (width == other.width && height == other.height) java.lang.Long.bitCount(hash xor other.hash) else null
+
+    /**
+     * Compute the Hamming distance between the detailed hashes of this fingerprint and the given fingerprint.
+     *
+     * @return The distance between the detailed hashes or `null` if they are incomparable.
+     */
+    fun detailDistance(other: ImageFingerprint): Int? =
+        if (detail.size != other.detail.size) null
+        else detail.zip(other.detail) { a, b -> java.lang.Long.bitCount(a xor b) }.sum()
+}
+
+/**
+ * Compute the perceptual fingerprint of this image.
+ *
+ * The fingerprint is based on difference hashes (dHash): the image is reduced to a grayscale image of (n + 1) by n
+ * pixels, after which each bit indicates whether a pixel is brighter than its right neighbour. Retakes and
+ * re-encodings of the same photo therefore only differ in a few bits. The coarse hash (n = 8) mostly captures the
+ * vertical stripes of the spines and the lighting, so the detailed hash (n = 16) is used to confirm a match.
+ *
+ * @return The fingerprint of the image.
+ */
+fun Mat.fingerprint(): ImageFingerprint {
+    val gray = Mat()
+    try {
+        when (channels()) {
+            3 -> Imgproc.cvtColor(this, gray, Imgproc.COLOR_BGR2GRAY)
+            4 -> Imgproc.cvtColor(this, gray, Imgproc.COLOR_BGRA2GRAY)
+            else -> copyTo(gray)
+        }
+        gray.convertTo(gray, CvType.CV_8U)
+
+        val hash = gray.differenceHash(HASH_SIZE).single()
+        return ImageFingerprint(hash, cols(), rows(), gray.differenceHash(DETAIL_HASH_SIZE).toList())
+    } finally {
+        gray.release()
+    }
+}
+
+/**
+ * Compute the difference hash of this grayscale image of the given size (in bits per row).
+ *
+ * @return The bits of the hash, in words of 64 bits.
+ */
+private fun Mat.differenceHash(size: Int): LongArray {
+    val small = Mat()
+    try {
+        Imgproc.resize(this, small, Size(size + 1.0, size.toDouble()), 0.0, 0.0, Imgproc.INTER_AREA)
+        val pixels = ByteArray((size + 1) * size)
+        small.get(0, 0, pixels)
+
+        val hash = LongArray(size * size / 64)
+        for (y in 0 until size) {
+            for (x in 0 until size) {
+                val left = pixels[y * (size + 1) + x].toInt() and 0xFF
+                val right = pixels[y * (size + 1) + x + 1].toInt() and 0xFF
+                val bit = y * size + x
+                val word = bit / 64
+                hash[word] = (hash[word] shl 1) or (if (left > right) 1L else 0L)
+            }
+        }
+        return hash
+    } finally {
+        small.release()
+    }
+}
+
+/**
+ * The size of the coarse difference hash in bits per row.
+ */
+private const val HASH_SIZE = 8
+
+/**
+ * The size of the detailed difference hash in bits per row.
+ */
+private const val DETAIL_HASH_SIZE = 16
+
+/**
+ * The key of a result in a [DetectionCache].
+ *
+ * @property owner The owner (e.g. the user) on whose behalf the image has been detected, to which the result is scoped.
+ * @property fingerprint The fingerprint of the image.
+ */
+data class DetectionCacheKey(val owner: String, val fingerprint: ImageFingerprint)
+
+/**
+ * A bounded cache of recent detection results, keyed by the owner and the perceptual fingerprint of the image, such
+ * that near-identical uploads (e.g. retakes or retries of the same photo) can be answered without running the
+ * pipeline.
+ *
+ * An image is a hit if the cache contains a result of the same owner for an image of the same size whose coarse hash
+ * is within the configured Hamming distance and whose detailed hash confirms the match, in which case the result of
+ * the nearest image is returned. Results are never shared between owners.
+ *
+ * @property configuration The configuration of the cache.
+ * @property clock The clock to determine the expiration of entries with.
+ */
+class DetectionCache(
+    private val configuration: DetectionCacheConfiguration = DetectionCacheConfiguration(),
+    private val clock: Clock = Clock.systemUTC()
+) : MetricsSource {
+    /**
+     * The cached results, ordered from least to most recently accessed.
+     */
+    private val entries = object : LinkedHashMap<DetectionCacheKey, Entry>(16, 0.75f, true) {
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<DetectionCacheKey, Entry>): Boolean {
+            val remove = size > configuration.maximumSize
+            if (remove) {
+                evictions.incrementAndGet()
+            }
+            return remove
+        }
+    }
+
+    /**
+     * The amount of lookups that were served with the result of an identical image.
+     */
+    private val hits = AtomicLong()
+
+    /**
+     * The amount of lookups that were served with the result of a similar image.
+     */
+    private val nearHits = AtomicLong()
+
+    /**
+     * The amount of lookups that could not be served from the cache.
+     */
+    private val misses = AtomicLong()
+
+    /**
+     * The amount of entries that were evicted to respect the maximum size.
+     */
+    private val evictions = AtomicLong()
+
+    /**
+     * The amount of entries that were found to be expired.
+     */
+    private val expirations = AtomicLong()
+
+    /**
+     * A flag to indicate whether the cache is enabled.
+     */
+    val isEnabled: Boolean
+        get() = configuration.maximumSize > 0 && configuration.ttl > 0
+
+    /**
+     * Look up the result of the image with the given key.
+     *
+     * @param key The owner and fingerprint of the image.
+     * @return The cached result or `null` if no similar image has been cached for the owner.
+     */
+    fun get(key: DetectionCacheKey): List<BookDetection>? {
+        val now = clock.instant()
+        synchronized(entries) {
+            var best: DetectionCacheKey? = null
+            var distance = Int.MAX_VALUE
+            val iterator = entries.entries.iterator()
+            while (iterator.hasNext()) {
+                val (other, entry) = iterator.next()
+                if (entry.expiresAt <= now) {
+                    expirations.incrementAndGet()
+                    iterator.remove()
+                    continue
+                }
+
+                if (other.owner != key.owner) {
+                    continue
+                }
+
+                val current = other.fingerprint.distance(key.fingerprint) ?: continue
+                if (current > configuration.maximumDistance || current >= distance) {
+                    continue
+                }
+
+                val detail = other.fingerprint.detailDistance(key.fingerprint) ?: continue
+                if (detail <= configuration.maximumDetailDistance) {
+                    best = other
+                    distance = current
+                }
+            }
+
+            if (best == null) {
+                misses.incrementAndGet()
+                return null
+            }
+
+            (if (best == key) hits else nearHits).incrementAndGet()
+            // Look up the entry by its key to mark it as recently used
+            return entries[best]?.detections
+        }
+    }
+
+    /**
+     * Store the result of the image with the given key.
+     *
+     * @param key The owner and fingerprint of the image.
+     * @param detections The detections in the image.
+     */
+    fun put(key: DetectionCacheKey, detections: List<BookDetection>) {
+        if (!isEnabled) {
+            return
+        }
+
+        val expiresAt = clock.instant().plusSeconds(configuration.ttl)
+        synchronized(entries) {
+            entries[key] = Entry(detections, expiresAt)
+        }
+    }
+
+    /**
+     * Remove all results from the cache.
+     */
+    fun invalidate() {
+        synchronized(entries) { entries.clear() }
+    }
+
+    /**
+     * Take a snapshot of the statistics of this cache.
+     */
+    val statistics: DetectionCacheStatistics
+        get() = DetectionCacheStatistics(
+            hits.get(),
+            nearHits.get(),
+            misses.get(),
+            evictions.get(),
+            expirations.get(),
+            synchronized(entries) { entries.size }
+        )
+
+    override fun metrics(): Map<String, Any> = mapOf("vision.cache" to statistics)
+
+    /**
+     * An entry in the cache.
+     *
+     * @property detections The cached result.
+     * @property expiresAt The moment at which the entry expires.
+     */
+    private data class Entry(val detections: List<BookDetection>, val expiresAt: Instant)
+}
+
+/**
+ * A snapshot of the statistics of a [DetectionCache].
+ *
+ * @property hits The amount of lookups that were served with the result of an identical image.
+ * @property nearHits The amount of lookups that were served with the result of a similar image.
+ * @property misses The amount of lookups that could not be served from the cache.
+ * @property evictions The amount of entries that were evicted to respect the maximum size.
+ * @property expirations The amount of entries that were found to be expired.
+ * @property size The amount of entries currently kept in the cache.
+ */
+data class DetectionCacheStatistics(
+    val hits: Long,
+    val nearHits: Long,
+    val misses: Long,
+    val evictions: Long,
+    val expirations: Long,
+    val size: Int
+)
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.vision
+
+import java.util.EnumMap
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * The configuration of the detection pipeline of the [VisionService].
+ *
+ * @property threads The amount of threads of the dispatcher on which the native (CPU-bound) stages run.
+ * @property ocrBatchSize The maximum amount of segments that are passed to the text extractor at once.
+ * @property ocrWorkers The amount of workers that concurrently extract text from segments.
+ * @property catalogueThreads The amount of threads of the dispatcher on which the catalogue is queried.
+ * @property catalogueWorkers The maximum amount of catalogue queries that are in flight at the same time.
+ * @property capacity The amount of pending tasks each stage buffers before callers are suspended.
+ * @property matchConfidence The minimum confidence of a match against the persisted books to be trusted without
+ * querying the catalogue.
+ * @property remoteFallback A flag to indicate whether text that cannot be matched with enough confidence should be
+ * looked up in the catalogue (as opposed to being skipped).
+ * @property detectionSize The maximum length in pixels of the longest edge of the image on which books are detected,
+ * or zero to detect books at full resolution. The text is always extracted from the full-resolution image.
+ * @property warmUpRuns The amount of times a synthetic image is run through the detector and text extractor during
+ * the warm-up, or zero to skip the warm-up.
+ */
+data class VisionPipelineConfiguration(
+    val threads: Int = Runtime.getRuntime().availableProcessors(),
+    val ocrBatchSize: Int = 4,
+    val ocrWorkers: Int = threads,
+    val catalogueThreads: Int = 8,
+    val catalogueWorkers: Int = 16,
+    val capacity: Int = 64,
+    val matchConfidence: Double = 0.75,
+    val remoteFallback: Boolean = true,
+    val detectionSize: Int = 0,
+    val warmUpRuns: Int = 2
+) {
+    init {
+        require(threads > 0) { "The amount of threads must be positive" }
+        require(ocrBatchSize > 0) { "The OCR batch size must be positive" }
+        require(ocrWorkers > 0) { "The amount of OCR workers must be positive" }
+        require(catalogueThreads > 0) { "The amount of catalogue threads must be positive" }
+        require(catalogueWorkers > 0) { "The amount of catalogue workers must be positive" }
+        require(capacity >= 0) { "The capacity must not be negative" }
+        require(matchConfidence in 0.0..1.0) { "The match confidence must be between 0 and 1" }
+        require(detectionSize >= 0) { "The detection size must not be negative" }
+        require(warmUpRuns >= 0) { "The amount of warm-up runs must not be negative" }
+    }
+}
+
+/**
+ * The stages of the detection pipeline.
+ */
+enum class PipelineStage {
+    /**
+     * The stage in which the image is downscaled before the books are located.
+     */
+    SCALE,
+
+    /**
+     * The stage in which the books are located in the image.
+     */
+    DETECTION,
+
+    /**
+     * The stage in which the segments are cropped from the image.
+     */
+    CROP,
+
+    /**
+     * The stage in which the text is extracted from the segments.
+     */
+    OCR,
+
+    /**
+     * The stage in which the extracted text is matched against the catalogue.
+     */
+    MATCH
+}
+
+/**
+ * A snapshot of the timing of a single stage in the pipeline.
+ *
+ * @property count The amount of times the stage has been run.
+ * @property total The total time spent in the stage in milliseconds.
+ * @property max The longest time spent in a single run of the stage in milliseconds.
+ */
+data class StageStatistics(val count: Long, val total: Double, val max: Double) {
+    /**
+     * The average time spent in a single run of the stage in milliseconds.
+     */
+    val average: Double get() = if (count > 0) total / count else 0.0
+}
+
+/**
+ * A recorder for the time spent in each stage of the pipeline.
+ */
+class PipelineStatistics {
+    /**
+     * The counters of each stage.
+     */
+    private val counters = EnumMap<PipelineStage, Counter>(PipelineStage::class.java).apply {
+        PipelineStage.values().forEach { put(it, Counter()) }
+    }
+
+    /**
+     * Record a run of the given stage.
+     *
+     * @param stage The stage that was run.
+     * @param nanos The time the run took in nanoseconds.
+     */
+    fun record(stage: PipelineStage, nanos: Long) {
+        val counter = counters.getValue(stage)
+        counter.count.incrementAndGet()
+        counter.total.addAndGet(nanos)
+        counter.max.accumulateAndGet(nanos, Math::max)
+    }
+
+    /**
+     * Take a snapshot of the statistics of each stage.
+     *
+     * @return A map containing the statistics of each stage.
+     */
+    fun snapshot(): Map<PipelineStage, StageStatistics> = counters.mapValues { (_, counter) ->
+        StageStatistics(counter.count.get(), counter.total.get().toMillis(), counter.max.get().toMillis())
+    }
+
+    /**
+     * Convert the given amount of nanoseconds into milliseconds.
+     */
+    private fun Long.toMillis(): Double = this.toDouble() / TimeUnit.MILLISECONDS.toNanos(1)
+
+    /**
+     * The counters kept for a single stage.
+     */
+    private class Counter {
+        val count = AtomicLong()
+        val total = AtomicLong()
+        val max = AtomicLong()
+    }
+}
+
+/**
+ * Run the given block as part of the given stage and record the time it took.
+ *
+ * @param stage The stage to which the block belongs.
+ * @param block The block to run.
+ * @return The result of the block.
+ */
+internal inline fun <T> PipelineStatistics.measure(stage: PipelineStage, block: () -> T): T {
+    val start = System.nanoTime()
+    try {
+        return block()
+    } finally {
+        record(stage, System.nanoTime() - start)
+    }
+}
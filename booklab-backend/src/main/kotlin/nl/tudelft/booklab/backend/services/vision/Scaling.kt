@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.vision
+
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import org.opencv.core.Size
+import org.opencv.imgproc.Imgproc
+import kotlin.math.ceil
+import kotlin.math.floor
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * A (possibly) downscaled version of an image on which books are detected.
+ *
+ * @property original The full-resolution image.
+ * @property image The downscaled image or the original image if it did not need to be downscaled.
+ * @property scale The factor by which the original image has been scaled.
+ */
+internal class ScaledImage(val original: Mat, val image: Mat, val scale: Double) {
+    /**
+     * Map the given rectangle in the downscaled image back to the full-resolution image.
+     *
+     * The rectangle is widened to whole pixels of the original image and clipped to its bounds.
+     *
+     * @param rect The rectangle in the downscaled image.
+     * @return The rectangle in the original image.
+     */
+    fun toOriginal(rect: Rect): Rect {
+        if (image === original) {
+            return rect
+        }
+
+        val left = max(0, floor(rect.x / scale).toInt())
+        val top = max(0, floor(rect.y / scale).toInt())
+        val right = min(original.cols(), ceil((rect.x + rect.width) / scale).toInt())
+        val bottom = min(original.rows(), ceil((rect.y + rect.height) / scale).toInt())
+        return Rect(left, top, max(0, right - left), max(0, bottom - top))
+    }
+
+    /**
+     * Release the downscaled image, while leaving the original image intact.
+     */
+    fun release() {
+        if (image !== original) {
+            image.release()
+        }
+    }
+}
+
+/**
+ * Downscale this image such that its longest edge is at most the given size.
+ *
+ * @param size The maximum size of the longest edge in pixels or zero to keep the image at full resolution.
+ * @return The downscaled image.
+ */
+internal fun Mat.downscale(size: Int): ScaledImage {
+    val edge = max(cols(), rows())
+    if (size <= 0 || edge <= size) {
+        return ScaledImage(this, this, 1.0)
+    }
+
+    val scale = size.toDouble() / edge
+    val scaled = Mat()
+    Imgproc.resize(this, scaled, Size(), scale, scale, Imgproc.INTER_AREA)
+    return ScaledImage(this, scaled, scale)
+}
@@ -16,47 +16,331 @@
 
 package nl.tudelft.booklab.backend.services.vision
 
+import kotlinx.coroutines.experimental.CompletableDeferred
+import kotlinx.coroutines.experimental.Deferred
+import kotlinx.coroutines.experimental.Job
 import kotlinx.coroutines.experimental.async
+import kotlinx.coroutines.experimental.channels.Channel
+import kotlinx.coroutines.experimental.channels.ReceiveChannel
+import kotlinx.coroutines.experimental.channels.produce
+import kotlinx.coroutines.experimental.launch
+import kotlinx.coroutines.experimental.newFixedThreadPoolContext
+import kotlinx.coroutines.experimental.withContext
+import nl.tudelft.booklab.backend.services.catalogue.Book
 import nl.tudelft.booklab.backend.services.catalogue.CatalogueService
-import nl.tudelft.booklab.catalogue.Book
+import nl.tudelft.booklab.backend.services.catalogue.CircuitOpenException
+import nl.tudelft.booklab.backend.services.health.MetricsSource
+import nl.tudelft.booklab.backend.services.health.ReadinessCheck
+import nl.tudelft.booklab.vision.ImageBufferPool
 import nl.tudelft.booklab.vision.detection.BookDetector
 import nl.tudelft.booklab.vision.ocr.TextExtractor
 import org.opencv.core.Mat
 import org.opencv.core.Rect
+import java.io.Closeable
+import java.util.concurrent.atomic.AtomicBoolean
 
 /**
  * A service used for detecting and identifying books.
  *
+ * Internally, the service runs each image through a staged pipeline: the books are located in the image (optionally on
+ * a downscaled copy of the image), the full-resolution segments are cropped and their text is extracted, after which
+ * the text is matched against the catalogue. The native stages run on a dedicated CPU-bound dispatcher, while the
+ * catalogue is queried from a separate, bounded pool. Each stage consumes its tasks from a bounded queue, such that
+ * callers are suspended once a stage cannot keep up.
+ *
+ * The extracted text is matched against the persisted books first and is only looked up in the catalogue if no
+ * match was found with enough confidence.
+ *
+ * The results of recent images are kept in a [DetectionCache] keyed by a perceptual hash of the image, such that
+ * near-identical uploads (e.g. retakes or retries) are answered without running the pipeline.
+ *
+ * The service only reports itself as ready once [warmUp] has run a synthetic image through the detector and the text
+ * extractor, such that the first requests do not pay for loading the native libraries and models.
+ *
  * @property detector The detector to detect the books in an image.
  * @property extractor The extractor to extract the text from the image.
  * @property catalogue The catalogue service to cross match the books.
+ * @property configuration The configuration of the detection pipeline.
+ * @property images The pool of buffers into which uploaded images are read.
+ * @property cache The cache of the results of recent images.
  */
 class VisionService(
     private val detector: BookDetector,
     private val extractor: TextExtractor,
-    private val catalogue: CatalogueService
-) {
+    private val catalogue: CatalogueService,
+    private val configuration: VisionPipelineConfiguration = VisionPipelineConfiguration(),
+    val images: ImageBufferPool = ImageBufferPool(),
+    val cache: DetectionCache = DetectionCache()
+) : ReadinessCheck, MetricsSource, Closeable {
+    /**
+     * The dispatcher on which the native (CPU-bound) stages are run.
+     */
+    private val cpu = newFixedThreadPoolContext(configuration.threads, "vision-cpu")
+
+    /**
+     * The dispatcher on which the catalogue is queried.
+     */
+    private val io = newFixedThreadPoolContext(configuration.catalogueThreads, "vision-catalogue")
+
+    /**
+     * The queue of segments of which the text should be extracted.
+     */
+    private val ocr = Channel<OcrTask>(configuration.capacity)
+
+    /**
+     * The queue of text fragments that should be matched against the catalogue.
+     */
+    private val matches = Channel<MatchTask>(configuration.capacity)
+
+    /**
+     * The time spent in each stage of the pipeline.
+     */
+    val statistics = PipelineStatistics()
+
+    override fun metrics(): Map<String, Any> = mapOf("vision.pipeline" to statistics.snapshot())
+
+    /**
+     * A flag to indicate whether the service has been warmed up.
+     */
+    private val warm = AtomicBoolean(configuration.warmUpRuns == 0)
+
+    override val isReady: Boolean
+        get() = warm.get()
+
+    init {
+        repeat(configuration.ocrWorkers) {
+            launch(cpu) {
+                for (task in ocr) {
+                    task.execute { statistics.measure(PipelineStage.OCR) { extractor.batch(task.segments) } }
+                }
+            }
+        }
+
+        repeat(configuration.catalogueWorkers) {
+            launch(io) {
+                for (task in matches) {
+                    task.execute { statistics.measure(PipelineStage.MATCH) { match(task.text) } }
+                }
+            }
+        }
+    }
+
+    /**
+     * Warm up the detector and the text extractor by running a synthetic image through them, after which the service
+     * reports itself as ready. The warm-up is best-effort: the service is also marked ready if it fails, since the
+     * same failure would otherwise keep the service out of rotation indefinitely.
+     *
+     * @return The job that runs the warm-up.
+     */
+    fun warmUp(): Job = launch(cpu) {
+        try {
+            val image = syntheticBookshelf()
+            try {
+                repeat(configuration.warmUpRuns) {
+                    val scaled = image.downscale(configuration.detectionSize)
+                    val segments = try {
+                        detector.detect(scaled.image).map { scaled.toOriginal(it) }.filter { it.area() > 0 }
+                    } finally {
+                        scaled.release()
+                    }
+
+                    // Make sure the text extractor is exercised even if no books have been found
+                    val fallback = Rect(0, 0, image.cols() / 10, image.rows())
+                    val crops = (if (segments.isEmpty()) listOf(fallback) else segments)
+                        .take(configuration.ocrBatchSize)
+                        .map { Mat(image, it) }
+                    extractor.batch(crops)
+                }
+            } finally {
+                image.release()
+            }
+        } finally {
+            warm.set(true)
+        }
+    }
+
     /**
      * Detect the books in the given image.
      *
      * @param image The image to detect the books in.
+     * @param owner The owner (e.g. the user) on whose behalf the image is detected, which scopes the cached results,
+     * or `null` to bypass the cache.
      * @return A list of books that has been detected.
      */
-    suspend fun detect(image: Mat): List<BookDetection> {
-        val segments = detector.detect(image)
-        val text = extractor.batch(segments.map { Mat(image, it) })
-        return segments
-            .zip(text)
-            .map { (segment, part) ->
-                async {
-                    part
-                        .takeUnless { it.isBlank() }
-                        ?.let { catalogue.query(it, max = 1) }
-                        ?.let { BookDetection(segment, it) }
+    suspend fun detect(image: Mat, owner: String? = null): List<BookDetection> {
+        val key = key(image, owner)
+        key?.let { cache.get(it) }?.let { return it }
+
+        val pending = mutableListOf<Pair<Rect, MatchTask>>()
+        try {
+            submit(image) { segment, task -> pending += segment to task }
+            val result = pending.map { (segment, task) -> BookDetection(segment, task.result.await()) }
+            key?.let { cache.put(it, result) }
+            return result
+        } finally {
+            // Do not let the workers waste any time on a request that has failed
+            pending.forEach { it.second.result.cancel() }
+        }
+    }
+
+    /**
+     * Detect the books in the given image and emit each detection as soon as it has been matched against the
+     * catalogue.
+     *
+     * As opposed to [detect], the detections are emitted in the order in which they complete, instead of the order
+     * in which the books appear in the image.
+     *
+     * @param image The image to detect the books in.
+     * @param owner The owner (e.g. the user) on whose behalf the image is detected, which scopes the cached results,
+     * or `null` to bypass the cache.
+     * @return A channel that emits the books that have been detected.
+     */
+    fun stream(image: Mat, owner: String? = null): ReceiveChannel<BookDetection> = produce {
+        val key = key(image, owner)
+        val cached = key?.let { cache.get(it) }
+        if (cached != null) {
+            cached.forEach { send(it) }
+            return@produce
+        }
+
+        val segments = mutableListOf<Rect>()
+        val pending = mutableListOf<MatchTask>()
+        val emitters = mutableListOf<Deferred<Unit>>()
+        try {
+            submit(image) { segment, task ->
+                segments += segment
+                pending += task
+                emitters += async(coroutineContext) { send(BookDetection(segment, task.result.await())) }
+            }
+            emitters.forEach { it.await() }
+            if (key != null) {
+                val result = segments.zip(pending) { box, task -> BookDetection(box, task.result.getCompleted()) }
+                cache.put(key, result)
+            }
+        } finally {
+            pending.forEach { it.result.cancel() }
+        }
+    }
+
+    /**
+     * Compute the key of the given image to look up its result in the cache.
+     *
+     * @return The key of the image or `null` if the cache is disabled or there is no owner to scope it to.
+     */
+    private suspend fun key(image: Mat, owner: String?): DetectionCacheKey? {
+        if (!cache.isEnabled || owner == null) {
+            return null
+        }
+        return DetectionCacheKey(owner, withContext(cpu) { image.fingerprint() })
+    }
+
+    /**
+     * Run the given image through the detection and OCR stages of the pipeline and submit the extracted text to the
+     * match stage.
+     *
+     * @param image The image to detect the books in.
+     * @param callback The callback to invoke for each text fragment that has been submitted to the match stage.
+     */
+    private suspend fun submit(image: Mat, callback: suspend (Rect, MatchTask) -> Unit) {
+        val segments = withContext(cpu) {
+            val scaled = statistics.measure(PipelineStage.SCALE) { image.downscale(configuration.detectionSize) }
+            try {
+                // Boxes that collapse when mapped back onto the original image cannot be cropped
+                statistics.measure(PipelineStage.DETECTION) { detector.detect(scaled.image) }
+                    .map { scaled.toOriginal(it) }
+                    .filter { it.area() > 0 }
+            } finally {
+                scaled.release()
+            }
+        }
+
+        val batches = segments
+            .chunked(configuration.ocrBatchSize)
+            .map { batch ->
+                val crops = statistics.measure(PipelineStage.CROP) { batch.map { Mat(image, it) } }
+                batch to OcrTask(crops).also { ocr.send(it) }
+            }
+
+        try {
+            for ((batch, task) in batches) {
+                for ((segment, part) in batch.zip(task.result.await())) {
+                    if (part.isBlank()) {
+                        continue
+                    }
+                    callback(segment, MatchTask(part).also { matches.send(it) })
                 }
             }
-            .mapNotNull { it.await() }
+        } finally {
+            batches.forEach { it.second.result.cancel() }
+        }
+    }
+
+    /**
+     * Match the given text fragment against the persisted books or fall back to the catalogue if no confident
+     * match could be found.
+     *
+     * A detection is still useful without a match, so when the external catalogue is unavailable (i.e. its circuit
+     * is open and there is no catalogue to fail over to), the fragment is reported without any matches.
+     *
+     * @param text The text to match.
+     * @return The books that have been matched.
+     */
+    private suspend fun match(text: String): List<Book> {
+        val match = catalogue.match(text, max = 1).firstOrNull()
+        return when {
+            match != null && match.confidence >= configuration.matchConfidence -> listOf(match.book)
+            configuration.remoteFallback -> try {
+                catalogue.query(text, max = 1, localFirst = true)
+            } catch (e: CircuitOpenException) {
+                emptyList()
+            }
+            else -> emptyList()
+        }
+    }
+
+    override fun close() {
+        ocr.close()
+        matches.close()
+        cpu.close()
+        io.close()
+    }
+
+    /**
+     * A task for the pipeline.
+     *
+     * @param T The type of the result of the task.
+     */
+    private abstract class Task<T> {
+        /**
+         * The result of the task.
+         */
+        val result = CompletableDeferred<T>()
+
+        /**
+         * Run the given block for this task unless it has already been cancelled.
+         */
+        inline fun execute(block: () -> T) {
+            if (result.isCompleted) {
+                return
+            }
+
+            try {
+                result.complete(block())
+            } catch (e: Throwable) {
+                result.completeExceptionally(e)
+            }
+        }
     }
+
+    /**
+     * A task to extract the text from the given batch of segments.
+     */
+    private class OcrTask(val segments: List<Mat>) : Task<List<String>>()
+
+    /**
+     * A task to match the given text fragment against the catalogue.
+     */
+    private class MatchTask(val text: String) : Task<List<Book>>()
 }
 
 /**
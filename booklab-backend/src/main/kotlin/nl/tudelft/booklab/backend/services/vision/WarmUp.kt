@@ -0,0 +1,52 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.vision
+
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Point
+import org.opencv.core.Scalar
+import org.opencv.imgproc.Imgproc
+import java.util.Random
+
+/**
+ * Draw a synthetic bookshelf that is used to warm up the native detection and OCR paths.
+ *
+ * The image consists of a row of differently colored spines with some text on them, such that both the detector and
+ * the text extractor run through their regular code paths.
+ *
+ * @param width The width of the image in pixels.
+ * @param height The height of the image in pixels.
+ * @return The synthetic image in BGR format.
+ */
+internal fun syntheticBookshelf(width: Int = 1600, height: Int = 1200): Mat {
+    val image = Mat(height, width, CvType.CV_8UC3, Scalar.all(255.0))
+    val random = Random(42)
+    var x = 0
+    while (x < width) {
+        val spine = 60 + random.nextInt(80)
+        val color = Scalar(random.nextInt(200) * 1.0, random.nextInt(200) * 1.0, random.nextInt(200) * 1.0)
+        val top = height / 10 + random.nextInt(height / 10)
+        Imgproc.rectangle(image, Point(x.toDouble(), top.toDouble()), Point((x + spine - 4).toDouble(), height - 1.0),
+            color, Core.FILLED)
+        Imgproc.putText(image, "BOOK", Point(x + 4.0, height / 2.0), Core.FONT_HERSHEY_SIMPLEX, spine / 90.0,
+            Scalar.all(255.0), 2)
+        x += spine
+    }
+    return image
+}
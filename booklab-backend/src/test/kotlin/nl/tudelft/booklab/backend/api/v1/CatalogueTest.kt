@@ -112,7 +112,7 @@ internal class CatalogueTest {
         ))
 
         catalogue.stub {
-            onBlocking { query(eq("hello"), eq(5)) } doReturn books
+            onBlocking { query(eq("hello"), eq(5), eq(false)) } doReturn books
         }
         val request = handleRequest(HttpMethod.Get, "/api/catalogue?query=hello") {
             configureAuthorization("test", listOf("catalogue"))
@@ -126,7 +126,7 @@ internal class CatalogueTest {
         }
 
         verifyBlocking(catalogue) {
-            query(eq("hello"), eq(5))
+            query(eq("hello"), eq(5), eq(false))
         }
     }
 
@@ -139,7 +139,7 @@ internal class CatalogueTest {
             authors = listOf("Harry Mulisch")
         ))
         catalogue.stub {
-            onBlocking { query(eq("Test"), eq("Test"), eq(5)) } doReturn books
+            onBlocking { query(eq("Test"), eq("Test"), eq(5), eq(false)) } doReturn books
         }
         val request = handleRequest(HttpMethod.Get, "/api/catalogue?title=Test&author=Test") {
             configureAuthorization("test", listOf("catalogue"))
@@ -153,7 +153,7 @@ internal class CatalogueTest {
         }
 
         verifyBlocking(catalogue) {
-            query(eq("Test"), eq("Test"), eq(5))
+            query(eq("Test"), eq("Test"), eq(5), eq(false))
         }
     }
 
@@ -166,7 +166,7 @@ internal class CatalogueTest {
             authors = listOf("Harry Mulisch")
         ))
         catalogue.stub {
-            onBlocking { query(eq("Test"), eq("Test"), eq(5)) } doReturn books
+            onBlocking { query(eq("Test"), eq("Test"), eq(5), eq(false)) } doReturn books
         }
         val request = handleRequest(HttpMethod.Get, "/api/catalogue?title=Test") {
             configureAuthorization("test", listOf("catalogue"))
@@ -189,7 +189,7 @@ internal class CatalogueTest {
             authors = listOf("Harry Mulisch")
         ))
         catalogue.stub {
-            onBlocking { query(eq("Test"), eq("Test"), eq(10)) } doReturn books
+            onBlocking { query(eq("Test"), eq("Test"), eq(10), eq(false)) } doReturn books
         }
         val request = handleRequest(HttpMethod.Get, "/api/catalogue?title=Test&author=Test&max=10") {
             configureAuthorization("test", listOf("catalogue"))
@@ -203,7 +203,7 @@ internal class CatalogueTest {
         }
 
         verifyBlocking(catalogue) {
-            query(eq("Test"), eq("Test"), eq(10))
+            query(eq("Test"), eq("Test"), eq(10), eq(false))
         }
     }
 
@@ -218,7 +218,7 @@ internal class CatalogueTest {
             )
         )
         catalogue.stub {
-            onBlocking { query(eq("Test"), eq("Test"), eq(5)) } doReturn books
+            onBlocking { query(eq("Test"), eq("Test"), eq(5), eq(false)) } doReturn books
         }
         val request = handleRequest(HttpMethod.Get, "/api/catalogue?title=Test&author=Test&max=twenty") {
             configureAuthorization("test", listOf("catalogue"))
@@ -232,7 +232,7 @@ internal class CatalogueTest {
         }
 
         verifyBlocking(catalogue) {
-            query(eq("Test"), eq("Test"), eq(5))
+            query(eq("Test"), eq("Test"), eq(5), eq(false))
         }
     }
 
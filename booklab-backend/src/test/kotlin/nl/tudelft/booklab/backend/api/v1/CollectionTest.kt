@@ -36,6 +36,7 @@ import io.ktor.routing.Routing
 import io.ktor.routing.route
 import io.ktor.server.testing.handleRequest
 import io.ktor.server.testing.setBody
+import kotlinx.coroutines.experimental.runBlocking
 import nl.tudelft.booklab.backend.booklab
 import nl.tudelft.booklab.backend.configureAuthorization
 import nl.tudelft.booklab.backend.createTestContext
@@ -110,6 +111,14 @@ internal class CollectionTest {
         userService = mock()
         catalogueService = mock()
 
+        // Resolve batch lookups through the lookups stubbed per identifier
+        catalogueService.stub {
+            onBlocking { findByIds(any()) } doAnswer { invocation ->
+                val ids: List<String> = invocation.getArgument(0)
+                runBlocking { ids.associate { it to catalogueService.findById(it) } }
+            }
+        }
+
         mapper.registerModule(SimpleModule().apply {
             addDeserializer(User::class.java, JacksonUserDeserializer(userService))
         })
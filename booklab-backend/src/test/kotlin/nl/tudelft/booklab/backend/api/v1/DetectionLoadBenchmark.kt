@@ -0,0 +1,338 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.api.v1
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.mock
+import io.ktor.application.Application
+import io.ktor.http.ContentType
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpMethod
+import io.ktor.http.HttpStatusCode
+import io.ktor.routing.Routing
+import io.ktor.routing.route
+import io.ktor.server.testing.TestApplicationEngine
+import io.ktor.server.testing.handleRequest
+import io.ktor.server.testing.setBody
+import kotlinx.coroutines.experimental.delay
+import nl.tudelft.booklab.backend.booklab
+import nl.tudelft.booklab.backend.configureAuthorization
+import nl.tudelft.booklab.backend.createTestContext
+import nl.tudelft.booklab.backend.createTestEnvironment
+import nl.tudelft.booklab.backend.ktor.Routes
+import nl.tudelft.booklab.backend.services.catalogue.BookMatcher
+import nl.tudelft.booklab.backend.services.catalogue.CatalogueRepository
+import nl.tudelft.booklab.backend.services.catalogue.CatalogueService
+import nl.tudelft.booklab.backend.services.vision.DetectionCache
+import nl.tudelft.booklab.backend.services.vision.DetectionCacheConfiguration
+import nl.tudelft.booklab.backend.services.vision.VisionPipelineConfiguration
+import nl.tudelft.booklab.backend.services.vision.VisionService
+import nl.tudelft.booklab.backend.spring.bootstrap
+import nl.tudelft.booklab.catalogue.CatalogueClient
+import nl.tudelft.booklab.catalogue.Identifier
+import nl.tudelft.booklab.vision.detection.BookDetector
+import nl.tudelft.booklab.vision.detection.opencv.CannyBookDetector
+import nl.tudelft.booklab.vision.detection.tensorflow.TensorflowBookDetector
+import nl.tudelft.booklab.vision.detection.tensorflow.TensorflowInferenceConfiguration
+import nl.tudelft.booklab.vision.ocr.tesseract.TesseractPool
+import nl.tudelft.booklab.vision.ocr.tesseract.TesseractTextExtractor
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.TestInstance
+import org.springframework.context.support.beans
+import java.io.InputStream
+import java.util.concurrent.Callable
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executors
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.math.ceil
+import nl.tudelft.booklab.backend.services.catalogue.Book as PersistentBook
+import nl.tudelft.booklab.catalogue.Book as AbstractBook
+
+/**
+ * A load benchmark for the `/api/detection` endpoint that runs entirely offline, such that it yields a repeatable
+ * throughput and latency figure for the full detection path.
+ *
+ * The application is booted with a local detector and the Tesseract text extractor, while the external catalogue is
+ * replaced by a stand-in that replays the books on the benchmark shelves after a fixed delay. The bookshelf images are
+ * then posted by a number of concurrent clients, after which the throughput, the latency percentiles and the time
+ * spent in each stage of the pipeline are reported.
+ *
+ * The load can be configured using the `BENCHMARK_CLIENTS`, `BENCHMARK_REQUESTS` (per client),
+ * `BENCHMARK_CATALOGUE_LATENCY` (in milliseconds) and `BENCHMARK_DETECTION_SIZE` (in pixels) environmental variables.
+ */
+@Tag("benchmark")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+sealed class DetectionLoadBenchmark {
+    /**
+     * The test environment to use.
+     */
+    private lateinit var engine: TestApplicationEngine
+
+    /**
+     * The pool of Tesseract engines.
+     */
+    private lateinit var pool: TesseractPool
+
+    /**
+     * The vision service under load.
+     */
+    private lateinit var vision: VisionService
+
+    /**
+     * The bookshelf images to post.
+     */
+    private lateinit var images: List<ByteArray>
+
+    /**
+     * The amount of concurrent clients.
+     */
+    private val clients = System.getenv("BENCHMARK_CLIENTS")?.toIntOrNull() ?: 4
+
+    /**
+     * The amount of requests each client makes.
+     */
+    private val requests = System.getenv("BENCHMARK_REQUESTS")?.toIntOrNull() ?: 10
+
+    /**
+     * The simulated latency of the external catalogue in milliseconds.
+     */
+    private val latency = System.getenv("BENCHMARK_CATALOGUE_LATENCY")?.toLongOrNull() ?: 50
+
+    /**
+     * The size of the longest edge of the image on which books are detected (or zero for full resolution).
+     */
+    private val detectionSize = System.getenv("BENCHMARK_DETECTION_SIZE")?.toIntOrNull() ?: 0
+
+    /**
+     * Create the detector to put under load.
+     */
+    protected abstract fun createDetector(): BookDetector
+
+    @BeforeAll
+    fun setUpClass() {
+        images = SHELVES.map { name -> resource("$PREFIX/bookshelf-$name").use { it.readBytes() } }
+        pool = resource("/tesseract/languages/english").use { TesseractPool(it) }
+
+        // The matcher only yields identifiers, so the saved books have to be found again
+        val saved = ConcurrentHashMap<String, PersistentBook>()
+        val repository = mock<CatalogueRepository> {
+            on { save(any<PersistentBook>()) } doAnswer {
+                it.getArgument<PersistentBook>(0).also { book -> saved[book.id] = book }
+            }
+            on { findAllById(any()) } doAnswer { it.getArgument<Iterable<String>>(0).mapNotNull { id -> saved[id] } }
+        }
+        val catalogue = CatalogueService(repository, ReplayCatalogueClient(books(), latency), matcher = BookMatcher())
+        val configuration = VisionPipelineConfiguration(detectionSize = detectionSize)
+        // The same images are posted repeatedly, so the detection cache would hide the cost of the pipeline
+        val cache = DetectionCache(DetectionCacheConfiguration(maximumSize = 0))
+        vision = VisionService(createDetector(), TesseractTextExtractor(pool), catalogue, configuration, cache = cache)
+
+        engine = TestApplicationEngine(createTestEnvironment { module() })
+        engine.start()
+
+        // Warm up the application and populate the persisted books
+        images.forEach { post(it) }
+    }
+
+    @AfterAll
+    fun tearDownClass() {
+        engine.stop(0L, 0L, TimeUnit.MILLISECONDS)
+        vision.close()
+        pool.close()
+    }
+
+    @Test
+    fun `detection endpoint sustains concurrent load`() {
+        val executor = Executors.newFixedThreadPool(clients)
+        val next = AtomicInteger()
+        val start = System.nanoTime()
+        val before = vision.statistics.snapshot()
+
+        val latencies = try {
+            executor.invokeAll(List(clients) {
+                Callable {
+                    LongArray(requests) {
+                        val image = images[next.getAndIncrement() % images.size]
+                        val begin = System.nanoTime()
+                        assertEquals(HttpStatusCode.OK, post(image))
+                        System.nanoTime() - begin
+                    }
+                }
+            }).flatMap { it.get().asList() }
+        } finally {
+            executor.shutdown()
+        }
+
+        val elapsed = (System.nanoTime() - start) / 1e9
+        val sorted = latencies.sorted()
+        println("Requests: ${sorted.size} by $clients clients in ${"%.2f".format(elapsed)} s")
+        println("Throughput: ${"%.2f".format(sorted.size / elapsed)} requests/s")
+        for (q in listOf(0.5, 0.95, 0.99)) {
+            println("p${(q * 100).toInt()}: ${"%.1f".format(percentile(sorted, q) / 1e6)} ms")
+        }
+
+        val after = vision.statistics.snapshot()
+        for ((stage, statistics) in after) {
+            val count = statistics.count - before.getValue(stage).count
+            val total = statistics.total - before.getValue(stage).total
+            val average = if (count > 0) total / count else 0.0
+            println("$stage: $count runs, ${"%.1f".format(total)} ms total, ${"%.2f".format(average)} ms average")
+        }
+    }
+
+    /**
+     * Post the given image to the detection endpoint.
+     *
+     * @return The status of the response.
+     */
+    private fun post(image: ByteArray): HttpStatusCode? = engine.handleRequest(HttpMethod.Post, "/api/detection") {
+        setBody(image)
+        configureAuthorization("test", listOf("detection"))
+        addHeader(HttpHeaders.ContentType, ContentType.Application.OctetStream.toString())
+    }.response.status()
+
+    /**
+     * Determine the given percentile of the sorted latencies.
+     */
+    private fun percentile(sorted: List<Long>, q: Double): Long =
+        sorted[maxOf(0, ceil(q * sorted.size).toInt() - 1)]
+
+    /**
+     * Open the given resource.
+     */
+    private fun resource(name: String): InputStream = DetectionLoadBenchmark::class.java.getResourceAsStream(name)
+
+    /**
+     * Read the books on the benchmark shelves, which the stand-in catalogue replays.
+     */
+    private fun books(): List<AbstractBook> = (1..9).flatMap { i ->
+        val titles = lines("$PREFIX/titles-$i.txt")
+        val authors = lines("$PREFIX/authors-$i.txt")
+        titles.mapIndexed { j, title ->
+            val id = "$i-$j"
+            PersistentBook(id, mapOf(Identifier.INTERNAL to id), title, authors = listOfNotNull(authors.getOrNull(j)))
+        }
+    }
+
+    /**
+     * Read the non-blank lines of the given resource or return an empty list if it does not exist.
+     */
+    private fun lines(resource: String): List<String> =
+        DetectionLoadBenchmark::class.java.getResourceAsStream(resource)
+            ?.reader()
+            ?.useLines { lines -> lines.filter { it.isNotBlank() }.toList() }
+            ?: emptyList()
+
+    /**
+     * A method to configure the test application.
+     */
+    private fun Application.module() {
+        val context = createTestContext {
+            beans {
+                // Application routes
+                bean("routes") { Routes.from { routes() } }
+
+                bean { vision }
+            }.initialize(this)
+        }
+        context.bootstrap(this) { booklab() }
+    }
+
+    /**
+     * The routes of the application.
+     */
+    private fun Routing.routes() {
+        route("/api/detection") { detection() }
+    }
+
+    /**
+     * A stand-in for an external catalogue that answers each query with the recorded book that shares the most words
+     * with the query, after the given delay.
+     *
+     * @property books The recorded books to replay.
+     * @property latency The simulated latency of each call in milliseconds.
+     */
+    private class ReplayCatalogueClient(
+        private val books: List<AbstractBook>,
+        private val latency: Long
+    ) : CatalogueClient {
+        /**
+         * The lowercase words of each recorded book.
+         */
+        private val words = books.map { words("${it.title} ${it.authors.joinToString(" ")}") }
+
+        override suspend fun find(isbn: String): AbstractBook? {
+            delay(latency)
+            return books.find { isbn in it.identifiers.values }
+        }
+
+        override suspend fun query(keywords: String, max: Int): List<AbstractBook> {
+            delay(latency)
+            val query = words(keywords)
+            return books.indices
+                .map { it to words[it].count { word -> word in query } }
+                .filter { it.second > 0 }
+                .sortedByDescending { it.second }
+                .take(max)
+                .map { books[it.first] }
+        }
+
+        override suspend fun query(title: String, author: String, max: Int): List<AbstractBook> =
+            query("$title $author", max)
+
+        private fun words(text: String): Set<String> =
+            text.toLowerCase().split(Regex("\\W+")).filter { it.length > 1 }.toSet()
+    }
+
+    /**
+     * A load benchmark of the Canny detector.
+     */
+    class CannyLoadBenchmark : DetectionLoadBenchmark() {
+        override fun createDetector(): BookDetector = CannyBookDetector()
+    }
+
+    /**
+     * A load benchmark of the Tensorflow detector, which batches concurrent images up to `BENCHMARK_BATCH_SIZE`.
+     */
+    class TensorflowLoadBenchmark : DetectionLoadBenchmark() {
+        override fun createDetector(): BookDetector {
+            val batchSize = System.getenv("BENCHMARK_BATCH_SIZE")?.toIntOrNull() ?: 1
+            val configuration = TensorflowInferenceConfiguration(batchSize = batchSize)
+            return TensorflowBookDetector::class.java
+                .getResourceAsStream("/tensorflow/inception-book-model.pb")
+                .use { TensorflowBookDetector(it, 50_000_000, configuration = configuration) }
+        }
+    }
+
+    companion object {
+        /**
+         * The location of the benchmark resources.
+         */
+        private const val PREFIX = "/benchmark/detection"
+
+        /**
+         * The bookshelf images to post.
+         */
+        private val SHELVES = listOf("1.jpg", "2.jpg", "3.jpg", "4.jpg", "5.jpg", "6.jpg", "7.JPG", "8.JPG", "9.JPG")
+    }
+}
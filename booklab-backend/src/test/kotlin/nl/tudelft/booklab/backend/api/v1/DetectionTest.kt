@@ -49,8 +49,10 @@ import nl.tudelft.booklab.vision.detection.BookDetector
 import nl.tudelft.booklab.vision.ocr.TextExtractor
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertNotNull
+import org.junit.jupiter.api.Assertions.assertNull
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.mockito.ArgumentMatchers.anyBoolean
 import org.mockito.ArgumentMatchers.anyInt
 import org.mockito.ArgumentMatchers.anyString
 import org.opencv.core.Rect
@@ -110,7 +112,7 @@ internal class DetectionTest {
             authors = listOf("Harry Mulisch")
         )
         catalogue.stub {
-            onBlocking { query(anyString(), anyInt()) } doReturn listOf(book)
+            onBlocking { query(anyString(), anyInt(), anyBoolean()) } doReturn listOf(book)
         }
 
         val image = DetectionTest::class.java.getResourceAsStream("/test-image.jpg").readBytes()
@@ -144,7 +146,7 @@ internal class DetectionTest {
             authors = listOf("Harry Mulisch")
         )
         catalogue.stub {
-            onBlocking { query(anyString(), anyInt()) } doReturn listOf(book)
+            onBlocking { query(anyString(), anyInt(), anyBoolean()) } doReturn listOf(book)
         }
 
         val image = DetectionTest::class.java.getResourceAsStream("/test-image.jpg").readBytes()
@@ -178,7 +180,7 @@ internal class DetectionTest {
             authors = listOf("Harry Mulisch")
         )
         catalogue.stub {
-            onBlocking { query(anyString(), anyInt()) } doReturn listOf(book)
+            onBlocking { query(anyString(), anyInt(), anyBoolean()) } doReturn listOf(book)
         }
 
         val image = DetectionTest::class.java.getResourceAsStream("/test-image.jpg").readBytes()
@@ -198,6 +200,9 @@ internal class DetectionTest {
 
     @Test
     fun `post handles internal server error`() = withTestEngine({ module() }) {
+        detector.stub {
+            on { detect(any()) } doReturn(listOf(Rect(2, 3, 4, 5)))
+        }
         extractor.stub {
             on { batch(any()) } doThrow RuntimeException("This is staged.")
         }
@@ -208,7 +213,7 @@ internal class DetectionTest {
             authors = listOf("Harry Mulisch")
         )
         catalogue.stub {
-            onBlocking { query(anyString(), anyInt()) } doReturn listOf(book)
+            onBlocking { query(anyString(), anyInt(), anyBoolean()) } doReturn listOf(book)
         }
 
         val image = DetectionTest::class.java.getResourceAsStream("/test-image.jpg").readBytes()
@@ -225,6 +230,68 @@ internal class DetectionTest {
         }
     }
 
+    @Test
+    fun `stream returns detections followed by summary`() = withTestEngine({ module() }) {
+        detector.stub {
+            on { detect(any()) } doReturn(listOf(Rect(2, 3, 4, 5)))
+        }
+        extractor.stub {
+            on { batch(any()) } doReturn (listOf("De ontdekking van Harry Mulisch"))
+        }
+        val book = Book(
+            id = "test",
+            identifiers = mapOf(Identifier.INTERNAL to "test"),
+            title = "The ontdekking van de hemel",
+            authors = listOf("Harry Mulisch")
+        )
+        catalogue.stub {
+            onBlocking { query(anyString(), anyInt(), anyBoolean()) } doReturn listOf(book)
+        }
+
+        val image = DetectionTest::class.java.getResourceAsStream("/test-image.jpg").readBytes()
+        val request = handleRequest(HttpMethod.Post, "/api/detection/stream") {
+            setBody(image)
+            configureAuthorization("test", listOf("detection"))
+            addHeader(HttpHeaders.ContentType, ContentType.Application.OctetStream.toString())
+        }
+        with(request) {
+            assertEquals(HttpStatusCode.OK, response.status())
+            val lines = response.content?.lines()?.filter { it.isNotBlank() }
+            assertEquals(2, lines?.size)
+
+            val detection: ApiResponse.Success<BookDetection>? = lines?.first()?.let { mapper.readValue(it) }
+            assertEquals(Rect(2, 3, 4, 5), detection?.data?.box)
+
+            val summary: ApiResponse.Success<BookDetection?>? = lines?.last()?.let { mapper.readValue(it) }
+            assertNull(summary?.data)
+            assertEquals(1, summary?.meta?.get("count"))
+        }
+    }
+
+    @Test
+    fun `stream terminates with error on failure`() = withTestEngine({ module() }) {
+        detector.stub {
+            on { detect(any()) } doReturn(listOf(Rect(2, 3, 4, 5)))
+        }
+        extractor.stub {
+            on { batch(any()) } doThrow RuntimeException("This is staged.")
+        }
+
+        val image = DetectionTest::class.java.getResourceAsStream("/test-image.jpg").readBytes()
+        val request = handleRequest(HttpMethod.Post, "/api/detection/stream") {
+            setBody(image)
+            configureAuthorization("test", listOf("detection"))
+            addHeader(HttpHeaders.ContentType, ContentType.Application.OctetStream.toString())
+        }
+        with(request) {
+            val lines = response.content?.lines()?.filter { it.isNotBlank() }
+            assertEquals(1, lines?.size)
+
+            val response: ApiResponse.Failure? = lines?.last()?.let { mapper.readValue(it) }
+            assertEquals("server_error", response?.error?.code)
+        }
+    }
+
     @Test
     fun `non-post method not allowed`() = withTestEngine({ module() }) {
         val request = handleRequest(HttpMethod.Get, "/api/detection") {
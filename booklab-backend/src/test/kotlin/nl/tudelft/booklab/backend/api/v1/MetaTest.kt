@@ -28,8 +28,11 @@ import io.ktor.routing.route
 import io.ktor.server.testing.contentType
 import io.ktor.server.testing.handleRequest
 import nl.tudelft.booklab.backend.booklab
+import nl.tudelft.booklab.backend.configureAuthorization
 import nl.tudelft.booklab.backend.createTestContext
 import nl.tudelft.booklab.backend.ktor.Routes
+import nl.tudelft.booklab.backend.services.health.MetricsSource
+import nl.tudelft.booklab.backend.services.health.ReadinessCheck
 import nl.tudelft.booklab.backend.spring.bootstrap
 import nl.tudelft.booklab.backend.withTestEngine
 import org.junit.jupiter.api.Assertions.assertEquals
@@ -65,6 +68,24 @@ internal class MetaTest {
         }
     }
 
+    @Test
+    fun `health check should report unavailable while warming up`() = withTestEngine({ module(ready = false) }) {
+        with(handleRequest(HttpMethod.Get, "/api/health")) {
+            assertEquals(HttpStatusCode.ServiceUnavailable, response.status())
+            assertTrue(response.contentType().match(ContentType.Application.Json))
+
+            val response: ApiResponse.Failure? = response.content?.let { mapper.readValue(it) }
+            assertEquals("not_ready", response?.error?.code)
+        }
+    }
+
+    @Test
+    fun `health check should return true once ready`() = withTestEngine({ module(ready = true) }) {
+        with(handleRequest(HttpMethod.Get, "/api/health")) {
+            assertEquals(HttpStatusCode.OK, response.status())
+        }
+    }
+
     @Test
     fun `health check requires GET`() = withTestEngine({ module() }) {
         with(handleRequest(HttpMethod.Post, "/api/health")) {
@@ -76,11 +97,63 @@ internal class MetaTest {
         }
     }
 
-    private fun Application.module() {
+    @Test
+    fun `metrics should require authorization`() = withTestEngine({ module() }) {
+        with(handleRequest(HttpMethod.Get, "/api/metrics")) {
+            assertEquals(HttpStatusCode.Unauthorized, response.status())
+        }
+    }
+
+    @Test
+    fun `metrics should require the metrics scope`() = withTestEngine({ module() }) {
+        val request = handleRequest(HttpMethod.Get, "/api/metrics") {
+            configureAuthorization("test", listOf("test"))
+        }
+        with(request) {
+            assertEquals(HttpStatusCode.Forbidden, response.status())
+        }
+    }
+
+    @Test
+    fun `metrics should report statistics of all sources`() = withTestEngine({ module(ready = true) }) {
+        val request = handleRequest(HttpMethod.Get, "/api/metrics") {
+            configureAuthorization("test", listOf("metrics"))
+        }
+        with(request) {
+            assertEquals(HttpStatusCode.OK, response.status())
+            assertTrue(response.contentType().match(ContentType.Application.Json))
+
+            val response: ApiResponse.Success<Map<String, Map<String, Any>>>? =
+                response.content?.let { mapper.readValue(it) }
+            assertEquals(mapOf("test" to mapOf("count" to 1)), response?.data)
+        }
+    }
+
+    @Test
+    fun `metrics requires GET`() = withTestEngine({ module() }) {
+        val request = handleRequest(HttpMethod.Post, "/api/metrics") {
+            configureAuthorization("test", listOf("metrics"))
+        }
+        with(request) {
+            assertEquals(HttpStatusCode.MethodNotAllowed, response.status())
+        }
+    }
+
+    private fun Application.module(ready: Boolean? = null) {
         val context = createTestContext {
             beans {
                 // Application routes
                 bean("routes") { Routes.from { routes() } }
+
+                if (ready != null) {
+                    bean<ReadinessCheck> { object : ReadinessCheck { override val isReady = ready } }
+                }
+
+                bean<MetricsSource> {
+                    object : MetricsSource {
+                        override fun metrics(): Map<String, Any> = mapOf("test" to mapOf("count" to 1))
+                    }
+                }
             }.initialize(this)
         }
         context.bootstrap(this) { booklab() }
@@ -5,6 +5,7 @@ import com.fasterxml.jackson.databind.module.SimpleModule
 import com.fasterxml.jackson.module.kotlin.jacksonObjectMapper
 import com.fasterxml.jackson.module.kotlin.readValue
 import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
 import com.nhaarman.mockitokotlin2.doReturn
 import com.nhaarman.mockitokotlin2.eq
 import com.nhaarman.mockitokotlin2.mock
@@ -18,6 +19,7 @@ import io.ktor.routing.Routing
 import io.ktor.routing.route
 import io.ktor.server.testing.handleRequest
 import io.ktor.server.testing.setBody
+import kotlinx.coroutines.experimental.runBlocking
 import nl.tudelft.booklab.backend.booklab
 import nl.tudelft.booklab.backend.createTestContext
 import nl.tudelft.booklab.backend.ktor.Routes
@@ -69,6 +71,14 @@ internal class RecommendationTest {
         recommender = mock()
         collections = mock()
         catalogue = mock()
+
+        // Resolve batch lookups through the lookups stubbed per identifier
+        catalogue.stub {
+            onBlocking { findByIds(any()) } doAnswer { invocation ->
+                val ids: List<String> = invocation.getArgument(0)
+                runBlocking { ids.associate { it to catalogue.findById(it) } }
+            }
+        }
     }
 
     @Test
@@ -0,0 +1,339 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.catalogue
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.eq
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.stub
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import kotlinx.coroutines.experimental.runBlocking
+import nl.tudelft.booklab.catalogue.CatalogueClient
+import nl.tudelft.booklab.catalogue.Identifier
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.io.IOException
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+
+/**
+ * Test suite for the [CachingCatalogueClient] class.
+ */
+internal class CachingCatalogueClientTest {
+    /**
+     * The client of which the results are cached.
+     */
+    private lateinit var delegate: CatalogueClient
+
+    /**
+     * The clock to use.
+     */
+    private lateinit var clock: MutableClock
+
+    /**
+     * The [CachingCatalogueClient] to test.
+     */
+    private lateinit var client: CachingCatalogueClient
+
+    /**
+     * Dummy book instance.
+     */
+    private val book = Book(
+        id = "test",
+        identifiers = mapOf(Identifier.INTERNAL to "test"),
+        title = "The ontdekking van de hemel",
+        authors = listOf("Harry Mulisch")
+    )
+
+    @BeforeEach
+    fun setUp() {
+        delegate = mock()
+        clock = MutableClock()
+        val configuration = CatalogueCacheConfiguration(maximumSize = 2)
+        client = CachingCatalogueClient(delegate, configuration = configuration, clock = clock)
+    }
+
+    @Test
+    fun `query serves repeated lookups from memory`() {
+        delegate.stub {
+            onBlocking { query(any(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            assertEquals(listOf(book), client.query("Harry  Mulisch", 5))
+            assertEquals(listOf(book), client.query(" harry mulisch ", 5))
+            verify(delegate, times(1)).query(any(), any())
+        }
+
+        assertEquals(1L, client.statistics.hits)
+        assertEquals(1L, client.statistics.misses)
+    }
+
+    @Test
+    fun `query distinguishes the maximum amount of results`() {
+        delegate.stub {
+            onBlocking { query(any(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            client.query("test", 5)
+            client.query("test", 10)
+            verify(delegate, times(2)).query(any(), any())
+        }
+    }
+
+    @Test
+    fun `query caches empty results`() {
+        delegate.stub {
+            onBlocking { query(any(), any()) } doReturn emptyList<Book>()
+        }
+
+        runBlocking {
+            client.query("test", 5)
+            client.query("test", 5)
+            verify(delegate, times(1)).query(any(), any())
+        }
+
+        assertEquals(1L, client.statistics.negativeHits)
+    }
+
+    @Test
+    fun `query expires entries`() {
+        delegate.stub {
+            onBlocking { query(any(), any()) } doReturn emptyList<Book>()
+        }
+
+        runBlocking {
+            client.query("test", 5)
+            clock.advance(CatalogueCacheConfiguration().negativeTtl)
+            client.query("test", 5)
+            verify(delegate, times(2)).query(any(), any())
+        }
+
+        assertEquals(1L, client.statistics.expirations)
+    }
+
+    @Test
+    fun `query evicts least recently used entries`() {
+        delegate.stub {
+            onBlocking { query(any(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            client.query("a", 5)
+            client.query("b", 5)
+            client.query("a", 5)
+            client.query("c", 5)
+            client.query("a", 5)
+            verify(delegate, times(1)).query(eq("a"), any())
+        }
+
+        assertEquals(1L, client.statistics.evictions)
+        assertEquals(2, client.statistics.size)
+    }
+
+    @Test
+    fun `find caches missing books`() {
+        runBlocking {
+            assertNull(client.find("test"))
+            assertNull(client.find("test"))
+            verify(delegate, times(1)).find(any())
+        }
+    }
+
+    @Test
+    fun `findAll forwards only uncached books in a single call`() {
+        delegate.stub {
+            onBlocking { find(eq("test")) } doReturn book
+            onBlocking { findAll(eq(listOf("other", "unknown"))) } doReturn mapOf("other" to book)
+        }
+
+        runBlocking {
+            client.find("test")
+            assertEquals(mapOf("test" to book, "other" to book), client.findAll(listOf("test", "other", "unknown")))
+            assertEquals(mapOf("other" to book), client.findAll(listOf("other", "unknown")))
+            verify(delegate, times(1)).findAll(any())
+        }
+
+        assertEquals(3L, client.statistics.misses)
+        assertEquals(1L, client.statistics.negativeHits)
+    }
+
+    @Test
+    fun `query serves lookups from the database`() {
+        val books = mock<CatalogueRepository>()
+        val entries = mock<CatalogueCacheRepository>()
+        client = CachingCatalogueClient(delegate, books, entries, clock = clock)
+
+        entries.stubEntries(listOf("test"))
+        books.stub {
+            on { findAllById(eq(listOf("test"))) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            assertEquals(listOf(book), client.query("test", 5))
+            assertEquals(listOf(book), client.query("test", 5))
+            verify(delegate, never()).query(any(), any())
+        }
+
+        assertEquals(1L, client.statistics.persistentHits)
+        assertEquals(1L, client.statistics.hits)
+    }
+
+    @Test
+    fun `query deletes expired entries from the database`() {
+        val books = mock<CatalogueRepository>()
+        val entries = mock<CatalogueCacheRepository>()
+        val created = clock.instant()
+        client = CachingCatalogueClient(delegate, books, entries, clock = clock)
+        clock.advance(CatalogueCacheConfiguration().persistentTtl)
+
+        entries.stubEntries(listOf("test"), created)
+        delegate.stub {
+            onBlocking { query(any(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            assertEquals(listOf(book), client.query("test", 5))
+            verify(entries, times(1)).deleteAll(any<Iterable<CatalogueCacheEntry>>())
+        }
+
+        assertEquals(1L, client.statistics.expirations)
+    }
+
+    @Test
+    fun `purge deletes expired entries from the database`() {
+        val books = mock<CatalogueRepository>()
+        val entries = mock<CatalogueCacheRepository>()
+        val configuration = CatalogueCacheConfiguration()
+        client = CachingCatalogueClient(delegate, books, entries, configuration, clock)
+        clock.advance(configuration.persistentTtl)
+
+        entries.stub {
+            on { deleteByBooksIsEmptyAndCreatedAtBefore(any()) } doReturn 2L
+            on { deleteByCreatedAtBefore(any()) } doReturn 1L
+        }
+
+        assertEquals(3L, client.purge())
+        val negative = clock.instant().minusSeconds(configuration.negativeTtl)
+        verify(entries).deleteByBooksIsEmptyAndCreatedAtBefore(eq(negative))
+        verify(entries).deleteByCreatedAtBefore(eq(Instant.EPOCH))
+    }
+
+    @Test
+    fun `findAll looks up persisted books in a single query`() {
+        val books = mock<CatalogueRepository>()
+        val entries = mock<CatalogueCacheRepository>()
+        client = CachingCatalogueClient(delegate, books, entries, clock = clock)
+
+        entries.stubEntries(listOf("test"))
+        books.stub {
+            on { findAllById(eq(listOf("test"))) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            val expected = mapOf("a" to book, "b" to book, "c" to book)
+            assertEquals(expected, client.findAll(listOf("a", "b", "c")))
+            verify(delegate, never()).findAll(any())
+        }
+
+        verify(entries, times(1)).findAllById(any())
+        verify(books, times(1)).findAllById(any())
+        assertEquals(3L, client.statistics.persistentHits)
+    }
+
+    @Test
+    fun `query persists results`() {
+        val books = mock<CatalogueRepository>()
+        val entries = mock<CatalogueCacheRepository>()
+        client = CachingCatalogueClient(delegate, books, entries, clock = clock)
+
+        entries.stub {
+            on { findAllById(any()) } doReturn emptyList<CatalogueCacheEntry>()
+        }
+        delegate.stub {
+            onBlocking { query(any(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            client.query("test", 5)
+            verify(entries, times(1)).save(any<CatalogueCacheEntry>())
+        }
+    }
+
+    @Test
+    fun `query keeps failover results briefly and does not persist them`() {
+        val books = mock<CatalogueRepository>()
+        val entries = mock<CatalogueCacheRepository>()
+        val primary = mock<CatalogueClient>()
+        val resilient = ResilientCatalogueClient(primary, delegate, ResilienceConfiguration(hedging = false))
+        client = CachingCatalogueClient(resilient, books, entries, clock = clock)
+
+        entries.stub {
+            on { findAllById(any()) } doReturn emptyList<CatalogueCacheEntry>()
+        }
+        primary.stub {
+            onBlocking { query(any(), any()) } doAnswer { throw IOException() }
+        }
+        delegate.stub {
+            onBlocking { query(any(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            assertEquals(listOf(book), client.query("test", 5))
+            assertEquals(listOf(book), client.query("test", 5))
+            clock.advance(CatalogueCacheConfiguration().failoverTtl)
+            assertEquals(listOf(book), client.query("test", 5))
+            verify(delegate, times(2)).query(any(), any())
+            verify(entries, never()).save(any<CatalogueCacheEntry>())
+        }
+    }
+
+    /**
+     * Stub the repository to return an entry with the given books for every requested key.
+     */
+    private fun CatalogueCacheRepository.stubEntries(books: List<String>, createdAt: Instant = clock.instant()) {
+        stub {
+            on { findAllById(any()) } doAnswer { invocation ->
+                invocation.getArgument<Iterable<String>>(0).map { CatalogueCacheEntry(it, books, createdAt) }
+            }
+        }
+    }
+
+    /**
+     * A [Clock] that can be moved forward manually.
+     */
+    private class MutableClock(private var now: Instant = Instant.EPOCH) : Clock() {
+        fun advance(seconds: Long) {
+            now = now.plusSeconds(seconds)
+        }
+
+        override fun instant(): Instant = now
+
+        override fun getZone(): ZoneId = ZoneOffset.UTC
+
+        override fun withZone(zone: ZoneId): Clock = this
+    }
+}
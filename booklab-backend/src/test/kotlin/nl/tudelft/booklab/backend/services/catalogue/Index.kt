@@ -0,0 +1,147 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.catalogue
+
+import nl.tudelft.booklab.catalogue.Identifier
+import org.apache.lucene.store.RAMDirectory
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+
+/**
+ * Test suite for the [CatalogueIndex] class.
+ */
+internal class CatalogueIndexTest {
+    /**
+     * The [CatalogueIndex] to test.
+     */
+    private lateinit var index: CatalogueIndex
+
+    /**
+     * Dummy book instances.
+     */
+    private val hemel = Book(
+        id = "9789023427086",
+        identifiers = mapOf(Identifier.ISBN_13 to "9789023427086"),
+        title = "De ontdekking van de hemel",
+        authors = listOf("Harry Mulisch"),
+        publisher = "De Bezige Bij"
+    )
+    private val aanslag = Book(
+        id = "9789023468232",
+        identifiers = mapOf(Identifier.ISBN_13 to "9789023468232"),
+        title = "De aanslag",
+        authors = listOf("Harry Mulisch")
+    )
+    private val avond = Book(
+        id = "9789021414102",
+        identifiers = mapOf(Identifier.ISBN_13 to "9789021414102"),
+        title = "De avonden",
+        subtitle = "Een winterverhaal",
+        authors = listOf("Gerard Reve")
+    )
+
+    @BeforeEach
+    fun setUp() {
+        index = CatalogueIndex(RAMDirectory())
+        listOf(hemel, aanslag, avond).forEach { index.add(it) }
+    }
+
+    @AfterEach
+    fun tearDown() {
+        index.close()
+    }
+
+    @Test
+    fun `search finds book by keywords`() {
+        assertEquals(listOf(hemel.id), index.search("ontdekking hemel mulisch", 5))
+    }
+
+    @Test
+    fun `search ignores case and accents`() {
+        assertEquals(listOf(hemel.id), index.search("ONTDÉKKING HEMEL", 5))
+    }
+
+    @Test
+    fun `search rejects irrelevant books`() {
+        assertEquals(emptyList<String>(), index.search("harry potter steen der wijzen", 5))
+        assertEquals(1L, index.statistics.misses)
+    }
+
+    @Test
+    fun `search respects maximum amount of results`() {
+        assertEquals(1, index.search("mulisch", 1).size)
+        assertEquals(2, index.search("mulisch", 5).size)
+    }
+
+    @Test
+    fun `search finds book by title and author`() {
+        assertEquals(listOf(avond.id), index.search("avonden", "reve", 5))
+        assertEquals(emptyList<String>(), index.search("hobbit", "mulisch", 5))
+    }
+
+    @Test
+    fun `add updates indexed books`() {
+        index.add(Book(hemel.id, hemel.identifiers, "Het stenen bruidsbed", authors = hemel.authors))
+
+        assertEquals(3, index.size)
+        assertEquals(emptyList<String>(), index.search("ontdekking hemel", 5))
+        assertEquals(listOf(hemel.id), index.search("stenen bruidsbed", 5))
+    }
+
+    @Test
+    fun `synchronize leaves index with same books untouched`() {
+        val ids = listOf(hemel.id, aanslag.id, avond.id)
+        assertFalse(index.synchronize(ids) { throw AssertionError("Index should not be changed") })
+    }
+
+    @Test
+    fun `synchronize removes stale and adds missing books`() {
+        val reve = Book(
+            id = "9789023449416",
+            identifiers = mapOf(Identifier.ISBN_13 to "9789023449416"),
+            title = "Werther Nieland",
+            authors = listOf("Gerard Reve")
+        )
+
+        // Same amount of books, but different identifiers
+        assertTrue(index.synchronize(listOf(hemel.id, avond.id, reve.id)) {
+            assertEquals(setOf(reve.id), it.toSet())
+            listOf(reve)
+        })
+        assertEquals(3, index.size)
+        assertEquals(emptyList<String>(), index.search("aanslag", 5))
+        assertEquals(listOf(reve.id), index.search("werther nieland", 5))
+    }
+
+    @Test
+    fun `synchronize resolves missing books in chunks`() {
+        val extra = List(5) { Book(id = "$it", identifiers = emptyMap(), title = "Boek $it", authors = emptyList()) }
+        val chunks = mutableListOf<Collection<String>>()
+
+        index.synchronize(listOf(hemel.id, aanslag.id, avond.id) + extra.map { it.id }, chunkSize = 2) { ids ->
+            chunks += ids
+            extra.filter { it.id in ids }
+        }
+
+        assertEquals(listOf(2, 2, 1), chunks.map { it.size })
+        assertEquals(8, index.size)
+    }
+}
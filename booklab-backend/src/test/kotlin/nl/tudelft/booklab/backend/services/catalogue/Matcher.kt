@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.catalogue
+
+import nl.tudelft.booklab.catalogue.Identifier
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import java.util.Locale
+
+/**
+ * Test suite for the [BookMatcher] class.
+ */
+internal class BookMatcherTest {
+    /**
+     * The [BookMatcher] to test.
+     */
+    private lateinit var matcher: BookMatcher
+
+    /**
+     * Dummy book instances.
+     */
+    private val hemel = book("1", "De ontdekking van de hemel", "Harry Mulisch")
+    private val aanslag = book("2", "De aanslag", "Harry Mulisch")
+    private val noordWest = book("3", "Spiegel van steden, dorpen en landschappen in Noord-West Nederland", "Dick Dijs")
+    private val zuidWest = book("4", "Spiegel van steden, dorpen en landschappen in Zuid-West Nederland", "Dick Dijs")
+
+    @BeforeEach
+    fun setUp() {
+        matcher = BookMatcher()
+        listOf(hemel, aanslag, noordWest, zuidWest).forEach { matcher.add(it) }
+    }
+
+    @Test
+    fun `normalize undoes common OCR misreadings`() {
+        assertEquals("de ontdekking van de hemel 1984", BookMatcher.normalize("De 0ntdékking van de HEME| - 1984"))
+    }
+
+    @Test
+    fun `normalize removes noise`() {
+        assertEquals("mulisch", BookMatcher.normalize("* / MULISCH ~ ."))
+    }
+
+    @Test
+    fun `normalize does not depend on the default locale`() {
+        val locale = Locale.getDefault()
+        try {
+            Locale.setDefault(Locale.forLanguageTag("tr"))
+            assertEquals("harry mulisch", BookMatcher.normalize("HARRY MULISCH"))
+        } finally {
+            Locale.setDefault(locale)
+        }
+    }
+
+    @Test
+    fun `match finds book in clean text with high confidence`() {
+        val match = matcher.match("Harry Mulisch De ontdekking van de hemel").single()
+        assertEquals(hemel.id, match.id)
+        assertTrue(match.confidence > 0.9, "Confidence ${match.confidence} too low")
+    }
+
+    @Test
+    fun `match finds book in noisy text`() {
+        val match = matcher.match("HARRY MUL1SCH\nDe 0ntdekking van de hernel\nBEZIGE BIJ").single()
+        assertEquals(hemel.id, match.id)
+        assertTrue(match.confidence > 0.75, "Confidence ${match.confidence} too low")
+    }
+
+    @Test
+    fun `match distinguishes similar titles`() {
+        val matches = matcher.match("Spiegel van steden dorpen en landschappen in Zuid West Nederland", max = 2)
+        assertEquals(listOf(zuidWest.id, noordWest.id), matches.map { it.id })
+        assertTrue(matches[0].confidence > matches[1].confidence)
+    }
+
+    @Test
+    fun `match has low confidence on unrelated text`() {
+        val confidence = matcher.match("Harry Potter en de steen der wijzen").firstOrNull()?.confidence ?: 0.0
+        assertTrue(confidence < 0.6, "Confidence $confidence too high")
+    }
+
+    @Test
+    fun `match ignores short text`() {
+        assertEquals(emptyList<BookMatcher.Match>(), matcher.match("a b"))
+    }
+
+    @Test
+    fun `add replaces book with same identifier`() {
+        val replacement = book("2", "Het stenen bruidsbed", "Harry Mulisch")
+        matcher.add(replacement)
+
+        assertEquals(4, matcher.size)
+        assertEquals(replacement.id, matcher.match("Mulisch het stenen bruidsbed").single().id)
+    }
+
+    @Test
+    fun `add does not grow when saving same book repeatedly`() {
+        repeat(100) { matcher.add(aanslag) }
+
+        assertEquals(4, matcher.size)
+        assertEquals(aanslag.id, matcher.match("Harry Mulisch De aanslag").first().id)
+    }
+
+    @Test
+    fun `add removes postings of replaced book`() {
+        matcher.add(book("2", "Het stenen bruidsbed", "Gerard Reve"))
+
+        assertTrue(matcher.match("De aanslag").none { it.id == "2" })
+    }
+
+    @Test
+    fun `reset removes all books`() {
+        matcher.reset(listOf(aanslag))
+
+        assertEquals(1, matcher.size)
+        assertEquals(aanslag.id, matcher.match("Spiegel van steden aanslag mulisch").firstOrNull()?.id)
+    }
+
+    private fun book(id: String, title: String, author: String) =
+        Book(id, mapOf(Identifier.INTERNAL to id), title, authors = listOf(author))
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.catalogue
+
+import nl.tudelft.booklab.catalogue.Identifier
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.CsvFileSource
+import java.util.Random
+
+/**
+ * A benchmark for the accuracy and latency of the [BookMatcher], using the books on the shelves of the detection
+ * benchmark.
+ *
+ * Since running the OCR engines requires credentials, the OCR output of each spine is simulated by corrupting its
+ * title and author with the kind of errors OCR engines typically make. The matcher contains the books of all shelves,
+ * such that the books of the other shelves act as distractors.
+ */
+@Tag("benchmark")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+internal class BookMatcherBenchmark {
+    /**
+     * The matcher to benchmark.
+     */
+    private val matcher = BookMatcher()
+
+    /**
+     * The books of each shelf (identified by its titles resource).
+     */
+    private val shelves = mutableMapOf<String, List<Book>>()
+
+    /**
+     * The amount of books that have been correctly matched.
+     */
+    private var correct = 0
+
+    /**
+     * The amount of books that have been processed.
+     */
+    private var total = 0
+
+    /**
+     * The total time spent matching in nanoseconds.
+     */
+    private var time = 0L
+
+    @BeforeAll
+    fun setUpClass() {
+        for (i in 1..9) {
+            val titles = lines("/benchmark/detection/titles-$i.txt")
+            val authors = lines("/benchmark/detection/authors-$i.txt")
+            shelves["/benchmark/detection/titles-$i.txt"] = titles.mapIndexed { j, title ->
+                Book("$i-$j", mapOf(Identifier.INTERNAL to "$i-$j"), title, authors = listOfNotNull(authors.getOrNull(j)))
+            }
+        }
+        shelves.values.flatten().forEach { matcher.add(it) }
+
+        // Warm up the matcher
+        repeat(1000) { matcher.match("Spiegel van steden") }
+    }
+
+    @AfterAll
+    fun tearDownClass() {
+        println("Total score: $correct/$total")
+        println("Average time: ${time / maxOf(total, 1) / 1000.0} us per match")
+    }
+
+    @ParameterizedTest
+    @CsvFileSource(resources = ["/benchmark/detection/configurations.csv"])
+    fun `books are matched despite OCR errors`(bookshelf: String, bookTitles: String, authors: String) {
+        val random = Random(42)
+        val books = shelves.getValue(bookTitles)
+        var score = 0
+
+        for (book in books) {
+            val spine = book.title + "\n" + book.authors.joinToString(" ")
+            val text = corrupt(spine, random) + " " + NOISE[random.nextInt(NOISE.size)]
+            val start = System.nanoTime()
+            val match = matcher.match(text).firstOrNull()
+            time += System.nanoTime() - start
+
+            if (match?.id == book.id) {
+                score++
+            } else {
+                println("Missed: '$text' (matched ${match?.id})")
+            }
+        }
+
+        correct += score
+        total += books.size
+        println("Score: $score/${books.size} ($bookshelf)")
+        assertTrue(score >= 0.8 * books.size, "Only $score out of ${books.size} books have been matched")
+    }
+
+    /**
+     * Simulate the OCR output for the given text by dropping, confusing and replacing characters at random.
+     */
+    private fun corrupt(text: String, random: Random): String {
+        val builder = StringBuilder()
+        for (c in if (random.nextBoolean()) text.toUpperCase() else text) {
+            val x = random.nextDouble()
+            when {
+                x < 0.04 -> Unit
+                x < 0.10 && c.toLowerCase() in CONFUSIONS -> builder.append(CONFUSIONS[c.toLowerCase()])
+                x < 0.13 -> builder.append('a' + random.nextInt(26))
+                else -> builder.append(c)
+            }
+        }
+        return builder.toString()
+    }
+
+    /**
+     * Read the non-blank lines of the given resource or return an empty list if it does not exist.
+     */
+    private fun lines(resource: String): List<String> =
+        BookMatcherBenchmark::class.java.getResourceAsStream(resource)
+            ?.reader()
+            ?.useLines { lines -> lines.filter { it.isNotBlank() }.toList() }
+            ?: emptyList()
+
+    companion object {
+        /**
+         * The characters that OCR engines commonly confuse.
+         */
+        private val CONFUSIONS = mapOf('o' to '0', 'l' to '1', 'i' to '|', 'e' to '3', 's' to '5', 'a' to '4', 'b' to '8')
+
+        /**
+         * The noise found on spines besides the title and author.
+         */
+        private val NOISE = arrayOf("BEZIGE BIJ", "ISBN", "", "AW")
+    }
+}
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.backend.services.catalogue
+
+import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
+import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
+import com.nhaarman.mockitokotlin2.stub
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import kotlinx.coroutines.experimental.CompletableDeferred
+import kotlinx.coroutines.experimental.runBlocking
+import nl.tudelft.booklab.catalogue.CatalogueClient
+import nl.tudelft.booklab.catalogue.Identifier
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.IOException
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+import java.util.concurrent.atomic.AtomicInteger
+import nl.tudelft.booklab.catalogue.Book as AbstractBook
+
+/**
+ * Test suite for the [ResilientCatalogueClient] class.
+ */
+internal class ResilientCatalogueClientTest {
+    /**
+     * The primary catalogue.
+     */
+    private lateinit var primary: CatalogueClient
+
+    /**
+     * The secondary catalogue.
+     */
+    private lateinit var secondary: CatalogueClient
+
+    /**
+     * The clock to use.
+     */
+    private lateinit var clock: MutableClock
+
+    /**
+     * Dummy book instance.
+     */
+    private val book = Book(
+        id = "test",
+        identifiers = mapOf(Identifier.INTERNAL to "test"),
+        title = "The ontdekking van de hemel",
+        authors = listOf("Harry Mulisch")
+    )
+
+    /**
+     * The configuration to test with, which disables hedging.
+     */
+    private val configuration = ResilienceConfiguration(failureThreshold = 2, openDuration = 10000, hedging = false)
+
+    @BeforeEach
+    fun setUp() {
+        primary = mock()
+        secondary = mock()
+        clock = MutableClock()
+    }
+
+    @Test
+    fun `circuit opens after consecutive failures`() {
+        primary.stub {
+            onBlocking { query(any(), any()) } doAnswer { throw IOException() }
+        }
+        val client = ResilientCatalogueClient(primary, configuration = configuration, clock = clock)
+
+        runBlocking {
+            repeat(2) { assertThrows<IOException> { runBlocking { client.query("test", 5) } } }
+            assertThrows<CircuitOpenException> { runBlocking { client.query("test", 5) } }
+            verify(primary, times(2)).query(any(), any())
+        }
+
+        assertEquals(CircuitState.OPEN, client.statistics.state)
+        assertEquals(1L, client.statistics.rejected)
+    }
+
+    @Test
+    fun `successful call resets the failures`() {
+        val attempts = AtomicInteger()
+        primary.stub {
+            onBlocking { query(any(), any()) } doAnswer {
+                if (attempts.incrementAndGet() % 2 == 1) throw IOException() else listOf(book)
+            }
+        }
+        val client = ResilientCatalogueClient(primary, configuration = configuration, clock = clock)
+
+        runBlocking {
+            repeat(4) {
+                try {
+                    client.query("test", 5)
+                } catch (e: IOException) {
+                    // Expected every other call
+                }
+            }
+        }
+
+        assertEquals(CircuitState.CLOSED, client.statistics.state)
+    }
+
+    @Test
+    fun `circuit is probed after the open duration`() {
+        primary.stub {
+            onBlocking { find(any()) } doAnswer { throw IOException() }
+        }
+        val client = ResilientCatalogueClient(primary, configuration = configuration, clock = clock)
+
+        runBlocking {
+            repeat(2) { assertThrows<IOException> { runBlocking { client.find("test") } } }
+
+            clock.advance(10)
+            assertEquals(CircuitState.HALF_OPEN, client.breaker.state)
+
+            primary.stub {
+                onBlocking { find(any()) } doReturn book
+            }
+            assertEquals(book, client.find("test"))
+        }
+
+        assertEquals(CircuitState.CLOSED, client.statistics.state)
+    }
+
+    @Test
+    fun `failed probe opens the circuit again`() {
+        primary.stub {
+            onBlocking { find(any()) } doAnswer { throw IOException() }
+        }
+        val client = ResilientCatalogueClient(primary, configuration = configuration, clock = clock)
+
+        runBlocking {
+            repeat(2) { assertThrows<IOException> { runBlocking { client.find("test") } } }
+            clock.advance(10)
+            assertThrows<IOException> { runBlocking { client.find("test") } }
+        }
+
+        assertEquals(CircuitState.OPEN, client.statistics.state)
+    }
+
+    @Test
+    fun `slow calls open the circuit`() {
+        primary.stub {
+            onBlocking { find(any()) } doReturn book
+        }
+        val client = ResilientCatalogueClient(primary, configuration = configuration.copy(slowCallThreshold = 0))
+
+        runBlocking {
+            repeat(2) { assertEquals(book, client.find("test")) }
+        }
+
+        assertEquals(CircuitState.OPEN, client.statistics.state)
+        assertEquals(2L, client.statistics.slowCalls)
+    }
+
+    @Test
+    fun `failed calls fail over to the secondary catalogue`() {
+        primary.stub {
+            onBlocking { query(any(), any()) } doAnswer { throw IOException() }
+        }
+        secondary.stub {
+            onBlocking { query(any(), any()) } doReturn listOf(book)
+        }
+        val client = ResilientCatalogueClient(primary, secondary, configuration, clock)
+
+        runBlocking {
+            repeat(3) { assertEquals(listOf(book), client.query("test", 5)) }
+            verify(primary, times(2)).query(any(), any())
+            verify(secondary, times(3)).query(any(), any())
+        }
+
+        assertEquals(3L, client.statistics.failovers)
+    }
+
+    @Test
+    fun `streams are routed to the secondary catalogue when the circuit is open`() {
+        primary.stub {
+            onBlocking { find(any()) } doAnswer { throw IOException() }
+        }
+        secondary.stub {
+            onBlocking { find(any()) } doReturn book
+        }
+        val client = ResilientCatalogueClient(primary, secondary, configuration, clock)
+
+        runBlocking {
+            repeat(2) { client.find("test") }
+        }
+        client.stream("test", 5)
+
+        verify(secondary).stream("test", 5)
+        verify(primary, never()).stream("test", 5)
+    }
+
+    @Test
+    fun `slow requests are hedged`() {
+        val slow = CompletableDeferred<List<AbstractBook>>()
+        val hedging = ResilienceConfiguration(minimumHedgeDelay = 10, minimumSamples = 1)
+        val calls = AtomicInteger()
+        val delegate = object : TestCatalogueClient() {
+            override suspend fun query(keywords: String, max: Int): List<AbstractBook> =
+                // Only the original request of the second lookup is slow
+                if (calls.incrementAndGet() == 2) slow.await() else listOf(book)
+        }
+        val client = ResilientCatalogueClient(delegate, configuration = hedging)
+
+        runBlocking {
+            client.query("warm up", 5)
+            assertEquals(listOf(book), client.query("test", 5))
+        }
+
+        assertEquals(1L, client.statistics.hedged)
+        assertEquals(1L, client.statistics.hedgeWins)
+        assertEquals(3, calls.get())
+    }
+
+    /**
+     * A [CatalogueClient] of which the methods have to be overridden by the test.
+     */
+    private abstract class TestCatalogueClient : CatalogueClient {
+        override suspend fun find(isbn: String): AbstractBook? = throw UnsupportedOperationException()
+
+        override suspend fun query(keywords: String, max: Int): List<AbstractBook> =
+            throw UnsupportedOperationException()
+
+        override suspend fun query(title: String, author: String, max: Int): List<AbstractBook> =
+            throw UnsupportedOperationException()
+    }
+
+    private class MutableClock(private var now: Instant = Instant.EPOCH) : Clock() {
+        fun advance(seconds: Long) {
+            now = now.plusSeconds(seconds)
+        }
+
+        override fun instant(): Instant = now
+
+        override fun getZone(): ZoneId = ZoneOffset.UTC
+
+        override fun withZone(zone: ZoneId): Clock = this
+    }
+}
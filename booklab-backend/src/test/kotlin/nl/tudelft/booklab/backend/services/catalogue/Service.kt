@@ -22,12 +22,18 @@ import com.nhaarman.mockitokotlin2.doReturn
 import com.nhaarman.mockitokotlin2.doThrow
 import com.nhaarman.mockitokotlin2.eq
 import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
 import com.nhaarman.mockitokotlin2.stub
 import com.nhaarman.mockitokotlin2.times
 import com.nhaarman.mockitokotlin2.verify
+import kotlinx.coroutines.experimental.CompletableDeferred
+import kotlinx.coroutines.experimental.async
 import kotlinx.coroutines.experimental.runBlocking
+import kotlinx.coroutines.experimental.yield
 import nl.tudelft.booklab.catalogue.CatalogueClient
 import nl.tudelft.booklab.catalogue.Identifier
+import nl.tudelft.booklab.catalogue.Book as AbstractBook
+import org.apache.lucene.store.RAMDirectory
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertNull
 import org.junit.jupiter.api.BeforeEach
@@ -178,6 +184,69 @@ internal class CatalogueServiceTest {
         }
     }
 
+    @Test
+    fun `findByIds returns empty map on empty input`() {
+        runBlocking {
+            assertEquals(emptyMap<String, Book?>(), service.findByIds(emptyList()))
+            verify(repository, never()).findAllByIndustryId(any())
+        }
+    }
+
+    @Test
+    fun `findByIds queries database in a single query`() {
+        val other = Book(
+            id = "other",
+            identifiers = mapOf(Identifier.ISBN_13 to "9789023427086"),
+            title = "Het stenen bruidsbed",
+            authors = listOf("Harry Mulisch")
+        )
+
+        repository.stub {
+            on { findAllByIndustryId(any()) } doReturn listOf(book, other)
+        }
+
+        runBlocking {
+            val result = service.findByIds(listOf("test", "9789023427086"))
+            assertEquals(mapOf("test" to book, "9789023427086" to other), result)
+            verify(repository, times(1)).findAllByIndustryId(any())
+            verify(client, never()).findAll(any())
+        }
+    }
+
+    @Test
+    fun `findByIds queries external catalogue for missing books only and saves`() {
+        repository.stub {
+            on { findAllByIndustryId(any()) } doReturn emptyList<Book>()
+            on { save(any<Book>()) } doAnswer { it.getArgument(0) }
+        }
+
+        client.stub {
+            onBlocking { findAll(eq(listOf("test", "unknown"))) } doReturn mapOf("test" to book)
+        }
+
+        runBlocking {
+            val result = service.findByIds(listOf("test", "unknown"))
+            assertEquals(mapOf("test" to book, "unknown" to null), result)
+            verify(repository, times(1)).save(book)
+        }
+    }
+
+    @Test
+    fun `findByIds returns null on failure to save`() {
+        repository.stub {
+            on { findAllByIndustryId(any()) } doReturn emptyList<Book>()
+            on { save(any<Book>()) } doThrow ConstraintViolationException(null)
+        }
+
+        client.stub {
+            onBlocking { findAll(any()) } doReturn mapOf("test" to book)
+        }
+
+        runBlocking {
+            assertEquals(mapOf("test" to null), service.findByIds(listOf("test")))
+        }
+    }
+
     @Test
     fun `query with keywords queries external catalogue and saves`() {
         repository.stub {
@@ -194,6 +263,95 @@ internal class CatalogueServiceTest {
         }
     }
 
+    @Test
+    fun `match resolves the matched books from the repository`() {
+        repository.stub {
+            on { findAllIds() } doReturn listOf(book.id)
+            on { findAllById(eq(listOf(book.id))) } doReturn listOf(book)
+        }
+        service = CatalogueService(repository, client, matcher = BookMatcher())
+
+        val match = service.match("ontdekking van de hemel").single()
+        assertEquals(book, match.book)
+    }
+
+    @Test
+    fun `query with keywords prefers local index if requested`() {
+        val index = CatalogueIndex(RAMDirectory())
+        service = CatalogueService(repository, client, index)
+
+        repository.stub {
+            on { save(any<Book>()) } doAnswer { it.getArgument(0) }
+            on { findAllById(eq(listOf("test"))) } doReturn listOf(book)
+        }
+
+        client.stub {
+            onBlocking { query(any(), any()) } doReturn emptyList<Book>()
+        }
+
+        runBlocking {
+            assertEquals(emptyList<Book>(), service.query("hemel", max = 1, localFirst = true))
+            service.save(book)
+            assertEquals(listOf(book), service.query("ontdekking hemel", max = 1, localFirst = true))
+            verify(client, times(1)).query(any(), any())
+        }
+    }
+
+    @Test
+    fun `query with keywords ignores local index by default`() {
+        val index = CatalogueIndex(RAMDirectory())
+        service = CatalogueService(repository, client, index)
+
+        repository.stub {
+            on { save(any<Book>()) } doAnswer { it.getArgument(0) }
+        }
+
+        client.stub {
+            onBlocking { query(any(), any()) } doReturn emptyList<Book>()
+        }
+
+        runBlocking {
+            service.save(book)
+            assertEquals(emptyList<Book>(), service.query("ontdekking hemel", max = 1))
+            verify(client, times(1)).query(any(), any())
+        }
+    }
+
+    @Test
+    fun `query with keywords does not save unchanged books again`() {
+        val stored = Book(book.id, book.identifiers, book.title, authors = book.authors)
+        repository.stub {
+            on { findAllById(eq(listOf("test"))) } doReturn listOf(stored)
+        }
+
+        client.stub {
+            onBlocking { query(any(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            assertEquals(listOf(stored), service.query("test"))
+            verify(repository, never()).save(any<Book>())
+        }
+    }
+
+    @Test
+    fun `query with keywords saves changed books again`() {
+        val stored = Book(book.id, book.identifiers, "De aanslag", authors = book.authors)
+        repository.stub {
+            on { findAllById(eq(listOf("test"))) } doReturn listOf(stored)
+            on { save(any<Book>()) } doAnswer { it.getArgument(0) }
+        }
+
+        client.stub {
+            onBlocking { query(any(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            assertEquals(book.title, service.query("test").single().title)
+            verify(repository, times(1)).save(any<Book>())
+        }
+    }
+
     @Test
     fun `query with keywords with different limit`() {
         repository.stub {
@@ -283,4 +441,75 @@ internal class CatalogueServiceTest {
             }
         }
     }
+
+    @Test
+    fun `findById coalesces concurrent lookups`() {
+        val client = GatedCatalogueClient(book)
+        service = CatalogueService(repository, client)
+        repository.stub {
+            on { save(any<Book>()) } doAnswer { it.getArgument(0) }
+        }
+
+        runBlocking {
+            val first = async(coroutineContext) { service.findById("test") }
+            val second = async(coroutineContext) { service.findById("test") }
+            yield()
+            client.gate.complete(Unit)
+
+            assertEquals(book, first.await())
+            assertEquals(book, second.await())
+            assertEquals(1, client.calls)
+            verify(repository, times(1)).save(book)
+        }
+
+        assertEquals(1L, service.statistics.findById.calls)
+        assertEquals(1L, service.statistics.findById.coalesced)
+        assertEquals(0, service.statistics.findById.inFlight)
+    }
+
+    @Test
+    fun `query coalesces concurrent queries with the same normalized keywords`() {
+        val client = GatedCatalogueClient(book)
+        service = CatalogueService(repository, client)
+        repository.stub {
+            on { save(any<Book>()) } doAnswer { it.getArgument(0) }
+        }
+
+        runBlocking {
+            val first = async(coroutineContext) { service.query("Harry Mulisch") }
+            val second = async(coroutineContext) { service.query("harry  mulisch ") }
+            val third = async(coroutineContext) { service.query("harry mulisch", max = 10) }
+            yield()
+            client.gate.complete(Unit)
+
+            assertEquals(listOf(book), first.await())
+            assertEquals(listOf(book), second.await())
+            assertEquals(listOf(book), third.await())
+            assertEquals(2, client.calls)
+        }
+
+        assertEquals(1L, service.statistics.query.coalesced)
+    }
+
+    /**
+     * A [CatalogueClient] that suspends all calls until its gate is opened.
+     */
+    private class GatedCatalogueClient(private val book: AbstractBook) : CatalogueClient {
+        val gate = CompletableDeferred<Unit>()
+        var calls = 0
+
+        override suspend fun find(isbn: String): AbstractBook? {
+            calls++
+            gate.await()
+            return book
+        }
+
+        override suspend fun query(keywords: String, max: Int): List<AbstractBook> {
+            calls++
+            gate.await()
+            return listOf(book)
+        }
+
+        override suspend fun query(title: String, author: String, max: Int): List<AbstractBook> = query(title, max)
+    }
 }
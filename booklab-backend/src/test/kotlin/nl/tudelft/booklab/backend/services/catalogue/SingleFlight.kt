@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.catalogue
+
+import kotlinx.coroutines.experimental.CompletableDeferred
+import kotlinx.coroutines.experimental.async
+import kotlinx.coroutines.experimental.runBlocking
+import kotlinx.coroutines.experimental.yield
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+
+/**
+ * Test suite for the [SingleFlight] class.
+ */
+internal class SingleFlightTest {
+    /**
+     * The [SingleFlight] instance to test.
+     */
+    private lateinit var flights: SingleFlight<String, Int>
+
+    @BeforeEach
+    fun setUp() {
+        flights = SingleFlight()
+    }
+
+    @Test
+    fun `followers share the result of the leader`() = runBlocking {
+        val gate = CompletableDeferred<Int>()
+        val leader = async(coroutineContext) { flights.execute("key") { gate.await() } }
+        yield()
+        val follower = async(coroutineContext) { flights.execute("key") { throw AssertionError("Not coalesced") } }
+        yield()
+
+        gate.complete(42)
+        assertEquals(42, leader.await())
+        assertEquals(42, follower.await())
+        assertEquals(SingleFlightStatistics(calls = 1, coalesced = 1, inFlight = 0), flights.statistics)
+    }
+
+    @Test
+    fun `followers share the failure of the leader`() = runBlocking {
+        val gate = CompletableDeferred<Int>()
+        val leader = async(coroutineContext) { flights.execute("key") { gate.await() } }
+        yield()
+        val follower = async(coroutineContext) { flights.execute("key") { 0 } }
+        yield()
+
+        gate.completeExceptionally(IllegalStateException("This is staged."))
+        for (call in listOf(leader, follower)) {
+            call.join()
+            assertTrue(call.getCompletionExceptionOrNull() is IllegalStateException)
+        }
+    }
+
+    @Test
+    fun `follower retries the call when the leader is cancelled`() = runBlocking {
+        val leader = async(coroutineContext) { flights.execute("key") { CompletableDeferred<Int>().await() } }
+        yield()
+        val follower = async(coroutineContext) { flights.execute("key") { 42 } }
+        yield()
+
+        leader.cancel()
+        assertEquals(42, follower.await())
+        assertTrue(leader.isCancelled)
+        assertEquals(2L, flights.statistics.calls)
+        assertEquals(0, flights.statistics.inFlight)
+    }
+}
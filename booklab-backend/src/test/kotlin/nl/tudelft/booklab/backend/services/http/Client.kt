@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.backend.services.http
+
+import com.sun.net.httpserver.HttpServer
+import io.ktor.client.request.get
+import kotlinx.coroutines.experimental.runBlocking
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.net.InetSocketAddress
+
+/**
+ * Test suite for the [OutboundHttpClient] class.
+ */
+internal class OutboundHttpClientTest {
+    /**
+     * The local server to make the requests to.
+     */
+    private lateinit var server: HttpServer
+
+    /**
+     * The [OutboundHttpClient] to test.
+     */
+    private lateinit var client: OutboundHttpClient
+
+    @BeforeEach
+    fun setUp() {
+        server = HttpServer.create(InetSocketAddress("localhost", 0), 0)
+        server.createContext("/") { exchange ->
+            val body = "ok".toByteArray()
+            exchange.sendResponseHeaders(200, body.size.toLong())
+            exchange.responseBody.use { it.write(body) }
+        }
+        server.start()
+        client = OutboundHttpClient(OutboundHttpConfiguration(maxConnections = 4, maxConnectionsPerRoute = 2))
+    }
+
+    @AfterEach
+    fun tearDown() {
+        client.close()
+        server.stop(0)
+    }
+
+    @Test
+    fun `requests are recorded`() {
+        runBlocking {
+            repeat(3) { assertEquals("ok", client.client.get<String>("http://localhost:${server.address.port}/")) }
+        }
+
+        assertEquals(3, client.statistics.latency.count)
+    }
+
+    @Test
+    fun `connections are kept alive`() {
+        runBlocking {
+            repeat(3) { client.client.get<String>("http://localhost:${server.address.port}/") }
+        }
+
+        val statistics = client.statistics
+        assertEquals(0, statistics.leased)
+        assertEquals(1, statistics.available)
+        assertEquals(4, statistics.max)
+    }
+
+    @Test
+    fun `connections per route must not exceed the total`() {
+        assertThrows<IllegalArgumentException> {
+            OutboundHttpConfiguration(maxConnections = 4, maxConnectionsPerRoute = 8)
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.backend.services.http
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+
+/**
+ * Test suite for the [LatencyHistogram] class.
+ */
+internal class LatencyHistogramTest {
+    @Test
+    fun `empty histogram has no percentiles`() {
+        assertTrue(LatencyHistogram().snapshot.percentile(50.0).isNaN())
+    }
+
+    @Test
+    fun `percentiles are estimated by their bucket`() {
+        val histogram = LatencyHistogram()
+        repeat(90) { histogram.record(3_000_000) }
+        repeat(10) { histogram.record(400_000_000) }
+
+        val snapshot = histogram.snapshot
+        assertEquals(100, snapshot.count)
+        assertEquals(5.0, snapshot.percentile(50.0))
+        assertEquals(5.0, snapshot.percentile(90.0))
+        assertEquals(500.0, snapshot.percentile(95.0))
+    }
+
+    @Test
+    fun `latencies above the highest bound are unbounded`() {
+        val histogram = LatencyHistogram()
+        histogram.record(60_000_000_000)
+
+        assertEquals(Double.POSITIVE_INFINITY, histogram.snapshot.percentile(99.0))
+    }
+}
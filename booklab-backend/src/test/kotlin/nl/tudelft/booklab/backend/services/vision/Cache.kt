@@ -0,0 +1,200 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.vision
+
+import nl.tudelft.booklab.backend.services.catalogue.Book
+import nl.tudelft.booklab.catalogue.Identifier
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertNull
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.opencv.core.Core
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.core.MatOfInt
+import org.opencv.core.Rect
+import org.opencv.core.Scalar
+import org.opencv.imgcodecs.Imgcodecs
+import java.time.Clock
+import java.time.Instant
+import java.time.ZoneId
+import java.time.ZoneOffset
+
+/**
+ * Test suite for the [DetectionCache] class and the perceptual fingerprint of images.
+ */
+internal class DetectionCacheTest {
+    /**
+     * Dummy detection result.
+     */
+    private val result = listOf(
+        BookDetection(Rect(1, 2, 3, 4), listOf(Book("test", mapOf(Identifier.INTERNAL to "test"), "De aanslag")))
+    )
+
+    @Test
+    fun `fingerprint is stable under re-encoding`() {
+        val image = syntheticBookshelf()
+        val encoded = MatOfByte()
+        Imgcodecs.imencode(".jpg", image, encoded, MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, 70))
+        val decoded = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR)
+
+        val distance = image.fingerprint().distance(decoded.fingerprint())
+        val detail = image.fingerprint().detailDistance(decoded.fingerprint())
+        assertTrue(distance != null && distance <= 4, "The distance $distance is too large")
+        assertTrue(detail != null && detail <= 8, "The detail distance $detail is too large")
+    }
+
+    @Test
+    fun `fingerprint distinguishes different images`() {
+        val image = syntheticBookshelf()
+        val flipped = Mat()
+        Core.flip(image, flipped, 1)
+
+        val distance = image.fingerprint().distance(flipped.fingerprint())
+        assertTrue(distance != null && distance > 4, "The distance $distance is too small")
+    }
+
+    @Test
+    fun `fingerprints of different sizes are incomparable`() {
+        val a = Mat(100, 200, CvType.CV_8UC3, Scalar.all(0.0)).fingerprint()
+        val b = Mat(100, 201, CvType.CV_8UC3, Scalar.all(0.0)).fingerprint()
+        assertNull(a.distance(b))
+    }
+
+    @Test
+    fun `cache returns results of identical images`() {
+        val cache = DetectionCache()
+        val key = key(0x0F0FL)
+        cache.put(key, result)
+
+        assertEquals(result, cache.get(key))
+        assertEquals(1L, cache.statistics.hits)
+    }
+
+    @Test
+    fun `cache returns results of similar images`() {
+        val cache = DetectionCache(DetectionCacheConfiguration(maximumDistance = 2))
+        cache.put(key(0x0F0FL), result)
+
+        assertEquals(result, cache.get(key(0x0F0CL)))
+        assertNull(cache.get(key(0x0F08L)))
+        assertEquals(1L, cache.statistics.nearHits)
+        assertEquals(1L, cache.statistics.misses)
+    }
+
+    @Test
+    fun `cache ignores similar images by default`() {
+        val cache = DetectionCache()
+        cache.put(key(0x0F0FL), result)
+
+        assertNull(cache.get(key(0x0F0EL)))
+    }
+
+    @Test
+    fun `cache ignores similar images with different details`() {
+        val cache = DetectionCache(DetectionCacheConfiguration(maximumDistance = 2, maximumDetailDistance = 8))
+        cache.put(key(0x0F0FL, detail = listOf(0L, 0L, 0L, 0L)), result)
+
+        assertNull(cache.get(key(0x0F0FL, detail = listOf(0xFFFFL, 0L, 0L, 0L))))
+        assertEquals(result, cache.get(key(0x0F0FL, detail = listOf(0xFFL, 0L, 0L, 0L))))
+    }
+
+    @Test
+    fun `cache ignores images of other owners`() {
+        val cache = DetectionCache()
+        cache.put(key(0x0F0FL), result)
+
+        assertNull(cache.get(key(0x0F0FL, owner = "user:2")))
+    }
+
+    @Test
+    fun `cache ignores images of different sizes`() {
+        val cache = DetectionCache()
+        cache.put(key(0x0F0FL), result)
+
+        assertNull(cache.get(DetectionCacheKey("user:1", ImageFingerprint(0x0F0FL, 200, 100))))
+    }
+
+    @Test
+    fun `cache expires results`() {
+        val clock = MutableClock()
+        val cache = DetectionCache(DetectionCacheConfiguration(ttl = 10), clock)
+        val key = key(0x0F0FL)
+        cache.put(key, result)
+
+        clock.advance(10)
+        assertNull(cache.get(key))
+        assertEquals(1L, cache.statistics.expirations)
+        assertEquals(0, cache.statistics.size)
+    }
+
+    @Test
+    fun `cache evicts least recently used results`() {
+        val cache = DetectionCache(DetectionCacheConfiguration(maximumSize = 2, maximumDistance = 0))
+        val a = key(1L)
+        val b = key(2L)
+        val c = key(4L)
+        cache.put(a, result)
+        cache.put(b, result)
+        cache.get(a)
+        cache.put(c, result)
+
+        assertEquals(result, cache.get(a))
+        assertNull(cache.get(b))
+        assertEquals(1L, cache.statistics.evictions)
+    }
+
+    @Test
+    fun `disabled cache stores nothing`() {
+        val cache = DetectionCache(DetectionCacheConfiguration(maximumSize = 0))
+        val key = key(0x0F0FL)
+        cache.put(key, result)
+
+        assertFalse(cache.isEnabled)
+        assertNull(cache.get(key))
+    }
+
+    /**
+     * Construct the cache key of a 100 by 100 image with the given hashes.
+     */
+    private fun key(hash: Long, owner: String = "user:1", detail: List<Long> = emptyList()) =
+        DetectionCacheKey(owner, ImageFingerprint(hash, 100, 100, detail))
+
+    /**
+     * A [Clock] that can be moved forward manually.
+     */
+    private class MutableClock(private var now: Instant = Instant.EPOCH) : Clock() {
+        fun advance(seconds: Long) {
+            now = now.plusSeconds(seconds)
+        }
+
+        override fun instant(): Instant = now
+
+        override fun getZone(): ZoneId = ZoneOffset.UTC
+
+        override fun withZone(zone: ZoneId): Clock = this
+    }
+
+    companion object {
+        init {
+            nu.pattern.OpenCV.loadShared()
+            System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME)
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.vision
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertSame
+import org.junit.jupiter.api.Test
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+
+/**
+ * Test suite for the downscaling of images before detection.
+ */
+internal class ScaledImageTest {
+    @Test
+    fun `downscale keeps small images intact`() {
+        val mat = Mat(100, 200, CvType.CV_8UC3)
+        val scaled = mat.downscale(400)
+
+        assertSame(mat, scaled.image)
+        assertEquals(1.0, scaled.scale)
+    }
+
+    @Test
+    fun `downscale keeps images intact if disabled`() {
+        val mat = Mat(100, 200, CvType.CV_8UC3)
+        assertSame(mat, mat.downscale(0).image)
+    }
+
+    @Test
+    fun `downscale limits the longest edge`() {
+        val mat = Mat(1000, 2000, CvType.CV_8UC3)
+        val scaled = mat.downscale(500)
+
+        assertEquals(500, scaled.image.cols())
+        assertEquals(250, scaled.image.rows())
+        assertEquals(0.25, scaled.scale)
+        scaled.release()
+    }
+
+    @Test
+    fun `toOriginal maps rectangles back to full resolution`() {
+        val mat = Mat(1000, 2000, CvType.CV_8UC3)
+        val scaled = mat.downscale(500)
+
+        assertEquals(Rect(40, 80, 120, 200), scaled.toOriginal(Rect(10, 20, 30, 50)))
+        scaled.release()
+    }
+
+    @Test
+    fun `toOriginal covers partial pixels`() {
+        val mat = Mat(300, 300, CvType.CV_8UC3)
+        val scaled = mat.downscale(200)
+
+        // The rectangle spans [1.5, 4.5) in the original image
+        assertEquals(Rect(1, 1, 4, 4), scaled.toOriginal(Rect(1, 1, 2, 2)))
+        scaled.release()
+    }
+
+    @Test
+    fun `toOriginal clips rectangles to the original image`() {
+        val mat = Mat(301, 301, CvType.CV_8UC3)
+        val scaled = mat.downscale(200)
+
+        assertEquals(Rect(0, 0, 301, 301), scaled.toOriginal(Rect(0, 0, 200, 200)))
+        scaled.release()
+    }
+
+    @Test
+    fun `release keeps the original image`() {
+        val mat = Mat(100, 200, CvType.CV_8UC3)
+        mat.downscale(0).release()
+
+        assertEquals(200, mat.cols())
+    }
+
+    companion object {
+        init {
+            nu.pattern.OpenCV.loadShared()
+            System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME)
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.backend.services.vision
+
+import nl.tudelft.booklab.vision.detection.opencv.CannyBookDetector
+import nl.tudelft.booklab.vision.toMat
+import org.junit.jupiter.api.AfterAll
+import org.junit.jupiter.api.BeforeAll
+import org.junit.jupiter.api.Tag
+import org.junit.jupiter.api.TestInstance
+import org.junit.jupiter.params.ParameterizedTest
+import org.junit.jupiter.params.provider.ValueSource
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * A benchmark for the trade-off between the accuracy and latency of detecting books on a downscaled image.
+ *
+ * For each target size, the books are detected on the downscaled bookshelf images of the detection benchmark, after
+ * which the boxes are mapped back to full resolution. A box found at full resolution counts as recalled if a mapped
+ * box overlaps it with an intersection over union of at least [THRESHOLD]. The latency includes the time needed to
+ * downscale the image.
+ *
+ * The benchmark prints its results as the rows of a Markdown table, so they can be recorded directly next to the
+ * hardware they were measured on:
+ *
+ * ```
+ * | detection-size | latency (ms/image) | speed-up | recall            |
+ * |----------------|--------------------|----------|-------------------|
+ * | full           | <latency>          | 1.00x    | 1.000             |
+ * | <size>         | <latency>          | <x>      | <recall> (<n>/<m>) |
+ * ```
+ *
+ * Finally, the benchmark recommends the smallest size that recalls at least [MINIMUM_RECALL] of the boxes found at full
+ * resolution. Since the detection size trades recall for latency depending on the images and the hardware, the
+ * pipeline keeps detecting at full resolution by default (`vision.pipeline.detection-size = 0`) until the recommended
+ * size of a run on the deployment hardware is configured
+ * (`./gradlew :booklab-backend:benchmark --tests '*ScalingBenchmark*'`).
+ */
+@Tag("benchmark")
+@TestInstance(TestInstance.Lifecycle.PER_CLASS)
+internal class ScalingBenchmark {
+    /**
+     * The detector to benchmark.
+     */
+    private val detector = CannyBookDetector()
+
+    /**
+     * The bookshelf images.
+     */
+    private lateinit var images: List<Mat>
+
+    /**
+     * The boxes detected at full resolution for each image.
+     */
+    private lateinit var references: List<List<Rect>>
+
+    /**
+     * The average latency at full resolution in milliseconds.
+     */
+    private var baseline = 0.0
+
+    /**
+     * The recall for each benchmarked size.
+     */
+    private val recalls = sortedMapOf<Int, Double>()
+
+    @BeforeAll
+    fun setUpClass() {
+        images = (1..9).mapNotNull { i ->
+            val name = if (i <= 6) "bookshelf-$i.jpg" else "bookshelf-$i.JPG"
+            ScalingBenchmark::class.java.getResourceAsStream("/benchmark/detection/$name")?.use { it.toMat() }
+        }
+
+        // Warm up the detector
+        images.forEach { detector.detect(it) }
+
+        val start = System.nanoTime()
+        references = images.map { detector.detect(it) }
+        baseline = (System.nanoTime() - start) / 1e6 / images.size
+        println("| detection-size | latency (ms/image) | speed-up | recall |")
+        println("|----------------|--------------------|----------|--------|")
+        println("| full | ${"%.1f".format(baseline)} | 1.00x | 1.000 |")
+    }
+
+    @AfterAll
+    fun tearDownClass() {
+        images.forEach { it.release() }
+
+        val recommended = recalls.entries.firstOrNull { it.value >= MINIMUM_RECALL }?.key ?: 0
+        println("Recommended detection size (recall >= $MINIMUM_RECALL): $recommended")
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = [640, 960, 1280, 1600, 2048])
+    fun `books are detected on downscaled images`(size: Int) {
+        var found = 0
+        var total = 0
+        var time = 0L
+
+        for ((image, reference) in images.zip(references)) {
+            val start = System.nanoTime()
+            val scaled = image.downscale(size)
+            val boxes = try {
+                detector.detect(scaled.image).map { scaled.toOriginal(it) }
+            } finally {
+                scaled.release()
+            }
+            time += System.nanoTime() - start
+
+            found += reference.count { box -> boxes.any { iou(box, it) >= THRESHOLD } }
+            total += reference.size
+        }
+
+        val latency = time / 1e6 / images.size
+        val recall = found.toDouble() / max(total, 1)
+        recalls[size] = recall
+        println(
+            "| $size | ${"%.1f".format(latency)} | ${"%.2f".format(baseline / latency)}x | " +
+                "${"%.3f".format(recall)} ($found/$total) |"
+        )
+    }
+
+    /**
+     * Compute the intersection over union of the given rectangles.
+     */
+    private fun iou(a: Rect, b: Rect): Double {
+        val width = min(a.x + a.width, b.x + b.width) - max(a.x, b.x)
+        val height = min(a.y + a.height, b.y + b.height) - max(a.y, b.y)
+        if (width <= 0 || height <= 0) {
+            return 0.0
+        }
+
+        val intersection = width.toDouble() * height
+        return intersection / (a.area() + b.area() - intersection)
+    }
+
+    companion object {
+        /**
+         * The minimum intersection over union for a box to count as recalled.
+         */
+        private const val THRESHOLD = 0.5
+
+        /**
+         * The minimum recall for a size to be recommended.
+         */
+        private const val MINIMUM_RECALL = 0.95
+
+        init {
+            nu.pattern.OpenCV.loadShared()
+            System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME)
+        }
+    }
+}
@@ -17,18 +17,30 @@
 package nl.tudelft.booklab.backend.services.vision
 
 import com.nhaarman.mockitokotlin2.any
+import com.nhaarman.mockitokotlin2.doAnswer
 import com.nhaarman.mockitokotlin2.doReturn
+import com.nhaarman.mockitokotlin2.doThrow
 import com.nhaarman.mockitokotlin2.mock
+import com.nhaarman.mockitokotlin2.never
 import com.nhaarman.mockitokotlin2.stub
+import com.nhaarman.mockitokotlin2.times
+import com.nhaarman.mockitokotlin2.verify
+import kotlinx.coroutines.experimental.channels.toList
 import kotlinx.coroutines.experimental.runBlocking
 import nl.tudelft.booklab.backend.services.catalogue.Book
+import nl.tudelft.booklab.backend.services.catalogue.BookMatch
 import nl.tudelft.booklab.backend.services.catalogue.CatalogueService
+import nl.tudelft.booklab.backend.services.catalogue.CircuitOpenException
 import nl.tudelft.booklab.catalogue.Identifier
 import nl.tudelft.booklab.vision.detection.BookDetector
 import nl.tudelft.booklab.vision.ocr.TextExtractor
+import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 import org.opencv.core.Mat
 import org.opencv.core.Rect
 import org.opencv.core.Size
@@ -106,7 +118,7 @@ internal class VisionServiceTest {
         }
 
         catalogue.stub {
-            onBlocking { query(any(), any<Int>()) } doReturn listOf(book)
+            onBlocking { query(any(), any<Int>(), any()) } doReturn listOf(book)
         }
 
         runBlocking {
@@ -114,6 +126,266 @@ internal class VisionServiceTest {
         }
     }
 
+    @Test
+    fun `detect should preserve the order of segments across batches`() {
+        val mat = Mat(Size(10.0, 10.0), 8)
+        val segments = List(5) { Rect(it, 0, 1, 1) }
+        service.close()
+        service = VisionService(detector, extractor, catalogue, VisionPipelineConfiguration(ocrBatchSize = 2))
+
+        detector.stub {
+            on { detect(any()) } doReturn segments
+        }
+
+        extractor.stub {
+            on { batch(any()) } doAnswer { invocation -> invocation.getArgument<List<Mat>>(0).map { "test" } }
+        }
+
+        catalogue.stub {
+            onBlocking { query(any(), any<Int>(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            assertEquals(segments, service.detect(mat).map { it.box })
+        }
+        assertEquals(3L, service.statistics.snapshot().getValue(PipelineStage.OCR).count)
+        assertEquals(5L, service.statistics.snapshot().getValue(PipelineStage.MATCH).count)
+    }
+
+    @Test
+    fun `detect should crop the full resolution image after downscaling`() {
+        val mat = Mat(Size(40.0, 20.0), 8)
+        service.close()
+        service = VisionService(detector, extractor, catalogue, VisionPipelineConfiguration(detectionSize = 10))
+
+        detector.stub {
+            on { detect(any()) } doAnswer { invocation ->
+                val image = invocation.getArgument<Mat>(0)
+                assertEquals(Size(10.0, 5.0), image.size())
+                listOf(Rect(1, 2, 3, 2))
+            }
+        }
+
+        extractor.stub {
+            on { batch(any()) } doAnswer { invocation ->
+                assertEquals(Size(12.0, 8.0), invocation.getArgument<List<Mat>>(0).single().size())
+                listOf("test")
+            }
+        }
+
+        catalogue.stub {
+            onBlocking { query(any(), any<Int>(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            assertEquals(Rect(4, 8, 12, 8), service.detect(mat).single().box)
+        }
+        assertEquals(1L, service.statistics.snapshot().getValue(PipelineStage.SCALE).count)
+    }
+
+    @Test
+    fun `detect should serve repeated images from the cache`() {
+        val mat = Mat(Size(10.0, 10.0), 8)
+        detector.stub {
+            on { detect(any()) } doReturn listOf(Rect(1, 2, 3, 4))
+        }
+
+        extractor.stub {
+            on { batch(any()) } doReturn listOf("test")
+        }
+
+        catalogue.stub {
+            onBlocking { query(any(), any<Int>(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            val expected = service.detect(mat, owner = "user:1")
+            assertEquals(expected, service.detect(mat, owner = "user:1"))
+            assertEquals(expected, service.stream(mat, owner = "user:1").toList())
+        }
+        verify(detector, times(1)).detect(any())
+        assertEquals(2L, service.cache.statistics.hits)
+    }
+
+    @Test
+    fun `detect should not share cached results between owners`() {
+        val mat = Mat(Size(10.0, 10.0), 8)
+        detector.stub {
+            on { detect(any()) } doReturn listOf(Rect(1, 2, 3, 4))
+        }
+
+        extractor.stub {
+            on { batch(any()) } doReturn listOf("test")
+        }
+
+        catalogue.stub {
+            onBlocking { query(any(), any<Int>(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            service.detect(mat, owner = "user:1")
+            service.detect(mat, owner = "user:2")
+            service.detect(mat)
+        }
+        verify(detector, times(3)).detect(any())
+        assertEquals(0L, service.cache.statistics.hits)
+    }
+
+    @Test
+    fun `detect should trust confident local matches`() {
+        val mat = Mat(Size(10.0, 10.0), 8)
+        detector.stub {
+            on { detect(any()) } doReturn listOf(Rect(1, 2, 3, 4))
+        }
+
+        extractor.stub {
+            on { batch(any()) } doReturn listOf("test")
+        }
+
+        catalogue.stub {
+            on { match(any(), any()) } doReturn listOf(BookMatch(book, 0.9))
+        }
+
+        runBlocking {
+            assertEquals(listOf(book), service.detect(mat).single().matches)
+            verify(catalogue, never()).query(any(), any<Int>(), any())
+        }
+    }
+
+    @Test
+    fun `detect should fall back to catalogue on low confidence`() {
+        val mat = Mat(Size(10.0, 10.0), 8)
+        val other =
+            Book("other", mapOf(Identifier.INTERNAL to "other"), "De aanslag", authors = listOf("Harry Mulisch"))
+        detector.stub {
+            on { detect(any()) } doReturn listOf(Rect(1, 2, 3, 4))
+        }
+
+        extractor.stub {
+            on { batch(any()) } doReturn listOf("test")
+        }
+
+        catalogue.stub {
+            on { match(any(), any()) } doReturn listOf(BookMatch(other, 0.3))
+            onBlocking { query(any(), any<Int>(), any()) } doReturn listOf(book)
+        }
+
+        runBlocking {
+            assertEquals(listOf(book), service.detect(mat).single().matches)
+        }
+    }
+
+    @Test
+    fun `detect should skip low confidence matches without fallback`() {
+        val mat = Mat(Size(10.0, 10.0), 8)
+        service.close()
+        service = VisionService(detector, extractor, catalogue, VisionPipelineConfiguration(remoteFallback = false))
+
+        detector.stub {
+            on { detect(any()) } doReturn listOf(Rect(1, 2, 3, 4))
+        }
+
+        extractor.stub {
+            on { batch(any()) } doReturn listOf("test")
+        }
+
+        runBlocking {
+            assertEquals(emptyList<Book>(), service.detect(mat).single().matches)
+            verify(catalogue, never()).query(any(), any<Int>(), any())
+        }
+    }
+
+    @Test
+    fun `detect should skip empty boxes`() {
+        val mat = Mat(Size(10.0, 10.0), 8)
+        detector.stub {
+            on { detect(any()) } doReturn listOf(Rect(1, 2, 0, 4), Rect(1, 2, 3, 4))
+        }
+
+        extractor.stub {
+            on { batch(any()) } doReturn listOf("test")
+        }
+
+        runBlocking {
+            assertEquals(listOf(Rect(1, 2, 3, 4)), service.detect(mat).map { it.box })
+        }
+    }
+
+    @Test
+    fun `detect should report no matches when the catalogue circuit is open`() {
+        val mat = Mat(Size(10.0, 10.0), 8)
+        detector.stub {
+            on { detect(any()) } doReturn listOf(Rect(1, 2, 3, 4))
+        }
+
+        extractor.stub {
+            on { batch(any()) } doReturn listOf("test")
+        }
+
+        catalogue.stub {
+            onBlocking { query(any(), any<Int>(), any()) } doAnswer { throw CircuitOpenException() }
+        }
+
+        runBlocking {
+            assertEquals(emptyList<Book>(), service.detect(mat).single().matches)
+        }
+    }
+
+    @Test
+    fun `detect should propagate failures of the text extractor`() {
+        val mat = Mat(Size(10.0, 10.0), 8)
+        detector.stub {
+            on { detect(any()) } doReturn listOf(Rect(1, 2, 3, 4))
+        }
+
+        extractor.stub {
+            on { batch(any()) } doThrow IllegalStateException("This is staged.")
+        }
+
+        assertThrows<IllegalStateException> {
+            runBlocking { service.detect(mat) }
+        }
+    }
+
+    @Test
+    fun `service should only be ready after warm-up`() {
+        detector.stub {
+            on { detect(any()) } doReturn listOf(Rect(1, 2, 3, 4))
+        }
+
+        extractor.stub {
+            on { batch(any()) } doReturn listOf("")
+        }
+
+        assertFalse(service.isReady)
+        runBlocking { service.warmUp().join() }
+        assertTrue(service.isReady)
+        verify(detector, times(2)).detect(any())
+        verify(extractor, times(2)).batch(any())
+    }
+
+    @Test
+    fun `service should be ready after failed warm-up`() {
+        detector.stub {
+            on { detect(any()) } doThrow IllegalStateException("This is staged.")
+        }
+
+        runBlocking { service.warmUp().join() }
+        assertTrue(service.isReady)
+    }
+
+    @Test
+    fun `service should be ready without warm-up runs`() {
+        service.close()
+        service = VisionService(detector, extractor, catalogue, VisionPipelineConfiguration(warmUpRuns = 0))
+        assertTrue(service.isReady)
+    }
+
+    @AfterEach
+    fun tearDown() {
+        service.close()
+    }
+
     companion object {
         init {
             nu.pattern.OpenCV.loadShared()
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.benchmarks;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+
+/**
+ * Helper methods for loading the bookshelf images that are bundled with the benchmarks.
+ */
+public final class Images {
+    static {
+        nu.pattern.OpenCV.loadShared();
+        System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
+    }
+
+    private Images() {}
+
+    /**
+     * Load the bookshelf image with the given name from the classpath.
+     *
+     * @param name The name of the image resource (e.g. bookshelf-1.jpg).
+     * @return The decoded BGR image.
+     */
+    public static Mat load(String name) {
+        try (InputStream input = Images.class.getResourceAsStream("/" + name)) {
+            if (input == null) {
+                throw new IllegalArgumentException("The image " + name + " does not exist");
+            }
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[64 * 1024];
+            int n;
+            while ((n = input.read(buffer)) != -1) {
+                output.write(buffer, 0, n);
+            }
+
+            Mat image = Imgcodecs.imdecode(new MatOfByte(output.toByteArray()), Imgcodecs.CV_LOAD_IMAGE_COLOR);
+            if (image.empty()) {
+                throw new IllegalArgumentException("The image " + name + " could not be decoded");
+            }
+            return image;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
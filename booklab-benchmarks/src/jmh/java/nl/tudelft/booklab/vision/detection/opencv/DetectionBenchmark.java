@@ -0,0 +1,146 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision.detection.opencv;
+
+import nl.tudelft.booklab.benchmarks.Images;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.opencv.core.Core.REDUCE_AVG;
+import static org.opencv.core.Core.reduce;
+import static org.opencv.imgproc.Imgproc.COLOR_BGR2GRAY;
+import static org.opencv.imgproc.Imgproc.GaussianBlur;
+import static org.opencv.imgproc.Imgproc.cvtColor;
+import static org.opencv.imgproc.Imgproc.dilate;
+
+/**
+ * Benchmarks for the stages of the OpenCV book detection pipeline, run against the bundled bookshelf images.
+ *
+ * The inputs of each stage are computed once per image, such that each benchmark measures a single stage in
+ * isolation. This class lives in the package of the detectors in order to access the package-private helpers of
+ * {@link AbstractBookDetector}.
+ */
+@State(Scope.Benchmark)
+public class DetectionBenchmark {
+    /**
+     * The bookshelf image to run the benchmarks against.
+     */
+    @Param({"bookshelf-1.jpg", "bookshelf-4.jpg", "bookshelf-7.JPG"})
+    public String image;
+
+    /**
+     * The detector to benchmark.
+     */
+    private final CannyBookDetector detector = new CannyBookDetector();
+
+    /**
+     * The decoded BGR image.
+     */
+    private Mat color;
+
+    /**
+     * The grayscale version of the image.
+     */
+    private Mat gray;
+
+    /**
+     * The dilated edges of the image, which is the input of {@link AbstractBookDetector#findCropLocations(Mat, int)}.
+     */
+    private Mat dilation;
+
+    /**
+     * The column profile of the dilated edges, which is the input of
+     * {@link AbstractBookDetector#findLocalMinima(List, int)}.
+     */
+    private List<Point> coordinates;
+
+    @Setup
+    public void setUp() {
+        color = Images.load(image);
+        gray = new Mat();
+        cvtColor(ImageProcessingHelper.colorhistEqualize(color), gray, COLOR_BGR2GRAY);
+
+        dilation = new Mat();
+        dilate(ImageProcessingHelper.autoCanny(gray), dilation, new Mat());
+
+        Mat reduced = new Mat();
+        reduce(dilation, reduced, 0, REDUCE_AVG);
+        GaussianBlur(reduced, reduced, new org.opencv.core.Size(), 3);
+        coordinates = new ArrayList<>(reduced.cols());
+        for (int i = 0; i < reduced.cols(); i++) {
+            coordinates.add(new Point(i, reduced.get(0, i)[0]));
+        }
+        reduced.release();
+    }
+
+    @TearDown
+    public void tearDown() {
+        color.release();
+        gray.release();
+        dilation.release();
+    }
+
+    @Benchmark
+    public List<Integer> findCropLocations() {
+        return AbstractBookDetector.findCropLocations(dilation, REDUCE_AVG);
+    }
+
+    @Benchmark
+    public List<Integer> findLocalMinima() {
+        return AbstractBookDetector.findLocalMinima(coordinates, 5);
+    }
+
+    @Benchmark
+    public int colorhistEqualize() {
+        return release(ImageProcessingHelper.colorhistEqualize(color));
+    }
+
+    @Benchmark
+    public int autoCanny() {
+        return release(ImageProcessingHelper.autoCanny(gray));
+    }
+
+    @Benchmark
+    public int getMedian() {
+        return ImageProcessingHelper.getMedian(gray);
+    }
+
+    @Benchmark
+    public List<Rect> detect() {
+        return detector.detect(color);
+    }
+
+    /**
+     * Release the given matrix and return its amount of rows, such that the native memory does not depend on the
+     * finalizer and the computation is not optimized away.
+     */
+    private static int release(Mat mat) {
+        int rows = mat.rows();
+        mat.release();
+        return rows;
+    }
+}
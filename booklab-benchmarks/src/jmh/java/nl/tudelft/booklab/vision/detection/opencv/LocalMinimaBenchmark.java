@@ -0,0 +1,148 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision.detection.opencv;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.opencv.core.Core.REDUCE_AVG;
+import static org.opencv.imgproc.Imgproc.GaussianBlur;
+import static org.opencv.imgproc.Imgproc.THRESH_BINARY;
+import static org.opencv.imgproc.Imgproc.threshold;
+
+/**
+ * A comparison between the primitive crop location search based on {@link LocalMinima} and the original search, which
+ * read the column profile one pixel at a time and compared each column against its whole (boxed) window.
+ */
+@State(Scope.Benchmark)
+public class LocalMinimaBenchmark {
+    static {
+        nu.pattern.OpenCV.loadShared();
+        System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * The width of the edge image in pixels.
+     */
+    @Param({"1000", "4000"})
+    public int width;
+
+    /**
+     * The synthetic edge image to search.
+     */
+    private Mat edges;
+
+    /**
+     * The column profile of the edge image.
+     */
+    private double[] profile;
+
+    /**
+     * The column profile of the edge image as coordinates.
+     */
+    private List<Point> coordinates;
+
+    @Setup
+    public void setUp() {
+        edges = new Mat(1000, width, CvType.CV_8UC1);
+        Core.setRNGSeed(42);
+        Core.randu(edges, 0, 256);
+        threshold(edges, edges, 240, 255, THRESH_BINARY);
+
+        profile = ImageProcessingHelper.columnProfile(edges, REDUCE_AVG);
+        coordinates = new ArrayList<>(profile.length);
+        for (int i = 0; i < profile.length; i++) {
+            coordinates.add(new Point(i, profile[i]));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        edges.release();
+    }
+
+    @Benchmark
+    public List<Integer> findCropLocations() {
+        return AbstractBookDetector.findCropLocations(edges, REDUCE_AVG);
+    }
+
+    @Benchmark
+    public List<Integer> findCropLocationsLegacy() {
+        return legacyFindCropLocations(edges, REDUCE_AVG);
+    }
+
+    @Benchmark
+    public int[] findLocalMinima() {
+        return LocalMinima.find(profile, 5);
+    }
+
+    @Benchmark
+    public List<Integer> findLocalMinimaLegacy() {
+        return legacyFindLocalMinima(coordinates, 5);
+    }
+
+    /**
+     * The original implementation of {@link AbstractBookDetector#findCropLocations(Mat, int)}.
+     */
+    private static List<Integer> legacyFindCropLocations(Mat image, int reduceType) {
+        Mat reduced = new Mat();
+        List<Point> coordinates = new ArrayList<>();
+
+        Core.reduce(image, reduced, 0, reduceType);
+        GaussianBlur(reduced, reduced, new Size(), 3);
+
+        for (int i = 0; i < image.cols(); i++) {
+            coordinates.add(new Point(i, reduced.get(0, i)[0]));
+        }
+
+        List<Integer> localMinima = legacyFindLocalMinima(coordinates, 5);
+        localMinima.add(0, 0);
+        localMinima.add(image.cols());
+
+        reduced.release();
+        return localMinima;
+    }
+
+    /**
+     * The original implementation of {@link AbstractBookDetector#findLocalMinima(List, int)}.
+     */
+    private static List<Integer> legacyFindLocalMinima(List<Point> coordinates, int windowSize) {
+        List<Double> yCoordinates = coordinates.stream().map(a -> a.y).collect(Collectors.toList());
+        List<Integer> localMinima = new ArrayList<>();
+        for (int i = windowSize; i < coordinates.size() - windowSize; i++) {
+            List<Double> sublist = yCoordinates.subList(i - windowSize, i + windowSize + 1);
+            if (sublist.indexOf(Collections.min(sublist)) == windowSize) {
+                localMinima.add((int) coordinates.get(i).x);
+            }
+        }
+        return localMinima;
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision.ocr.tesseract;
+
+import nl.tudelft.booklab.benchmarks.Images;
+import nl.tudelft.booklab.vision.detection.opencv.CannyBookDetector;
+import org.bytedeco.javacpp.lept;
+import org.opencv.core.Mat;
+import org.opencv.core.Rect;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Benchmarks for preparing the spine of a book for Tesseract, run against the widest spine found in each of the
+ * bundled bookshelf images.
+ */
+@State(Scope.Benchmark)
+public class TesseractBenchmark {
+    /**
+     * The bookshelf image to run the benchmarks against.
+     */
+    @Param({"bookshelf-1.jpg", "bookshelf-4.jpg", "bookshelf-7.JPG"})
+    public String image;
+
+    /**
+     * The strategy of the preprocessor.
+     */
+    @Param({"PIXEL", "BULK"})
+    public TesseractPreprocessor.Mode mode;
+
+    /**
+     * The BGR image of the spine.
+     */
+    private Mat spine;
+
+    /**
+     * The preprocessed (grayscale) image of the spine.
+     */
+    private Mat optimized;
+
+    @Setup
+    public void setUp() {
+        Mat shelf = Images.load(image);
+        List<Rect> books = new CannyBookDetector().detect(shelf);
+        Rect widest = books.stream()
+            .max(Comparator.comparingInt(Rect::area))
+            .orElseThrow(() -> new IllegalStateException("No books detected in " + image));
+        spine = shelf.submat(widest).clone();
+        optimized = TesseractPreprocessor.optimize(spine.clone());
+        shelf.release();
+    }
+
+    @TearDown
+    public void tearDown() {
+        spine.release();
+        optimized.release();
+    }
+
+    /**
+     * Since {@link TesseractPreprocessor#optimize(Mat)} draws the contours it keeps onto its input, the spine is
+     * copied on each invocation, which is included in the measurement.
+     */
+    @Benchmark
+    public int optimize() {
+        Mat input = spine.clone();
+        Mat result = TesseractPreprocessor.optimize(input, mode);
+        int rows = result.rows();
+        input.release();
+        result.release();
+        return rows;
+    }
+
+    @Benchmark
+    public int toPixColor() {
+        return release(LeptonicaKt.toPix(spine));
+    }
+
+    @Benchmark
+    public int toPixGray() {
+        return release(LeptonicaKt.toPix(optimized));
+    }
+
+    @Benchmark
+    public int toPixEncoded() {
+        return release(LeptonicaKt.toPixEncoded(spine));
+    }
+
+    /**
+     * Release the given pixel buffer and return its width, to prevent the conversion from being optimized away.
+     */
+    private static int release(lept.PIX pix) {
+        int width = lept.pixGetWidth(pix);
+        lept.pixDestroy(pix);
+        return width;
+    }
+}
@@ -17,11 +17,22 @@
 package nl.tudelft.booklab.catalogue.google
 
 import com.google.api.services.books.Books
+import com.google.api.services.books.BooksRequest
 import com.google.api.services.books.model.Volume
+import kotlinx.coroutines.experimental.CommonPool
+import kotlinx.coroutines.experimental.async
+import kotlinx.coroutines.experimental.channels.ReceiveChannel
+import kotlinx.coroutines.experimental.channels.asReceiveChannel
+import kotlinx.coroutines.experimental.channels.toList
+import kotlinx.coroutines.experimental.newFixedThreadPoolContext
+import kotlinx.coroutines.experimental.withContext
 import nl.tudelft.booklab.catalogue.Book
 import nl.tudelft.booklab.catalogue.CatalogueClient
 import nl.tudelft.booklab.catalogue.Identifier
+import nl.tudelft.booklab.catalogue.Page
 import nl.tudelft.booklab.catalogue.Ratings
+import nl.tudelft.booklab.catalogue.paginate
+import java.io.Closeable
 import java.net.URL
 import java.time.LocalDate
 import java.time.Year
@@ -30,17 +41,57 @@ import java.time.format.DateTimeFormatter
 import java.time.format.DateTimeParseException
 import java.time.temporal.TemporalAccessor
 import java.time.temporal.TemporalQuery
+import java.util.concurrent.atomic.AtomicInteger
 import kotlin.math.min
 
+/**
+ * The configuration of a [GoogleCatalogueClient].
+ *
+ * @property maxConcurrentRequests The maximum amount of requests that are in flight to the Google Books API at once.
+ * @property connectTimeout The timeout in milliseconds for establishing a connection to the API.
+ * @property readTimeout The timeout in milliseconds for reading a response of the API.
+ */
+data class GoogleCatalogueConfiguration(
+    val maxConcurrentRequests: Int = 16,
+    val connectTimeout: Int = 5000,
+    val readTimeout: Int = 10000
+) {
+    init {
+        require(maxConcurrentRequests > 0) { "The maximum amount of concurrent requests must be positive" }
+        require(connectTimeout >= 0) { "The connect timeout must not be negative" }
+        require(readTimeout >= 0) { "The read timeout must not be negative" }
+    }
+}
+
 /**
  * A [CatalogueClient] that uses the Google Books API to query lists of [Book]s.
  * it implements the [CatalogueClient] interface
  *
+ * The Google Books API client performs blocking I/O, so the requests are made on
+ * a dedicated, bounded pool of threads while the caller is suspended. The size
+ * of the pool limits the amount of requests in flight to the API.
+ *
  * @property catalogue where the books are queried from. it defaults to the entire
  * Google Books database
+ * @property parallelism the maximum amount of concurrent requests made when
+ * looking up multiple books
+ * @property configuration the configuration of the requests to the API
  * @author Christian Slothouber (f.c.slothouber@student.tudelft.nl)
  */
-class GoogleCatalogueClient(private val catalogue: Books) : CatalogueClient {
+class GoogleCatalogueClient(
+    private val catalogue: Books,
+    private val parallelism: Int = 8,
+    private val configuration: GoogleCatalogueConfiguration = GoogleCatalogueConfiguration()
+) : CatalogueClient, Closeable {
+    init {
+        require(parallelism > 0) { "The parallelism must be positive" }
+    }
+
+    /**
+     * The dispatcher on which the (blocking) requests to the API are made.
+     */
+    private val io = newFixedThreadPoolContext(configuration.maxConcurrentRequests, "google-books")
+
     /**
      * The [DateTimeFormatter] to use to parse the date.
      */
@@ -55,23 +106,78 @@ class GoogleCatalogueClient(private val catalogue: Books) : CatalogueClient {
 
     override suspend fun find(isbn: String): Book? = query("isbn:$isbn", 1).firstOrNull()
 
-    override suspend fun query(keywords: String, max: Int): List<Book> {
+    override suspend fun findAll(isbns: Collection<String>): Map<String, Book> {
+        // The Google Books API does not support looking up multiple identifiers in a single request, so we spread
+        // the lookups over a bounded amount of workers instead
+        val queue = isbns.distinct()
+        val next = AtomicInteger()
+        val workers = List(min(parallelism, queue.size)) {
+            async(CommonPool) {
+                val found = mutableListOf<Pair<String, Book>>()
+                while (true) {
+                    val isbn = queue.getOrNull(next.getAndIncrement()) ?: break
+                    find(isbn)?.let { found += isbn to it }
+                }
+                found
+            }
+        }
+        val result = workers.flatMap { it.await() }.toMap()
+        return queue.mapNotNull { isbn -> result[isbn]?.let { isbn to it } }.toMap()
+    }
+
+    override suspend fun query(keywords: String, max: Int): List<Book> = stream(keywords, max).toList()
+
+    override suspend fun query(title: String, author: String, max: Int): List<Book> =
+        stream(title, author, max).toList()
+
+    override fun stream(keywords: String, max: Int): ReceiveChannel<Book> {
         // Google Books fails on empty query (#121)
         if (keywords.isBlank()) {
-            return emptyList()
+            return emptyList<Book>().asReceiveChannel()
         }
+        return paginate(PAGE_SIZE, max) { offset, size -> page(keywords, offset, size) }
+    }
 
-        val response = catalogue.volumes().list(keywords).setMaxResults(min(40, max).toLong()).execute()
+    override fun stream(title: String, author: String, max: Int): ReceiveChannel<Book> =
+        stream("intitle:$title+inauthor:$author", max)
 
-        // BUG (Google Books API): The items field is null when no items could be found, return null instead
-        if (response.totalItems == 0) {
-            return emptyList()
-        }
-        return response.items.mapNotNull { map(it) }
+    /**
+     * Request a single page of the results of the given query.
+     *
+     * @param keywords The query to request the results of.
+     * @param offset The (zero-based) index of the first result to request.
+     * @param size The amount of results to request.
+     * @return The page of results.
+     */
+    private suspend fun page(keywords: String, offset: Int, size: Int): Page {
+        val response = execute(catalogue.volumes().list(keywords)
+            .setStartIndex(offset.toLong())
+            .setMaxResults(size.toLong()))
+
+        // BUG (Google Books API): The items field is null when no items could be found
+        val items = response.items ?: return Page(emptyList(), true)
+
+        // The total amount of items is an estimate, so we also stop at the first empty page
+        val last = items.isEmpty() || offset + items.size >= (response.totalItems ?: 0)
+        return Page(items.mapNotNull { map(it) }, last)
+    }
+
+    /**
+     * Execute the given request on the dispatcher of this client, applying the timeouts of the configuration.
+     *
+     * @param request The request to execute.
+     * @return The parsed response of the request.
+     */
+    private suspend fun <T> execute(request: BooksRequest<T>): T = withContext(io) {
+        request.buildHttpRequest()
+            .setConnectTimeout(configuration.connectTimeout)
+            .setReadTimeout(configuration.readTimeout)
+            .execute()
+            .parseAs(request.responseClass)
     }
 
-    override suspend fun query(title: String, author: String, max: Int): List<Book> {
-        return query("intitle:$title+inauthor:$author", max)
+    override fun close() {
+        io.close()
     }
 
     /**
@@ -120,6 +226,13 @@ class GoogleCatalogueClient(private val catalogue: Books) : CatalogueClient {
             images
         )
     }
+
+    companion object {
+        /**
+         * The maximum amount of results the Google Books API returns per request.
+         */
+        private const val PAGE_SIZE = 40
+    }
 }
 
 /**
@@ -20,6 +20,7 @@ import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport
 import com.google.api.client.json.jackson2.JacksonFactory
 import com.google.api.services.books.Books
 import com.google.api.services.books.BooksRequestInitializer
+import kotlinx.coroutines.experimental.channels.toList
 import kotlinx.coroutines.experimental.runBlocking
 import nl.tudelft.booklab.catalogue.CatalogueClient
 import org.junit.jupiter.api.Assertions.assertEquals
@@ -68,4 +69,30 @@ class GoogleCatalogueClientTest {
             assertEquals(0, results.size)
         }
     }
+
+    @Test
+    fun `batch lookup`() {
+        runBlocking {
+            val isbns = listOf("9789023427086", "9789023468232", "0000000000000")
+            val results = client.findAll(isbns)
+
+            assertEquals(isbns.filter { client.find(it) != null }.toSet(), results.keys)
+        }
+    }
+
+    @Test
+    fun `query beyond a single page`() {
+        runBlocking {
+            val results = client.query("harry potter", 60)
+
+            assertTrue(results.size > 40)
+        }
+    }
+
+    @Test
+    fun `stream empty query`() {
+        runBlocking {
+            assertEquals(0, client.stream("", 5).toList().size)
+        }
+    }
 }
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.catalogue.google
+
+import com.google.api.client.http.LowLevelHttpRequest
+import com.google.api.client.http.LowLevelHttpResponse
+import com.google.api.client.json.Json
+import com.google.api.client.json.jackson2.JacksonFactory
+import com.google.api.client.testing.http.MockHttpTransport
+import com.google.api.client.testing.http.MockLowLevelHttpRequest
+import com.google.api.client.testing.http.MockLowLevelHttpResponse
+import com.google.api.services.books.Books
+import kotlinx.coroutines.experimental.CommonPool
+import kotlinx.coroutines.experimental.async
+import kotlinx.coroutines.experimental.runBlocking
+import nl.tudelft.booklab.catalogue.Identifier
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import java.util.Collections
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Test suite for the way the [GoogleCatalogueClient] makes its requests, using a mocked transport.
+ */
+internal class GoogleCatalogueClientTransportTest {
+    /**
+     * The names of the threads on which the requests have been made.
+     */
+    private val threads = Collections.synchronizedSet(mutableSetOf<String>())
+
+    /**
+     * The timeouts that have been set on the requests.
+     */
+    private val timeouts = Collections.synchronizedSet(mutableSetOf<Pair<Int, Int>>())
+
+    /**
+     * The amount of requests that are in flight.
+     */
+    private val inFlight = AtomicInteger()
+
+    /**
+     * The maximum amount of requests that have been in flight at once.
+     */
+    private val maxInFlight = AtomicInteger()
+
+    /**
+     * The client to test.
+     */
+    private val client = GoogleCatalogueClient(
+        Books.Builder(Transport(), JacksonFactory.getDefaultInstance(), null).setApplicationName("booklab").build(),
+        configuration = GoogleCatalogueConfiguration(maxConcurrentRequests = 2, connectTimeout = 100, readTimeout = 200)
+    )
+
+    @AfterEach
+    fun tearDown() {
+        client.close()
+    }
+
+    @Test
+    fun `requests are made on the dedicated dispatcher`() {
+        runBlocking {
+            val book = client.find("9789023427086")
+
+            assertEquals("9789023427086", book?.identifiers?.get(Identifier.ISBN_13))
+            assertTrue(threads.all { it.startsWith("google-books") }, "Requests made on $threads")
+        }
+    }
+
+    @Test
+    fun `timeouts are applied to each request`() {
+        runBlocking {
+            client.query("de ontdekking van de hemel", 1)
+
+            assertEquals(setOf(100 to 200), timeouts)
+        }
+    }
+
+    @Test
+    fun `amount of requests in flight is bounded`() {
+        runBlocking {
+            List(8) { async(CommonPool) { client.query("query $it", 1) } }.forEach { it.await() }
+
+            assertEquals(2, maxInFlight.get())
+        }
+    }
+
+    /**
+     * A transport that answers every request with a single book after a short delay.
+     */
+    private inner class Transport : MockHttpTransport() {
+        override fun buildRequest(method: String, url: String): LowLevelHttpRequest =
+            object : MockLowLevelHttpRequest() {
+                override fun setTimeout(connectTimeout: Int, readTimeout: Int) {
+                    timeouts += connectTimeout to readTimeout
+                }
+
+                override fun execute(): LowLevelHttpResponse {
+                    threads += Thread.currentThread().name
+                    maxInFlight.accumulateAndGet(inFlight.incrementAndGet()) { a, b -> maxOf(a, b) }
+                    try {
+                        Thread.sleep(50)
+                    } finally {
+                        inFlight.decrementAndGet()
+                    }
+                    return MockLowLevelHttpResponse()
+                        .setContentType(Json.MEDIA_TYPE)
+                        .setContent(RESPONSE)
+                }
+            }
+    }
+
+    companion object {
+        /**
+         * The response of the API containing a single book.
+         */
+        private const val RESPONSE = """{"kind": "books#volumes", "totalItems": 1, "items": [{"id": "abc",
+            "volumeInfo": {"title": "De ontdekking van de hemel", "authors": ["Harry Mulisch"],
+            "industryIdentifiers": [{"type": "ISBN_13", "identifier": "9789023427086"}]}}]}"""
+    }
+}
@@ -23,10 +23,15 @@ import io.ktor.client.engine.config
 import io.ktor.client.request.url
 import io.ktor.http.HttpMethod
 import io.ktor.http.formUrlEncode
+import kotlinx.coroutines.experimental.channels.ReceiveChannel
+import kotlinx.coroutines.experimental.channels.toList
 import kotlinx.coroutines.experimental.io.jvm.javaio.toInputStream
 import nl.tudelft.booklab.catalogue.Book
 import nl.tudelft.booklab.catalogue.CatalogueClient
 import nl.tudelft.booklab.catalogue.Identifier
+import nl.tudelft.booklab.catalogue.Page
+import nl.tudelft.booklab.catalogue.RetryPolicy
+import nl.tudelft.booklab.catalogue.paginate
 import java.net.URL
 
 /**
@@ -37,41 +42,130 @@ import java.net.URL
  * the default client uses Apache
  * @property baseUrl the base url to the sru catalogue. the value defaults
  * to http://jsru.kb.nl/sru the SRU catalogue of the Koninklijke Bibliotheek
+ * @property batchSize the maximum amount of identifiers that are combined into
+ * a single query when looking up multiple books
+ * @property pageSize the maximum amount of records that are requested at once
+ * when paging through the results of a query
+ * @property retry the policy for retrying requests that failed due to an I/O
+ * error
  *
  * @author Christian Slothouber (f.c.slothouber@student.tudelft.nl)
  */
 class SruCatalogueClient (
     private val client: HttpClient = HttpClient(Apache.config { socketTimeout = 100000 }),
-    private val baseUrl: String = "http://jsru.kb.nl/sru"
+    private val baseUrl: String = "http://jsru.kb.nl/sru",
+    private val batchSize: Int = 50,
+    private val pageSize: Int = 100,
+    private val retry: RetryPolicy = RetryPolicy()
 ) : CatalogueClient {
+    init {
+        require(batchSize > 0) { "The batch size must be positive" }
+        require(pageSize > 0) { "The page size must be positive" }
+    }
 
     override suspend fun find(isbn: String): Book? {
-        return queryHelper("dc.identifier =/isbn $isbn", 1).firstOrNull()
+        return queryHelper(createIsbnQuery(isbn), 1).firstOrNull()
+    }
+
+    override suspend fun findAll(isbns: Collection<String>): Map<String, Book> {
+        val result = LinkedHashMap<String, Book>()
+        for (batch in isbns.distinct().chunked(batchSize)) {
+            val query = batch.joinToString(" OR ") { createIsbnQuery(it) }
+            val found = resolve(query, batch.mapTo(HashSet()) { normalizeIsbn(it) })
+            for (isbn in batch) {
+                found[normalizeIsbn(isbn)]?.let { result[isbn] = it }
+            }
+        }
+        return result
+    }
+
+    /**
+     * helper method that pages through the results of a query until a book
+     * has been found for each of the given identifiers or the results run out.
+     * a single record may be returned for multiple identifiers and an
+     * identifier may match multiple records, so the amount of pages needed is
+     * not known up front
+     *
+     * @param cqlQuery a CQL query matching the identifiers
+     * @param isbns the normalized identifiers to resolve
+     * @return a map of the normalized identifiers to the first matching book
+     */
+    private suspend fun resolve(cqlQuery: String, isbns: Set<String>): Map<String, Book> {
+        val result = HashMap<String, Book>()
+        val books = streamHelper(cqlQuery, Int.MAX_VALUE)
+        try {
+            for (book in books) {
+                for (id in book.identifiers.values) {
+                    val normalized = normalizeIsbn(id)
+                    if (normalized in isbns) {
+                        result.putIfAbsent(normalized, book)
+                    }
+                }
+                if (result.size == isbns.size) {
+                    break
+                }
+            }
+        } finally {
+            books.cancel()
+        }
+        return result
     }
 
     override suspend fun query(keywords: String, max: Int): List<Book> {
-        return queryHelper(createCqlQuery(keywords), max)
+        return stream(keywords, max).toList()
     }
 
     override suspend fun query(title: String, author: String, max: Int): List<Book> {
-        return queryHelper(createCqlQuery(title, author), max)
+        return stream(title, author, max).toList()
+    }
+
+    override fun stream(keywords: String, max: Int): ReceiveChannel<Book> {
+        return streamHelper(createCqlQuery(keywords), max)
+    }
+
+    override fun stream(title: String, author: String, max: Int): ReceiveChannel<Book> {
+        return streamHelper(createCqlQuery(title, author), max)
     }
 
     /**
      * helper method used to avoid code duplication. this method actually queries
-     * the catalogue and parses it to the list of [Book]s
+     * the catalogue and parses it to the list of [Book]s. the records are
+     * parsed while the response is still being received and the response is
+     * abandoned as soon as enough books have been read
      *
      * @param cqlQuery a CQL query. see the following link for the specification
      * http://www.loc.gov/standards/sru/cql/index.html
      * @param max the maximum amount of results
+     * @param start the (one-based) position of the first result
      * @return the list of matching [Book]s
      */
-    private suspend fun queryHelper(cqlQuery: String, max: Int): List<Book> {
-        val stream = client.call {
-            url(createSruUrl(cqlQuery.toLowerCase(), max))
-            method = HttpMethod.Get
-        }.response.content.toInputStream()
-        return SruParser.parse(stream)
+    private suspend fun queryHelper(cqlQuery: String, max: Int, start: Int = 1): List<Book> {
+        return retry.execute {
+            // the call is closed even if the response is abandoned early, so
+            // that its connection is returned to the pool
+            client.call {
+                url(createSruUrl(cqlQuery.toLowerCase(), max, start))
+                method = HttpMethod.Get
+            }.use { call ->
+                call.response.content.toInputStream().use { SruParser.records(it).take(max).toList() }
+            }
+        }
+    }
+
+    /**
+     * helper method that pages through the results of a query using the
+     * startRecord parameter of SRU. a page that contains less records than
+     * requested is the last page
+     *
+     * @param cqlQuery a CQL query
+     * @param max the maximum amount of results
+     * @return a channel emitting the matching [Book]s
+     */
+    private fun streamHelper(cqlQuery: String, max: Int): ReceiveChannel<Book> {
+        return paginate(pageSize, max) { offset, size ->
+            val books = queryHelper(cqlQuery, size, offset + 1)
+            Page(books, books.size < size)
+        }
     }
 
     /**
@@ -89,6 +183,24 @@ class SruCatalogueClient (
             |dc.creator any/fuzzy/ignoreCase/ignoreAccents "$author"""".trimMargin()
     }
 
+    /**
+     * creates a CQL query matching the book with the given ISBN
+     *
+     * @param isbn the ISBN of the book
+     * @return a string represented CQL query
+     */
+    private fun createIsbnQuery(isbn: String): String = "dc.identifier =/isbn $isbn"
+
+    /**
+     * normalizes the given ISBN so that identifiers that only differ in
+     * formatting can be compared
+     *
+     * @param isbn the ISBN to normalize
+     * @return the normalized ISBN
+     */
+    private fun normalizeIsbn(isbn: String): String =
+        isbn.filter { it.isLetterOrDigit() }.toLowerCase()
+
     /**
      * creates a CQL query based on keywords
      *
@@ -104,15 +216,17 @@ class SruCatalogueClient (
      *
      * @param query the CQL query
      * @param max the maximum number of records to be received
+     * @param start the (one-based) position of the first record to be received
      * @return a string representation of the the url
      */
-    private fun createSruUrl(query: String, max: Int): String {
+    private fun createSruUrl(query: String, max: Int, start: Int): String {
         val params = listOf(
             "operation" to "searchRetrieve",
             "version" to "1.2",
             "recordSchema" to "dcx",
             "x-collection" to "GGC",
             "query" to query,
+            "startRecord" to start.toString(),
             "maximumRecords" to max.toString())
         return "$baseUrl?${params.formUrlEncode()}"
     }
@@ -18,11 +18,12 @@ package nl.tudelft.booklab.catalogue.sru
 
 import nl.tudelft.booklab.catalogue.Book
 import nl.tudelft.booklab.catalogue.Identifier
-import org.w3c.dom.Document
-import org.w3c.dom.Element
-import java.io.File
 import java.io.InputStream
-import javax.xml.parsers.DocumentBuilderFactory
+import javax.xml.stream.XMLInputFactory
+import javax.xml.stream.XMLStreamConstants
+import javax.xml.stream.XMLStreamException
+import javax.xml.stream.XMLStreamReader
+import kotlin.coroutines.experimental.buildSequence
 
 /**
  * A [Exception] thrown when for whatever reason the parser fails
@@ -34,141 +35,134 @@ class SruParseException : Exception()
 /**
  * A parser that parses Dublin Core XML results into a list of [Book]s
  *
+ * The response is read as a stream of events, so that each record is turned into a [Book] as soon as it has been
+ * read and the response never has to be held in memory as a whole.
+ *
  * @author Christian Slothouber (f.c.slothouber@student.tudelft.nl)
  */
 object SruParser {
     /**
-     * Using a [File] with the XML source (can be a temporary file)
-     * creates a [Document] that can be parsed
-     *
-     * @param file the [File] containing the XML
-     * @return the [Document]
+     * The factory to create the stream readers with. Since the responses are not guaranteed to declare their
+     * namespaces, the elements are matched by their qualified names. DTDs and external entities are disabled to
+     * protect against XXE attacks.
      */
-    private fun createDocument(stream: InputStream): Document {
-        val doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(stream)
-        doc.documentElement.normalize()
-        return doc
+    private val factory: XMLInputFactory = XMLInputFactory.newInstance().apply {
+        setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false)
+        setProperty(XMLInputFactory.SUPPORT_DTD, false)
+        setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false)
     }
 
     /**
-     * Parse the main title from the book.
+     * parses Dublin Core XML to a list of [Book]s.
+     * the source is passed using a [InputStream]
      *
-     * @param record the record containing the title [Element]s
-     * @return The main title of the book.
+     * @param stream the [InputStream] containing the XML source
+     * @return the list of books
      */
-    private fun parseTitle(record: Element): String {
-        val titleElements = record.getElementsByTagName("dc:title")
-
-        for (i in 0 until titleElements.length) {
-            val e = titleElements.item(i) as Element
-            if (e.getAttribute("xsi:type") == "dcx:maintitle")
-                return e.textContent
-        }
-
-        return "<NO TITLE>"
-    }
+    fun parse(stream: InputStream): List<Book> = records(stream).toList()
 
     /**
-     * Parse the sub title from the book.
+     * parses Dublin Core XML lazily to a sequence of [Book]s, which are
+     * emitted as soon as their record has been read from the stream.
+     * the sequence can only be iterated once and the stream is not closed
      *
-     * @param record the record containing the title [Element]s
-     * @return The sub title of the book.
+     * @param stream the [InputStream] containing the XML source
+     * @return the sequence of books
+     * @throws SruParseException if the XML source is malformed (while iterating)
      */
-    private fun parseSubtitle(record: Element): String? {
-        val titleElements = record.getElementsByTagName("dc:title")
-
-        for (i in 0 until titleElements.length) {
-            val e = titleElements.item(i) as Element
-            if (e.getAttribute("xsi:type") == "dcx:subtitle")
-                return e.textContent
+    fun records(stream: InputStream): Sequence<Book> = buildSequence {
+        try {
+            val reader = factory.createXMLStreamReader(stream)
+            try {
+                while (reader.hasNext()) {
+                    if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.name() == "srw:record") {
+                        yield(parseRecord(reader))
+                    }
+                }
+            } finally {
+                reader.close()
+            }
+        } catch (e: XMLStreamException) {
+            throw SruParseException()
         }
-
-        return null
     }
 
     /**
-     * parses a list of isbn identifiers from a record
-     * all identifiers that are not a isbn id are discarded
+     * parses a single record, of which the start element has just been
+     * read, up to and including its end element
      *
-     * @param record the record [Element] the be parsed
-     * @return list of isbn numbers
+     * @param reader the reader positioned at the start of the record
+     * @return the book described by the record
      */
-    private fun parseIds(record: Element): Map<Identifier, String> {
-        val idElements = record.getElementsByTagName("dc:identifier")
+    private fun parseRecord(reader: XMLStreamReader): Book {
+        var title: String? = null
+        var subtitle: String? = null
         val ids: MutableMap<Identifier, String> = mutableMapOf()
-
-        for (i in 0 until idElements.length) {
-            val id = idElements.item(i) as Element
-            if (id.getAttribute("xsi:type") == "dcterms:ISBN") {
-                val type = if (id.textContent.length == 13) Identifier.ISBN_13 else Identifier.ISBN_10
-                ids[type] = id.textContent
+        val authors: MutableList<String> = mutableListOf()
+        var publisher: String? = null
+
+        var depth = 1
+        while (depth > 0) {
+            when (reader.next()) {
+                XMLStreamConstants.START_ELEMENT -> when (reader.name()) {
+                    "dc:title" -> when (reader.attribute("xsi:type")) {
+                        "dcx:maintitle" -> reader.text().let { if (title == null) title = it }
+                        "dcx:subtitle" -> reader.text().let { if (subtitle == null) subtitle = it }
+                        else -> depth++
+                    }
+                    "dc:identifier" -> if (reader.attribute("xsi:type") == "dcterms:ISBN") {
+                        // all identifiers that are not a isbn id are discarded
+                        val id = reader.text()
+                        ids[if (id.length == 13) Identifier.ISBN_13 else Identifier.ISBN_10] = id
+                    } else {
+                        depth++
+                    }
+                    "dc:creator" -> authors.add(reader.text())
+                    "dc:publisher" -> reader.text().let { if (publisher == null) publisher = it }
+                    else -> depth++
+                }
+                XMLStreamConstants.END_ELEMENT -> depth--
             }
         }
 
-        return ids
+        return SruBook(ids, title ?: "<NO TITLE>", subtitle, authors, publisher)
     }
 
     /**
-     * parses a list of author names from a record
-     *
-     * @param record the record [Element] to be parsed
-     * @return a list of author names
+     * Determine the qualified name of the current element.
      */
-    private fun parseAuthors(record: Element): List<String> {
-        val authorElements = record.getElementsByTagName("dc:creator")
-        val authors: MutableList<String> = mutableListOf()
-
-        for (i in 0 until authorElements.length) {
-            authors.add(authorElements.item(i).textContent)
-        }
-
-        return authors
-    }
+    private fun XMLStreamReader.name(): String = qualify(prefix, localName)
 
     /**
-     * Parses a publisher from a record.
-     *
-     * @param record the record [Element] to be parsed
-     * @return The name of the publisher or `null` if it could not be found.
+     * Determine the value of the attribute of the current element with the given qualified name.
      */
-    private fun parsePublisher(record: Element): String? {
-        val publisherElements = record.getElementsByTagName("dc:publisher")
-
-        if (publisherElements.length > 0) {
-            return publisherElements.item(0).textContent
-        }
-
-        return null
-    }
+    private fun XMLStreamReader.attribute(name: String): String? =
+        (0 until attributeCount)
+            .firstOrNull { qualify(getAttributePrefix(it), getAttributeLocalName(it)) == name }
+            ?.let { getAttributeValue(it) }
 
     /**
-     * parses Dublin Core XML to a list of [Book]s.
-     * the source is passed using a [InputStream]
-     *
-     * @param stream the [InputStream] containing the XML source
-     * @return the list of books
+     * Read the text content of the current element (including that of its descendants) up to and including its end
+     * element.
      */
-    fun parse(stream: InputStream): List<Book> {
-        val books: MutableList<Book> = mutableListOf()
-
-        try {
-            val records = createDocument(stream).documentElement.getElementsByTagName("srw:record")
-            for (i in 0 until records.length) {
-                val record = records.item(i) as Element
-                books.add(
-                    SruBook(
-                        parseIds(record),
-                        parseTitle(record),
-                        parseSubtitle(record),
-                        parseAuthors(record),
-                        parsePublisher(record)
-                    )
-                )
+    private fun XMLStreamReader.text(): String {
+        val builder = StringBuilder()
+        var depth = 1
+        while (depth > 0) {
+            when (next()) {
+                XMLStreamConstants.CHARACTERS, XMLStreamConstants.CDATA, XMLStreamConstants.SPACE ->
+                    builder.append(textCharacters, textStart, textLength)
+                XMLStreamConstants.START_ELEMENT -> depth++
+                XMLStreamConstants.END_ELEMENT -> depth--
             }
-        } catch (e: Exception) {
-            throw SruParseException()
         }
-
-        return books
+        return builder.toString()
     }
+
+    /**
+     * Construct the qualified name from the given prefix and local name. Depending on the implementation, a reader
+     * that is not namespace aware either reports the qualified name as local name or splits it.
+     */
+    private fun qualify(prefix: String?, localName: String): String =
+        if (prefix.isNullOrEmpty()) localName else "$prefix:$localName"
 }
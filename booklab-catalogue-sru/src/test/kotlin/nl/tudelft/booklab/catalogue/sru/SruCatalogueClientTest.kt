@@ -16,6 +16,7 @@
 
 package nl.tudelft.booklab.catalogue.sru
 
+import kotlinx.coroutines.experimental.channels.toList
 import kotlinx.coroutines.experimental.runBlocking
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Test
@@ -31,4 +32,36 @@ internal class SruCatalogueClientTest {
             assertEquals(5, books.size)
         }
     }
+
+    @Test
+    fun `batch lookup`() {
+        runBlocking {
+            val isbns = listOf("9789023427086", "9789023468232", "0000000000000")
+            val books = sruClient.findAll(isbns)
+
+            assertEquals(isbns.filter { sruClient.find(it) != null }.toSet(), books.keys)
+        }
+    }
+
+    @Test
+    fun `batch lookup pages through results`() {
+        runBlocking {
+            val client = SruCatalogueClient(pageSize = 1)
+            val isbns = listOf("9789023427086", "9789023468232", "0000000000000")
+            val books = client.findAll(isbns)
+
+            assertEquals(sruClient.findAll(isbns).keys, books.keys)
+        }
+    }
+
+    @Test
+    fun `stream pages through results`() {
+        runBlocking {
+            val client = SruCatalogueClient(pageSize = 5)
+            val books = client.stream("harry mulisch", 12).toList()
+
+            assertEquals(12, books.size)
+            assertEquals(books.size, books.toSet().size)
+        }
+    }
 }
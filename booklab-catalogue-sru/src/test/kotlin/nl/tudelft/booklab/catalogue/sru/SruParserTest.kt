@@ -21,6 +21,7 @@ import nl.tudelft.booklab.catalogue.Identifier
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 
 internal class SruParserTest {
 
@@ -88,4 +89,39 @@ internal class SruParserTest {
         assertEquals("Cornelissen, Ignace", realBooks[0].authors[0])
         assertEquals("9789491396311", realBooks[0].identifiers[Identifier.ISBN_13])
     }
+
+    @Test
+    fun `records yields the same books as parse`() {
+        val records = SruParser.records(SruParserTest::class.java.getResource("/realistic-test.xml").openStream())
+
+        assertEquals(realBooks.map { it.identifiers }, records.map { it.identifiers }.toList())
+    }
+
+    @Test
+    fun `records emits books before the end of the stream`() {
+        val xml = SruParserTest::class.java.getResource("/realistic-test.xml").readText()
+        // cut the response off right after the first record
+        val end = xml.indexOf("</srw:record>") + "</srw:record>".length
+        val records = SruParser.records(xml.substring(0, end).byteInputStream())
+
+        assertEquals("De ontdekking van de hemel", records.first().title)
+    }
+
+    @Test
+    fun `malformed xml`() {
+        val stream = "<srw:records><srw:record><dc:title>".byteInputStream()
+
+        assertThrows<SruParseException> { SruParser.parse(stream) }
+    }
+
+    @Test
+    fun `external entities are not resolved`() {
+        val stream = """<?xml version="1.0"?>
+            |<!DOCTYPE records [<!ENTITY xxe SYSTEM "file:///etc/passwd">]>
+            |<srw:records><srw:record>
+            |<dc:title xsi:type="dcx:maintitle">&xxe;</dc:title>
+            |</srw:record></srw:records>""".trimMargin().byteInputStream()
+
+        assertThrows<SruParseException> { SruParser.parse(stream) }
+    }
 }
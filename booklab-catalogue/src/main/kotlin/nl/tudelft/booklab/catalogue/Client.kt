@@ -16,6 +16,9 @@
 
 package nl.tudelft.booklab.catalogue
 
+import kotlinx.coroutines.experimental.channels.ReceiveChannel
+import kotlin.math.min
+
 /**
  * An interface that standardizes a book catalogue client that is used to query lists of [Book]
  *
@@ -30,6 +33,24 @@ interface CatalogueClient {
      */
     suspend fun find(isbn: String): Book?
 
+    /**
+     * Find multiple books by their identifiers.
+     *
+     * By default, this method looks up the books one by one using [find]. Implementations should override this
+     * method if the catalogue allows the books to be resolved more efficiently.
+     *
+     * @param isbns The identifiers of the books to find.
+     * @return A map from the given identifiers to the books that have been found. Identifiers of books that could
+     * not be found are absent from the map.
+     */
+    suspend fun findAll(isbns: Collection<String>): Map<String, Book> {
+        val result = LinkedHashMap<String, Book>()
+        for (isbn in isbns.distinct()) {
+            find(isbn)?.let { result[isbn] = it }
+        }
+        return result
+    }
+
     /**
      * Queries the catalogue for a list of [Book]s based on keywords.
      * fuzzy search is used for matching the keywords
@@ -55,4 +76,41 @@ interface CatalogueClient {
      * @return a list of [Book]s matching the keywords sorted by relevance
      */
     suspend fun query(title: String, author: String, max: Int): List<Book>
+
+    /**
+     * Stream the results of a query for [Book]s based on keywords, paging
+     * lazily through the results of the catalogue.
+     *
+     * By default, this method performs a single [query] for at most
+     * [DEFAULT_PAGE_SIZE] books. Implementations should override this method
+     * if the catalogue supports paging.
+     *
+     * @param keywords is a space separated string of keywords
+     * @param max the maximum number of results to be emitted
+     * @return a channel emitting the [Book]s matching the keywords sorted by
+     * relevance. the channel should be cancelled if not consumed entirely
+     */
+    fun stream(keywords: String, max: Int = Int.MAX_VALUE): ReceiveChannel<Book> {
+        val limit = min(max, DEFAULT_PAGE_SIZE)
+        return paginate(limit.coerceAtLeast(1), limit) { _, size -> Page(query(keywords, size), true) }
+    }
+
+    /**
+     * Stream the results of a query for [Book]s based on the book title and
+     * the authors name, paging lazily through the results of the catalogue.
+     *
+     * By default, this method performs a single [query] for at most
+     * [DEFAULT_PAGE_SIZE] books. Implementations should override this method
+     * if the catalogue supports paging.
+     *
+     * @param title keywords from the the title of the book
+     * @param author keywords matching the authors name
+     * @param max the maximum number of results to be emitted
+     * @return a channel emitting the [Book]s matching the keywords sorted by
+     * relevance. the channel should be cancelled if not consumed entirely
+     */
+    fun stream(title: String, author: String, max: Int = Int.MAX_VALUE): ReceiveChannel<Book> {
+        val limit = min(max, DEFAULT_PAGE_SIZE)
+        return paginate(limit.coerceAtLeast(1), limit) { _, size -> Page(query(title, author, size), true) }
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.catalogue
+
+import kotlinx.coroutines.experimental.DefaultDispatcher
+import kotlinx.coroutines.experimental.channels.ReceiveChannel
+import kotlinx.coroutines.experimental.channels.produce
+import kotlin.coroutines.experimental.CoroutineContext
+import kotlin.math.min
+
+/**
+ * A page of results of a catalogue query.
+ *
+ * @property books The books on the page.
+ * @property last A flag to indicate that no results follow this page.
+ */
+data class Page(val books: List<Book>, val last: Boolean)
+
+/**
+ * The page size of catalogues that do not page through their results themselves.
+ */
+const val DEFAULT_PAGE_SIZE = 40
+
+/**
+ * The maximum amount of books buffered ahead of the consumer of a paginated query.
+ */
+private const val MAX_BUFFER = 64
+
+/**
+ * Page lazily through the results of a catalogue query.
+ *
+ * The next page is already requested while the books of the current page are being consumed, but never more than a
+ * single page (and at most 64 books) ahead. Cancelling the returned channel stops the paging.
+ *
+ * @param pageSize The maximum amount of results to request per page.
+ * @param max The maximum amount of books to emit.
+ * @param context The context in which the pages are requested.
+ * @param fetch The function to request the page at the given (zero-based) offset with the given size.
+ * @return A channel emitting the books in the order of the pages.
+ */
+fun paginate(
+    pageSize: Int,
+    max: Int,
+    context: CoroutineContext = DefaultDispatcher,
+    fetch: suspend (offset: Int, size: Int) -> Page
+): ReceiveChannel<Book> {
+    require(pageSize > 0) { "The page size must be positive" }
+    require(max >= 0) { "The maximum amount of books must not be negative" }
+
+    // The buffer holds a single page, such that the producer can request the next page as soon as it has handed
+    // over the current one, but is bounded since the page size may be as large as the maximum amount of books
+    return produce(context, capacity = min(pageSize, MAX_BUFFER)) {
+        var offset = 0
+        var remaining = max
+        while (remaining > 0) {
+            val size = min(pageSize, remaining)
+            val page = fetch(offset, size)
+            for (book in page.books.take(remaining)) {
+                send(book)
+                remaining--
+            }
+            if (page.last) {
+                break
+            }
+            offset += size
+        }
+    }
+}
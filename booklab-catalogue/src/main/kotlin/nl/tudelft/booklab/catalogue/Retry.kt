@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.catalogue
+
+import kotlinx.coroutines.experimental.delay
+import java.io.IOException
+import java.util.concurrent.ThreadLocalRandom
+import kotlin.math.min
+
+/**
+ * A policy for retrying requests to remote services that failed due to an I/O error (e.g. a timeout or a reset
+ * connection).
+ *
+ * Between the attempts, the policy backs off exponentially with full jitter: the n-th retry waits a random time between
+ * zero and `backoff * 2^n` milliseconds (capped at [maximumBackoff]), such that clients that failed at the same time do
+ * not retry in lockstep.
+ *
+ * @property retries The maximum amount of times a failed request is retried.
+ * @property backoff The backoff in milliseconds before the first retry.
+ * @property maximumBackoff The maximum backoff in milliseconds between two attempts.
+ */
+data class RetryPolicy(
+    val retries: Int = 0,
+    val backoff: Long = 100,
+    val maximumBackoff: Long = 2000
+) {
+    init {
+        require(retries >= 0) { "The amount of retries must not be negative" }
+        require(backoff >= 0) { "The backoff must not be negative" }
+        require(maximumBackoff >= backoff) { "The maximum backoff must not be smaller than the backoff" }
+    }
+
+    /**
+     * Run the given block, retrying it according to this policy if it fails with an [IOException].
+     *
+     * @param block The block to run.
+     * @return The result of the first successful attempt.
+     * @throws IOException if the last attempt failed.
+     */
+    suspend fun <T> execute(block: suspend () -> T): T {
+        var attempt = 0
+        while (true) {
+            try {
+                return block()
+            } catch (e: IOException) {
+                if (attempt >= retries) {
+                    throw e
+                }
+                delay(backoff(attempt++))
+            }
+        }
+    }
+
+    /**
+     * Determine the (jittered) backoff in milliseconds before the given retry.
+     *
+     * @param attempt The zero-based index of the retry.
+     * @return The time to wait before the retry.
+     */
+    fun backoff(attempt: Int): Long {
+        val ceiling = min(maximumBackoff, backoff shl min(attempt, 30))
+        return if (ceiling > 0) ThreadLocalRandom.current().nextLong(ceiling + 1) else 0
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.catalogue
+
+import kotlinx.coroutines.experimental.CompletableDeferred
+import kotlinx.coroutines.experimental.channels.toList
+import kotlinx.coroutines.experimental.runBlocking
+import kotlinx.coroutines.experimental.withTimeout
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.net.URL
+import java.util.Collections
+
+/**
+ * Test suite for the [paginate] function.
+ */
+internal class PaginateTest {
+    /**
+     * The pages that have been requested as offset and size.
+     */
+    private val requests = Collections.synchronizedList(mutableListOf<Pair<Int, Int>>())
+
+    @Test
+    fun `all pages are emitted until the last page`() {
+        runBlocking {
+            val books = paginate(2, 10) { offset, size -> page(offset, size, total = 5) }.toList()
+
+            assertEquals(listOf("0", "1", "2", "3", "4"), books.map { it.title })
+            assertEquals(listOf(0 to 2, 2 to 2, 4 to 2), requests)
+        }
+    }
+
+    @Test
+    fun `no more than the maximum amount of books is requested`() {
+        runBlocking {
+            val books = paginate(4, 6) { offset, size -> page(offset, size) }.toList()
+
+            assertEquals(6, books.size)
+            assertEquals(listOf(0 to 4, 4 to 2), requests)
+        }
+    }
+
+    @Test
+    fun `books dropped from a page do not stop paging`() {
+        runBlocking {
+            val books = paginate(2, 3) { offset, size -> page(offset, size).let { Page(it.books.take(1), false) } }
+                .toList()
+
+            assertEquals(listOf("0", "2", "4"), books.map { it.title })
+        }
+    }
+
+    @Test
+    fun `next page is requested while the current page is consumed`() {
+        runBlocking {
+            val requested = CompletableDeferred<Unit>()
+            val channel = paginate(2, 10) { offset, size ->
+                if (offset > 0) {
+                    requested.complete(Unit)
+                }
+                page(offset, size)
+            }
+
+            assertEquals("0", channel.receive().title)
+            withTimeout(5000) { requested.await() }
+            channel.cancel()
+        }
+    }
+
+    @Test
+    fun `failures are propagated`() {
+        val channel = paginate(2, 10) { offset, size ->
+            if (offset > 0) throw IllegalStateException() else page(offset, size)
+        }
+
+        assertThrows<IllegalStateException> { runBlocking { channel.toList() } }
+    }
+
+    @Test
+    fun `page size must be positive`() {
+        assertThrows<IllegalArgumentException> { paginate(0, 10) { offset, size -> page(offset, size) } }
+    }
+
+    @Test
+    fun `default stream requests at most a single default page`() {
+        val client = object : CatalogueClient {
+            override suspend fun find(isbn: String): Book? = null
+
+            override suspend fun query(keywords: String, max: Int): List<Book> = page(0, max).books
+
+            override suspend fun query(title: String, author: String, max: Int): List<Book> = page(0, max).books
+        }
+
+        runBlocking {
+            assertEquals(DEFAULT_PAGE_SIZE, client.stream("test").toList().size)
+            assertEquals(listOf(0 to DEFAULT_PAGE_SIZE), requests)
+        }
+    }
+
+    /**
+     * Create the page at the given offset of a result set with the given amount of books.
+     */
+    private fun page(offset: Int, size: Int, total: Int = Int.MAX_VALUE): Page {
+        requests += offset to size
+        val end = minOf(offset + size, total)
+        return Page((offset until end).map { TestBook(it.toString()) }, end >= total)
+    }
+
+    /**
+     * A [Book] that only has a title.
+     */
+    private class TestBook(override val title: String) : Book() {
+        override val identifiers = mapOf(Identifier.INTERNAL to title)
+        override val subtitle = null
+        override val authors = emptyList<String>()
+        override val publisher = null
+        override val categories = emptySet<String>()
+        override val publishedAt = null
+        override val description = null
+        override val language = null
+        override val ratings = null
+        override val images = emptyMap<String, URL>()
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.tudelft.booklab.catalogue
+
+import kotlinx.coroutines.experimental.runBlocking
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.io.IOException
+
+/**
+ * Test suite for the [RetryPolicy] class.
+ */
+internal class RetryPolicyTest {
+    @Test
+    fun `successful attempt is not retried`() {
+        var attempts = 0
+        val result = runBlocking { RetryPolicy(retries = 3).execute { attempts++; "ok" } }
+
+        assertEquals("ok", result)
+        assertEquals(1, attempts)
+    }
+
+    @Test
+    fun `failed attempts are retried`() {
+        var attempts = 0
+        val result = runBlocking {
+            RetryPolicy(retries = 3, backoff = 1, maximumBackoff = 1).execute {
+                if (++attempts < 3) throw IOException() else "ok"
+            }
+        }
+
+        assertEquals("ok", result)
+        assertEquals(3, attempts)
+    }
+
+    @Test
+    fun `last failure is rethrown`() {
+        var attempts = 0
+        assertThrows<IOException> {
+            val policy = RetryPolicy(retries = 2, backoff = 0, maximumBackoff = 0)
+            runBlocking { policy.execute { attempts++; throw IOException() } }
+        }
+        assertEquals(3, attempts)
+    }
+
+    @Test
+    fun `other failures are not retried`() {
+        var attempts = 0
+        assertThrows<IllegalStateException> {
+            runBlocking { RetryPolicy(retries = 2).execute { attempts++; throw IllegalStateException() } }
+        }
+        assertEquals(1, attempts)
+    }
+
+    @Test
+    fun `backoff grows exponentially up to the maximum`() {
+        val policy = RetryPolicy(retries = 10, backoff = 100, maximumBackoff = 1000)
+
+        repeat(100) {
+            assertTrue(policy.backoff(0) in 0..100)
+            assertTrue(policy.backoff(2) in 0..400)
+            assertTrue(policy.backoff(9) in 0..1000)
+        }
+    }
+}
@@ -24,6 +24,7 @@ import io.ktor.http.HttpMethod
 import io.ktor.http.HttpStatusCode
 import kotlinx.coroutines.experimental.io.jvm.javaio.toInputStream
 import nl.tudelft.booklab.catalogue.Book
+import nl.tudelft.booklab.catalogue.RetryPolicy
 import nl.tudelft.booklab.recommender.Recommender
 
 /**
@@ -33,24 +34,35 @@ import nl.tudelft.booklab.recommender.Recommender
  * @property client the HTTP client used to connect with the Goodreads
  * database
  * @property key the Goodreads API key
+ * @property retry the policy for retrying requests that failed due to an I/O
+ * error
  *
  * @author Christian Slothouber (f.c.slothouber@student.tudelft.nl)
  */
 class GoodreadsRatingRecommender(
     private val client: HttpClient = HttpClient(Apache),
-    private val key: String
+    private val key: String,
+    private val retry: RetryPolicy = RetryPolicy()
 ) : Recommender {
     private val parser = GoodreadsParser()
 
     override suspend fun recommend(collection: Set<Book>, candidates: Set<Book>): List<Book> {
-        val response = client.call {
-            url(createUrl(candidates
-                .map { it.identifiers.values }
-                .fold(emptyList()) { list, it -> list.plus(it) }))
-            method = HttpMethod.Get
-        }.response
-        if (response.status.value != HttpStatusCode.OK.value) { return emptyList() } // no candidates were found
-        val ratings = parser.parse(response.content.toInputStream())
+        val ratings = retry.execute {
+            // the call is always closed, so that its connection is returned to the pool
+            client.call {
+                url(createUrl(candidates
+                    .map { it.identifiers.values }
+                    .fold(emptyList()) { list, it -> list.plus(it) }))
+                method = HttpMethod.Get
+            }.use { call ->
+                val response = call.response
+                if (response.status.value != HttpStatusCode.OK.value) {
+                    null // no candidates were found
+                } else {
+                    parser.parse(response.content.toInputStream())
+                }
+            }
+        } ?: return emptyList()
         val map = candidates
             .filter { !collection.contains(it) }
             .filter { ratings.contains(it.identifiers.values.toList()) }
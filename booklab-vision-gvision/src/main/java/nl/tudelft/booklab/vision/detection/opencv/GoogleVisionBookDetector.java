@@ -7,7 +7,7 @@ import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.stream.Collectors;
 
 import static org.opencv.core.Core.*;
@@ -21,6 +21,31 @@ public class GoogleVisionBookDetector extends AbstractBookDetector {
         this.client = client;
     }
 
+    /**
+     * Construct a detector that processes the shelves of images of the given size in parallel
+     *
+     * @param client            client for the Google Vision API
+     * @param parallelThreshold minimum amount of pixels of an image for its shelves to be processed in parallel,
+     *                          where {@link Long#MAX_VALUE} disables parallel processing
+     */
+    public GoogleVisionBookDetector(ImageAnnotatorClient client, long parallelThreshold) {
+        super(parallelThreshold);
+        this.client = client;
+    }
+
+    /**
+     * Construct a detector that processes the shelves of images of the given size in parallel on the given executor
+     *
+     * @param client            client for the Google Vision API
+     * @param parallelThreshold minimum amount of pixels of an image for its shelves to be processed in parallel,
+     *                          where {@link Long#MAX_VALUE} disables parallel processing
+     * @param executor          executor to process the shelves on, which is not shut down by the detector
+     */
+    public GoogleVisionBookDetector(ImageAnnotatorClient client, long parallelThreshold, Executor executor) {
+        super(parallelThreshold, executor);
+        this.client = client;
+    }
+
     @NotNull
     @Override
     public List<Rect> detect(@NotNull Mat mat) {
@@ -35,17 +60,12 @@ public class GoogleVisionBookDetector extends AbstractBookDetector {
      */
     private List<Rect> detectBooks(Mat image) {
         image = ImageProcessingHelper.colorhistEqualize(image);
-        List<Rect> books = new ArrayList<>();
 
         Mat mask = findTextRegions(image);
         dilate(mask, mask, getStructuringElement(MORPH_ELLIPSE, new Size(10,10)));
-        Map<Mat, Mat> shelfMaskMap = findShelves(image, mask);
-
-        for (Map.Entry<Mat, Mat> entry : shelfMaskMap.entrySet()) {
-            books.addAll(findBooks(entry.getKey(), entry.getValue()));
-        }
+        List<Shelf> shelves = findShelves(image, mask);
 
-        return books;
+        return detectShelves(image, shelves, shelf -> findBooks(shelf.image, shelf.mask));
     }
 
     /**
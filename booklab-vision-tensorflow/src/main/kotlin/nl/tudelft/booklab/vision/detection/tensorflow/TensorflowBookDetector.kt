@@ -21,88 +21,444 @@ import org.opencv.core.CvType
 import org.opencv.core.Mat
 import org.opencv.core.Point
 import org.opencv.core.Rect
+import org.opencv.core.Size
 import org.opencv.imgproc.Imgproc
 import org.tensorflow.Graph
 import org.tensorflow.Session
 import org.tensorflow.Tensor
+import org.tensorflow.framework.ConfigProto
 import org.tensorflow.types.UInt8
 import java.io.Closeable
 import java.io.InputStream
 import java.nio.ByteBuffer
+import java.nio.FloatBuffer
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+import kotlin.math.min
+
+/**
+ * The configuration of the inference of a [TensorflowBookDetector].
+ *
+ * @property batchSize The maximum amount of concurrently submitted images that are run through the model in a single
+ * batch. A batch size of one disables batching, in which case images are run on the calling thread.
+ * @property callers The amount of threads that submit images concurrently (e.g. the threads of the detection
+ * pipeline). Since each caller is blocked until its image has been run, a batch can never hold more images than there
+ * are callers, so the batch size may not exceed this amount.
+ * @property batchTimeout The maximum time in milliseconds to wait for other images to fill a batch.
+ * @property workers The amount of batches that may be run concurrently.
+ * @property intraOpThreads The amount of threads used within a single operation, or zero to let Tensorflow decide.
+ * @property interOpThreads The amount of threads used to run independent operations, or zero to let Tensorflow
+ * decide.
+ */
+data class TensorflowInferenceConfiguration(
+    val batchSize: Int = 1,
+    val callers: Int = batchSize,
+    val batchTimeout: Long = 20,
+    val workers: Int = 1,
+    val intraOpThreads: Int = 0,
+    val interOpThreads: Int = 0
+) {
+    init {
+        require(batchSize > 0) { "The batch size must be positive" }
+        require(batchSize <= callers) { "The batch size must not exceed the amount of callers" }
+        require(batchTimeout >= 0) { "The batch timeout must not be negative" }
+        require(workers > 0) { "The amount of workers must be positive" }
+        require(intraOpThreads >= 0) { "The amount of intra-op threads must not be negative" }
+        require(interOpThreads >= 0) { "The amount of inter-op threads must not be negative" }
+    }
+
+    /**
+     * Serialize the session options of this configuration into a `ConfigProto`.
+     */
+    internal fun toConfigProto(): ByteArray = ConfigProto.newBuilder()
+        .setIntraOpParallelismThreads(intraOpThreads)
+        .setInterOpParallelismThreads(interOpThreads)
+        .build()
+        .toByteArray()
+}
 
 /**
  * A [BookDetector] that uses a Tensorflow model to detect books in images.
  *
+ * The buffers used to convert an image into an input tensor and to read the output tensors are pooled and reused
+ * between images, such that detecting books does not allocate any buffers proportional to the size of the image once
+ * the pool has warmed up. Since a single unusually large image would otherwise pin its buffers for the lifetime of the
+ * detector, the detector tracks a moving average of the input size (the working size) and releases buffers instead of
+ * retaining them if their capacity exceeds [trimRatio] times the working size.
+ *
+ * If batching is enabled, the images that are submitted concurrently are collected into batches and the images of the
+ * same shape are run through the model in a single session call. This amortizes the overhead of each call over the
+ * images of the batch and generally raises the throughput under concurrent load at the cost of some latency. Images of
+ * different shapes are not padded to a common shape, since the model would then spend most of its time on padding.
+ * Note that [detect] blocks the calling thread until the batch of its image has been run, so batches only fill up if
+ * enough threads call the detector concurrently (see [TensorflowInferenceConfiguration.callers]).
+ *
  * @property graph The Tensorflow model to use as a frozen inference graph.
  * @property score The minimum probability required for a book to be accepted (between 0 and 1).
+ * @property inputSize The maximum length in pixels of the longest edge of the image that is fed into the model (e.g.
+ * the native input size of the model), or zero to feed the image at full resolution.
+ * @property retained The maximum amount of buffers that are kept in the pool.
+ * @property configuration The configuration of the inference.
+ * @property trimRatio The ratio between the capacity of returned buffers and the working size above which the buffers
+ * are released instead of retained.
  */
-class TensorflowBookDetector(private val graph: Graph, private val score: Float = 0.5f) : BookDetector, Closeable {
-    private val session = Session(graph)
+class TensorflowBookDetector @JvmOverloads constructor(
+    private val graph: Graph,
+    private val score: Float = 0.5f,
+    private val inputSize: Int = 0,
+    private val retained: Int = Runtime.getRuntime().availableProcessors(),
+    private val configuration: TensorflowInferenceConfiguration = TensorflowInferenceConfiguration(),
+    private val trimRatio: Int = 4
+) : BookDetector, Closeable {
+    init {
+        require(inputSize >= 0) { "The input size must not be negative" }
+        require(retained >= 0) { "The amount of retained buffers must not be negative" }
+        require(trimRatio >= 1) { "The trim ratio must be at least one" }
+    }
+
+    private val session = Session(graph, configuration.toConfigProto())
+
+    /**
+     * The buffers that are available for reuse.
+     */
+    private val buffers = ArrayBlockingQueue<Buffers>(maxOf(1, retained))
+
+    /**
+     * The images waiting to be batched.
+     */
+    private val queue = LinkedBlockingQueue<Request>()
+
+    /**
+     * A flag to indicate that the detector has been closed.
+     */
+    @Volatile
+    private var closed = false
+
+    /**
+     * The amount of session calls that have been made.
+     */
+    private val batches = AtomicLong()
+
+    /**
+     * The amount of images that have been run through the model.
+     */
+    private val images = AtomicLong()
+
+    /**
+     * The amount of buffers that have been released for being much larger than the working size.
+     */
+    private val trimmed = AtomicLong()
+
+    /**
+     * A moving average of the size in bytes of the input tensors, or zero if no images have been run yet.
+     */
+    private val workingSize = AtomicLong()
+
+    /**
+     * The executor on which the batches are collected and run, if batching is enabled.
+     */
+    private val executor = if (configuration.batchSize > 1) {
+        Executors.newFixedThreadPool(configuration.workers) { runnable ->
+            Thread(runnable, "tensorflow").apply { isDaemon = true }
+        }.also { executor -> repeat(configuration.workers) { executor.execute { collect() } } }
+    } else {
+        null
+    }
 
     /**
      * A convenience constructor for constructing the detector from a model given as [InputStream].
      *
      * @param input The input stream to read the definition from.
      * @param estimatedSize The estimated size of the input stream.
+     * @param inputSize The maximum length of the longest edge of the image that is fed into the model.
+     * @param configuration The configuration of the inference.
+     * @param trimRatio The ratio between the capacity of returned buffers and the working size above which the buffers
+     * are released instead of retained.
      */
-    constructor(input: InputStream, estimatedSize: Int = DEFAULT_BUFFER_SIZE) : this(Graph().apply {
+    @JvmOverloads
+    constructor(
+        input: InputStream,
+        estimatedSize: Int = DEFAULT_BUFFER_SIZE,
+        inputSize: Int = 0,
+        configuration: TensorflowInferenceConfiguration = TensorflowInferenceConfiguration(),
+        trimRatio: Int = 4
+    ) : this(Graph().apply {
         importGraphDef(input.readBytes(estimatedSize))
-    })
+    }, inputSize = inputSize, configuration = configuration, trimRatio = trimRatio)
+
+    /**
+     * Take a snapshot of the statistics of this detector.
+     */
+    val statistics: TensorflowInferenceStatistics
+        get() = TensorflowInferenceStatistics(batches.get(), images.get(), trimmed.get())
 
     override fun detect(mat: Mat): List<Rect> {
-        val outputs = mat.toImageTensor().use { input ->
+        check(!closed) { "The detector has been closed" }
+
+        if (executor == null) {
+            return run(listOf(mat)).single()
+        }
+
+        val request = Request(mat)
+        queue.put(request)
+
+        // The detector might have been closed (and its queue drained) while the request was submitted
+        if (closed && queue.remove(request)) {
+            throw IllegalStateException("The detector has been closed")
+        }
+
+        try {
+            return request.result.get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
+    override fun close() {
+        closed = true
+        executor?.apply {
+            shutdownNow()
+            awaitTermination(1, TimeUnit.MINUTES)
+        }
+        generateSequence { queue.poll() }.forEach {
+            it.result.completeExceptionally(IllegalStateException("The detector has been closed"))
+        }
+        session.close()
+        generateSequence { buffers.poll() }.forEach { it.release() }
+    }
+
+    /**
+     * Collect the submitted images into batches and run them until the executor is shut down.
+     */
+    private fun collect() {
+        val batch = ArrayList<Request>(configuration.batchSize)
+        val timeout = TimeUnit.MILLISECONDS.toNanos(configuration.batchTimeout)
+
+        try {
+            while (true) {
+                batch += queue.take()
+                val deadline = System.nanoTime() + timeout
+                while (batch.size < configuration.batchSize) {
+                    val request = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS) ?: break
+                    batch += request
+                }
+
+                // Only images of the same shape can be stacked into a single input tensor without padding
+                for (bucket in batch.groupBy { Pair(it.mat.width(), it.mat.height()) }.values) {
+                    try {
+                        val results = run(bucket.map { it.mat })
+                        bucket.zip(results).forEach { (request, books) -> request.result.complete(books) }
+                    } catch (e: Throwable) {
+                        bucket.forEach { it.result.completeExceptionally(e) }
+                    }
+                }
+                batch.clear()
+            }
+        } catch (e: InterruptedException) {
+            batch.forEach { it.result.completeExceptionally(IllegalStateException("The detector has been closed")) }
+        }
+    }
+
+    /**
+     * Detect the books in the given images in a single session call.
+     */
+    private fun run(images: List<Mat>): List<List<Rect>> {
+        val buffers = buffers.poll() ?: Buffers()
+        try {
+            return run(images, buffers)
+        } finally {
+            release(buffers)
+        }
+    }
+
+    /**
+     * Detect the books in the given images using the given buffers.
+     */
+    private fun run(images: List<Mat>, buffers: Buffers): List<List<Rect>> {
+        batches.incrementAndGet()
+        this.images.addAndGet(images.size.toLong())
+
+        val outputs = buffers.toImageTensor(images).use { input ->
             session.runner()
                 .feed("image_tensor", input)
                 .fetch("detection_scores")
-                .fetch("detection_classes")
                 .fetch("detection_boxes")
                 .run()
         }
 
         val scoresT = outputs[0].expect(Float::class.javaObjectType)
-        val boxesT = outputs[2].expect(Float::class.javaObjectType)
+        val boxesT = outputs[1].expect(Float::class.javaObjectType)
 
         val maxObjects = scoresT.shape()[1].toInt()
-        val scores = scoresT.copyTo(Array(1) { FloatArray(maxObjects) })[0]
-        val boxes = boxesT.copyTo(Array(1) { Array(maxObjects) { FloatArray(4) } })[0]
-
-        scoresT.close()
-        boxesT.close()
-
-        return scores.asSequence()
-            .mapIndexed { index, score ->
-                val box = boxes[index]
-                val min = Point(box[1].toDouble() * mat.width(), box[0].toDouble() * mat.height())
-                val max = Point(box[3].toDouble() * mat.width(), box[2].toDouble() * mat.height())
-                if (score >= this.score)
-                    Rect(min, max)
-                else
-                    null
+        val scores = buffers.scores(images.size * maxObjects)
+        val boxes = buffers.boxes(images.size * maxObjects * 4)
+        scoresT.use { it.writeTo(scores) }
+        boxesT.use { it.writeTo(boxes) }
+
+        return images.mapIndexed { image, mat ->
+            // The boxes are normalized to the input, so scale them to the original image
+            val width = mat.width().toDouble()
+            val height = mat.height().toDouble()
+            val result = ArrayList<Rect>()
+            for (index in image * maxObjects until (image + 1) * maxObjects) {
+                if (scores[index] >= score) {
+                    val offset = index * 4
+                    val min = Point(min(boxes[offset + 1] * width, width), min(boxes[offset] * height, height))
+                    val max = Point(min(boxes[offset + 3] * width, width), min(boxes[offset + 2] * height, height))
+                    result += Rect(min, max)
+                }
             }
-            .filterNotNull()
-            .toList()
+            result
+        }
     }
 
-    override fun close() {
-        session.close()
+    /**
+     * Return the given buffers to the pool or release them if the pool is full or the buffers are much larger than the
+     * working size.
+     */
+    private fun release(buffers: Buffers) {
+        if (buffers.capacity > workingSize.get() * trimRatio) {
+            trimmed.incrementAndGet()
+            buffers.release()
+        } else if (retained == 0 || !this.buffers.offer(buffers)) {
+            buffers.release()
+        }
     }
 
     /**
-     * Convert the given OpenCV matrix to an image tensor.
+     * An image submitted for batched detection.
      *
-     * @return The matrix represented as an image tensor.
-     */
-    private fun Mat.toImageTensor(): Tensor<UInt8> {
-        // Convert the image to RGB format used by the Tensorflow model (OpenCV uses BGR)
-        val rgb = Mat(width(), height(), CvType.CV_8UC3)
-        Imgproc.cvtColor(this, rgb, Imgproc.COLOR_BGR2RGB)
-        val size = rgb.total() * rgb.elemSize()
-        val bytes = ByteArray(size.toInt())
-        rgb.get(0, 0, bytes)
-        val batchSize = 1L
-        val channels = rgb.channels().toLong()
-        val shape = longArrayOf(batchSize, height().toLong(), width().toLong(), channels)
-        return Tensor.create(UInt8::class.java, shape, ByteBuffer.wrap(bytes))
+     * @property mat The image to detect the books in.
+     * @property result The future that is completed with the detected books.
+     */
+    private class Request(val mat: Mat, val result: CompletableFuture<List<Rect>> = CompletableFuture())
+
+    /**
+     * The reusable buffers of a single session call.
+     */
+    private inner class Buffers {
+        /**
+         * The images resized to the input size of the model.
+         */
+        private val resized = ArrayList<Mat>()
+
+        /**
+         * The images in the RGB format used by the Tensorflow model, stacked vertically.
+         */
+        private val rgb = Mat()
+
+        /**
+         * The pixels of the RGB images.
+         */
+        private var bytes = ByteArray(0)
+
+        /**
+         * The buffer wrapping the pixels of the RGB images.
+         */
+        private var input: ByteBuffer = ByteBuffer.wrap(bytes)
+
+        /**
+         * The buffer into which the scores are written.
+         */
+        private var scores: FloatBuffer = FloatBuffer.allocate(0)
+
+        /**
+         * The buffer into which the boxes are written.
+         */
+        private var boxes: FloatBuffer = FloatBuffer.allocate(0)
+
+        /**
+         * The capacity in bytes of the pixel buffers.
+         */
+        val capacity: Long
+            get() = bytes.size.toLong()
+
+        /**
+         * Convert the given OpenCV matrices of the same shape to a single image tensor.
+         *
+         * @return The matrices represented as an image tensor.
+         */
+        fun toImageTensor(images: List<Mat>): Tensor<UInt8> {
+            require(images.all { it.width() == images[0].width() && it.height() == images[0].height() }) {
+                "The images must have the same shape"
+            }
+            while (resized.size < images.size) {
+                resized += Mat()
+            }
+
+            val sources = images.mapIndexed { index, mat ->
+                val edge = max(mat.width(), mat.height())
+                val source = if (inputSize in 1 until edge) {
+                    val factor = inputSize.toDouble() / edge
+                    Imgproc.resize(mat, resized[index], Size(), factor, factor, Imgproc.INTER_AREA)
+                    resized[index]
+                } else {
+                    mat
+                }
+            }
+
+            val width = sources[0].width()
+            val height = sources[0].height()
+
+            // Stack the images vertically, converting them to the RGB format used by the Tensorflow model (OpenCV
+            // uses BGR)
+            rgb.create(images.size * height, width, CvType.CV_8UC3)
+            sources.forEachIndexed { index, source ->
+                val region = rgb.submat(index * height, (index + 1) * height, 0, width)
+                Imgproc.cvtColor(source, region, Imgproc.COLOR_BGR2RGB)
+                region.release()
+            }
+
+            val size = (rgb.total() * rgb.elemSize()).toInt()
+            if (bytes.size < size) {
+                bytes = ByteArray(size)
+                input = ByteBuffer.wrap(bytes)
+            }
+            rgb.get(0, 0, bytes)
+            input.clear().limit(size)
+            workingSize.updateAndGet { if (it == 0L) size.toLong() else (it * (WINDOW - 1) + size) / WINDOW }
+
+            val batchSize = images.size.toLong()
+            val channels = rgb.channels().toLong()
+            val shape = longArrayOf(batchSize, height.toLong(), width.toLong(), channels)
+            return Tensor.create(UInt8::class.java, shape, input)
+        }
+
+        /**
+         * Obtain the cleared buffer for the given amount of scores.
+         */
+        fun scores(size: Int): FloatBuffer {
+            if (scores.capacity() < size) {
+                scores = FloatBuffer.allocate(size)
+            }
+            scores.clear()
+            return scores
+        }
+
+        /**
+         * Obtain the cleared buffer for the given amount of box coordinates.
+         */
+        fun boxes(size: Int): FloatBuffer {
+            if (boxes.capacity() < size) {
+                boxes = FloatBuffer.allocate(size)
+            }
+            boxes.clear()
+            return boxes
+        }
+
+        /**
+         * Release the native memory of the buffers.
+         */
+        fun release() {
+            resized.forEach { it.release() }
+            rgb.release()
+        }
     }
 
     private fun <T, R> Tensor<T>.use(block: (Tensor<T>) -> R): R = block(this).also { close() }
@@ -112,5 +468,19 @@ class TensorflowBookDetector(private val graph: Graph, private val score: Float
             nu.pattern.OpenCV.loadShared()
             System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME)
         }
+
+        /**
+         * The amount of session calls over which the working size is averaged.
+         */
+        private const val WINDOW = 8L
     }
 }
+
+/**
+ * A snapshot of the statistics of a [TensorflowBookDetector].
+ *
+ * @property batches The amount of session calls that have been made.
+ * @property images The amount of images that have been run through the model.
+ * @property trimmed The amount of buffers that have been released for being much larger than the working size.
+ */
+data class TensorflowInferenceStatistics(val batches: Long, val images: Long, val trimmed: Long)
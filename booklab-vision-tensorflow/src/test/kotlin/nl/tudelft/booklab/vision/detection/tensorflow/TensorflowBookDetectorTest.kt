@@ -16,13 +16,18 @@
 
 package nl.tudelft.booklab.vision.detection.tensorflow
 
+import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.BeforeAll
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
 import org.opencv.core.MatOfByte
 import org.opencv.imgcodecs.Imgcodecs
 import org.tensorflow.Graph
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
 
 class TensorflowBookDetectorTest {
     lateinit var detector: TensorflowBookDetector
@@ -48,6 +53,104 @@ class TensorflowBookDetectorTest {
         assertEquals(36, books.size, "The amount of books in the image differed")
     }
 
+    @Test
+    fun `tensorflow detects the same books when reusing buffers`() {
+        val jpeg = TensorflowBookDetectorTest::class.java.getResourceAsStream("/bookshelf.jpg").readBytes()
+        val png = TensorflowBookDetectorTest::class.java.getResourceAsStream("/bookshelf.png").readBytes()
+        val first = Imgcodecs.imdecode(MatOfByte(*jpeg), Imgcodecs.CV_LOAD_IMAGE_UNCHANGED)
+        val second = Imgcodecs.imdecode(MatOfByte(*png), Imgcodecs.CV_LOAD_IMAGE_UNCHANGED)
+
+        val expected = detector.detect(first)
+        detector.detect(second)
+        assertEquals(expected, detector.detect(first))
+    }
+
+    @Test
+    fun `tensorflow releases buffers much larger than the working size`() {
+        val buffer = TensorflowBookDetectorTest::class.java.getResourceAsStream("/bookshelf.jpg").readBytes()
+        val mat = Imgcodecs.imdecode(MatOfByte(*buffer), Imgcodecs.CV_LOAD_IMAGE_UNCHANGED)
+        val small = mat.submat(0, mat.rows() / 4, 0, mat.cols() / 4)
+
+        detector.detect(mat)
+        repeat(16) { detector.detect(small) }
+        assertEquals(1L, detector.statistics.trimmed)
+    }
+
+    @Test
+    fun `tensorflow maps boxes of resized input onto the original image`() {
+        val buffer = TensorflowBookDetectorTest::class.java.getResourceAsStream("/bookshelf.jpg").readBytes()
+        val mat = Imgcodecs.imdecode(MatOfByte(*buffer), Imgcodecs.CV_LOAD_IMAGE_UNCHANGED)
+        detector.close()
+        detector = TensorflowBookDetector(graph, inputSize = maxOf(mat.width(), mat.height()) / 2)
+
+        val books = detector.detect(mat)
+        assertTrue(books.isNotEmpty(), "No books were detected in the resized image")
+        assertTrue(books.all { it.x >= 0 && it.y >= 0 }, "Boxes exceed the image")
+        assertTrue(books.all { it.br().x <= mat.width() && it.br().y <= mat.height() }, "Boxes exceed the image")
+    }
+
+    @Test
+    fun `tensorflow detects books in concurrently batched images`() {
+        val buffer = TensorflowBookDetectorTest::class.java.getResourceAsStream("/bookshelf.jpg").readBytes()
+        val mat = Imgcodecs.imdecode(MatOfByte(*buffer), Imgcodecs.CV_LOAD_IMAGE_UNCHANGED)
+        detector.close()
+        // Wait long enough for all images to arrive, such that they are run in a single batch
+        val configuration = TensorflowInferenceConfiguration(batchSize = 4, batchTimeout = 60_000)
+        detector = TensorflowBookDetector(graph, configuration = configuration)
+
+        val executor = Executors.newFixedThreadPool(4)
+        try {
+            val results = executor.invokeAll(List(4) { Callable { detector.detect(mat) } }).map { it.get() }
+            results.forEach { assertEquals(36, it.size, "The amount of books in the image differed") }
+            assertEquals(TensorflowInferenceStatistics(batches = 1, images = 4, trimmed = 0), detector.statistics)
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun `tensorflow rejects images after it has been closed`() {
+        val buffer = TensorflowBookDetectorTest::class.java.getResourceAsStream("/bookshelf.jpg").readBytes()
+        val mat = Imgcodecs.imdecode(MatOfByte(*buffer), Imgcodecs.CV_LOAD_IMAGE_UNCHANGED)
+        detector.close()
+        detector = TensorflowBookDetector(graph, configuration = TensorflowInferenceConfiguration(batchSize = 2))
+        detector.close()
+
+        assertThrows<IllegalStateException> { detector.detect(mat) }
+    }
+
+    @Test
+    fun `tensorflow rejects batch size exceeding the amount of callers`() {
+        assertThrows<IllegalArgumentException> { TensorflowInferenceConfiguration(batchSize = 4, callers = 2) }
+    }
+
+    @Test
+    fun `tensorflow runs batched images of different sizes separately`() {
+        val buffer = TensorflowBookDetectorTest::class.java.getResourceAsStream("/bookshelf.jpg").readBytes()
+        val mat = Imgcodecs.imdecode(MatOfByte(*buffer), Imgcodecs.CV_LOAD_IMAGE_UNCHANGED)
+        val half = mat.submat(0, mat.rows(), 0, mat.cols() / 2)
+        val expected = detector.detect(half)
+        detector.close()
+        // Wait long enough for both images to arrive, such that they are collected into a single batch
+        val configuration = TensorflowInferenceConfiguration(batchSize = 2, batchTimeout = 60_000)
+        detector = TensorflowBookDetector(graph, configuration = configuration)
+
+        val executor = Executors.newFixedThreadPool(2)
+        try {
+            val tasks = listOf(Callable { detector.detect(mat) }, Callable { detector.detect(half) })
+            val (_, books) = executor.invokeAll(tasks).map { it.get() }
+            assertEquals(expected, books)
+            assertEquals(2L, detector.statistics.batches)
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @AfterEach
+    fun tearDown() {
+        detector.close()
+    }
+
     companion object {
         lateinit var graph: Graph
 
@@ -16,19 +16,115 @@
 
 package nl.tudelft.booklab.vision.ocr.tesseract
 
+import org.bytedeco.javacpp.BytePointer
+import org.bytedeco.javacpp.Pointer
 import org.bytedeco.javacpp.lept
+import org.opencv.core.CvType
 import org.opencv.core.Mat
 import org.opencv.core.MatOfByte
 import org.opencv.imgcodecs.Imgcodecs
+import org.opencv.imgproc.Imgproc
 
 /**
  * Convert an OpenCV matrix into a Leptonica pixel buffer.
  *
+ * 8-bit grayscale, BGR and BGRA matrices are copied directly from the pixel buffer of the matrix, other matrices are
+ * converted via an in-memory TIFF image.
+ *
+ * @return The Leptonica pixel buffer.
+ */
+fun Mat.toPix(): lept.PIX = when (type()) {
+    CvType.CV_8UC1 -> copyToPix(this, 8, 1)
+    CvType.CV_8UC3 -> convertToPix(Imgproc.COLOR_BGR2RGBA, 3)
+    CvType.CV_8UC4 -> convertToPix(Imgproc.COLOR_BGRA2RGBA, 4)
+    else -> toPixEncoded()
+}
+
+/**
+ * Convert an OpenCV matrix into a Leptonica pixel buffer by encoding it as TIFF image and letting Leptonica decode
+ * the image.
+ *
  * @return The Leptonica pixel buffer.
  */
-fun Mat.toPix(): lept.PIX {
+fun Mat.toPixEncoded(): lept.PIX {
     val bytes = MatOfByte()
     Imgcodecs.imencode(".tiff", this, bytes)
     val buffer = bytes.toArray()
     return lept.pixReadMem(buffer, buffer.size.toLong())
 }
+
+/**
+ * Convert the colour matrix into RGBA order and copy it into a 32-bit Leptonica pixel buffer.
+ *
+ * @param code The colour conversion code to obtain an RGBA matrix.
+ * @param spp The amount of samples per pixel of the resulting buffer.
+ */
+private fun Mat.convertToPix(code: Int, spp: Int): lept.PIX {
+    val rgba = Mat()
+    try {
+        Imgproc.cvtColor(this, rgba, code)
+        return copyToPix(rgba, 32, spp)
+    } finally {
+        rgba.release()
+    }
+}
+
+/**
+ * Copy the rows of the given matrix into a newly allocated Leptonica pixel buffer of the given depth.
+ *
+ * Leptonica stores its pixels in 32-bit words with the first pixel in the most significant byte, where each row is
+ * padded to a whole amount of words. The rows are copied as-is and the words are converted to the native byte order
+ * afterwards.
+ *
+ * @param mat The matrix of which the rows should be copied, which contains `depth / 8` bytes per pixel.
+ * @param depth The depth of the pixel buffer in bits.
+ * @param spp The amount of samples per pixel of the pixel buffer.
+ */
+private fun copyToPix(mat: Mat, depth: Int, spp: Int): lept.PIX {
+    val width = mat.cols()
+    val height = mat.rows()
+    val pix = lept.pixCreateNoInit(width, height, depth)
+    lept.pixSetSpp(pix, spp)
+
+    val rowSize = width.toLong() * mat.elemSize()
+    val step = mat.step1(0) * mat.elemSize1()
+    val wpl = lept.pixGetWpl(pix).toLong() * 4
+    val source = MatPointer(mat, step * height)
+    val destination = BytePointer(lept.pixGetData(pix))
+    try {
+        if (mat.isContinuous && step == wpl) {
+            Pointer.memcpy(destination, source, rowSize * height)
+        } else {
+            for (row in 0 until height) {
+                destination.position(row * wpl)
+                source.position(row * step)
+                Pointer.memcpy(destination, source, rowSize)
+
+                // Clear the padding at the end of the row
+                if (wpl > rowSize) {
+                    destination.position(row * wpl + rowSize)
+                    Pointer.memset(destination, 0, wpl - rowSize)
+                }
+            }
+        }
+    } finally {
+        destination.position(0)
+    }
+
+    lept.pixEndianByteSwap(pix)
+    return pix
+}
+
+/**
+ * A [BytePointer] to the pixel buffer of an OpenCV matrix.
+ *
+ * @param mat The matrix to point to.
+ * @param size The size of the pixel buffer in bytes.
+ */
+private class MatPointer(mat: Mat, size: Long) : BytePointer() {
+    init {
+        address = mat.dataAddr()
+        capacity = size
+        limit = size
+    }
+}
@@ -38,24 +38,56 @@ val DEFAULT_CONFIGURATION = mapOf(
 )
 
 /**
- * Wrapper class for the [tesseract.TessBaseAPI] class provided by the Tesseract JavaCPP preset.
+ * The training data of Tesseract, extracted to a temporary prefix on disk so that it can be loaded by one or more
+ * Tesseract engines.
  *
  * @param data An [InputStream] of the training data for Tesseract.
+ */
+class TesseractData(data: InputStream) : Closeable {
+    /**
+     * The prefix at which we store the Tesseract temporary files
+     */
+    val prefix: Path = Files.createTempDirectory("tesseract").also {
+        val tessData = Files.createDirectory(it.resolve("tessdata"))
+        Files.copy(data, tessData.resolve("lang.traineddata"))
+    }
+
+    /**
+     * Remove the extracted training data from disk.
+     */
+    override fun close() {
+        prefix.toFile().deleteRecursively()
+    }
+}
+
+/**
+ * Wrapper class for the [tesseract.TessBaseAPI] class provided by the Tesseract JavaCPP preset.
+ *
+ * @property data The extracted training data for Tesseract.
  * @param configuration The configuration properties for Tesseract.
+ * @property owner A flag to indicate that this instance owns the training data and should release it on close.
  */
-class Tesseract(
-    data: InputStream,
-    configuration: Map<String, String> = DEFAULT_CONFIGURATION
+class Tesseract internal constructor(
+    private val data: TesseractData,
+    configuration: Map<String, String>,
+    private val owner: Boolean
 ) : Closeable {
     /**
-     * The internal [tesseract.TessBaseAPI] object.
+     * Construct a [Tesseract] instance that extracts the given training data for its own use.
+     *
+     * @param data An [InputStream] of the training data for Tesseract.
+     * @param configuration The configuration properties for Tesseract.
      */
-    private val api = tesseract.TessBaseAPI()
+    @JvmOverloads
+    constructor(
+        data: InputStream,
+        configuration: Map<String, String> = DEFAULT_CONFIGURATION
+    ) : this(TesseractData(data), configuration, true)
 
     /**
-     * The prefix at which we store the Tesseract temporary files
+     * The internal [tesseract.TessBaseAPI] object.
      */
-    private val prefix: Path
+    private val api = tesseract.TessBaseAPI()
 
     /**
      * A lock to synchronize multithreaded accesses to the API.
@@ -68,15 +100,9 @@ class Tesseract(
     init {
         configuration.forEach { t, u -> api.SetVariable(t, u) }
 
-        // Create Tesseract prefix in which we store the tessdata
-        prefix = Files.createTempDirectory("tesseract").also {
-            val tessData = Files.createDirectory(it.resolve("tessdata"))
-            Files.copy(data, tessData.resolve("lang.traineddata"))
-        }
-
-        // Initialize the Tesseract API with the created prefix
+        // Initialize the Tesseract API with the prefix of the training data
         lock.withLock {
-            val res = api.Init(prefix.toString(), "lang")
+            val res = api.Init(data.prefix.toString(), "lang")
             if (res != 0) {
                 throw IllegalStateException("The Tesseract API failed to initialise (error $res).")
             }
@@ -117,7 +143,9 @@ class Tesseract(
     override fun close() {
         lock.withLock {
             api.End()
-            prefix.toFile().deleteRecursively()
+            if (owner) {
+                data.close()
+            }
         }
     }
 }
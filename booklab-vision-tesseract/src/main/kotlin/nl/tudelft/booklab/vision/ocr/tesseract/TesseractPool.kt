@@ -0,0 +1,227 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision.ocr.tesseract
+
+import java.io.Closeable
+import java.io.InputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A pool of [Tesseract] engines that allows text to be extracted from multiple images concurrently.
+ *
+ * A single [Tesseract] engine can only process one image at a time, so instead of guarding a single engine with a
+ * lock, callers check out an engine from this pool for the duration of an extraction. All engines in the pool share
+ * a single copy of the training data on disk.
+ *
+ * @property engines The engines in this pool.
+ * @property data The training data that is owned by this pool or `null` if the pool does not own the data.
+ */
+class TesseractPool internal constructor(
+    private val engines: List<Tesseract>,
+    private val data: TesseractData?
+) : Closeable {
+    /**
+     * Construct a [TesseractPool] of the given size that extracts the given training data.
+     *
+     * @param data An [InputStream] of the training data for Tesseract.
+     * @param size The amount of engines in the pool.
+     * @param configuration The configuration properties for Tesseract.
+     */
+    @JvmOverloads
+    constructor(
+        data: InputStream,
+        size: Int = Runtime.getRuntime().availableProcessors(),
+        configuration: Map<String, String> = DEFAULT_CONFIGURATION
+    ) : this(extract(data, size), size, configuration)
+
+    /**
+     * Construct a [TesseractPool] of the given size around the extracted training data.
+     */
+    private constructor(data: TesseractData, size: Int, configuration: Map<String, String>) : this(
+        create(data, size, configuration),
+        data
+    )
+
+    init {
+        require(engines.isNotEmpty()) { "The pool must contain at least one engine" }
+    }
+
+    /**
+     * The amount of engines in this pool.
+     */
+    val size: Int = engines.size
+
+    /**
+     * The engines that are currently available.
+     */
+    private val available = ArrayBlockingQueue<Tesseract>(engines.size, false, engines)
+
+    /**
+     * The moment this pool was created in nanoseconds.
+     */
+    private val created = System.nanoTime()
+
+    /**
+     * The amount of times an engine has been checked out of the pool.
+     */
+    private val checkouts = AtomicLong()
+
+    /**
+     * The amount of times a caller had to wait for an engine to become available.
+     */
+    private val contended = AtomicLong()
+
+    /**
+     * The total time callers waited for an engine in nanoseconds.
+     */
+    private val waited = AtomicLong()
+
+    /**
+     * The longest time a caller waited for an engine in nanoseconds.
+     */
+    private val maxWait = AtomicLong()
+
+    /**
+     * The total time engines have been checked out in nanoseconds.
+     */
+    private val busy = AtomicLong()
+
+    /**
+     * Check out an engine from the pool, waiting until one becomes available. The engine must be returned to the pool
+     * using [checkin] after use.
+     *
+     * @return The engine that has been checked out.
+     */
+    fun checkout(): Tesseract {
+        checkouts.incrementAndGet()
+        available.poll()?.let { return it }
+
+        val start = System.nanoTime()
+        contended.incrementAndGet()
+        val engine = available.take()
+        val elapsed = System.nanoTime() - start
+        waited.addAndGet(elapsed)
+        maxWait.accumulateAndGet(elapsed, Math::max)
+        return engine
+    }
+
+    /**
+     * Return the given engine to the pool.
+     *
+     * @param engine The engine to return to the pool.
+     */
+    fun checkin(engine: Tesseract) {
+        check(available.offer(engine)) { "The engine does not belong to this pool" }
+    }
+
+    /**
+     * Run the given block with an engine that is checked out of the pool and return the engine afterwards.
+     *
+     * @param block The block to run with the engine.
+     * @return The result of the block.
+     */
+    fun <T> use(block: (Tesseract) -> T): T {
+        val engine = checkout()
+        val start = System.nanoTime()
+        try {
+            return block(engine)
+        } finally {
+            busy.addAndGet(System.nanoTime() - start)
+            checkin(engine)
+        }
+    }
+
+    /**
+     * Take a snapshot of the statistics of this pool.
+     */
+    val statistics: TesseractPoolStatistics
+        get() {
+            val uptime = System.nanoTime() - created
+            return TesseractPoolStatistics(
+                size,
+                available.size,
+                checkouts.get(),
+                contended.get(),
+                waited.get().toMillis(),
+                maxWait.get().toMillis(),
+                if (uptime > 0) busy.get().toDouble() / (uptime.toDouble() * size) else 0.0
+            )
+        }
+
+    /**
+     * Convert the given amount of nanoseconds into milliseconds.
+     */
+    private fun Long.toMillis(): Double = this.toDouble() / TimeUnit.MILLISECONDS.toNanos(1)
+
+    /**
+     * Release the engines in this pool and the training data owned by the pool.
+     */
+    override fun close() {
+        engines.forEach { it.close() }
+        data?.close()
+    }
+
+    private companion object {
+        /**
+         * Extract the given training data after validating the size of the pool, so that no data is extracted for a
+         * pool that cannot be constructed.
+         */
+        fun extract(data: InputStream, size: Int): TesseractData {
+            require(size > 0) { "The pool must contain at least one engine" }
+            return TesseractData(data)
+        }
+
+        /**
+         * Create the given amount of engines around the given training data, releasing the engines that were already
+         * created and the training data if one of the engines fails to initialize.
+         */
+        fun create(data: TesseractData, size: Int, configuration: Map<String, String>): List<Tesseract> {
+            val engines = ArrayList<Tesseract>(size)
+            try {
+                repeat(size) { engines += Tesseract(data, configuration, false) }
+            } catch (e: Throwable) {
+                engines.forEach { it.close() }
+                data.close()
+                throw e
+            }
+            return engines
+        }
+    }
+}
+
+/**
+ * A snapshot of the statistics of a [TesseractPool].
+ *
+ * @property size The amount of engines in the pool.
+ * @property available The amount of engines that are currently available.
+ * @property checkouts The amount of times an engine has been checked out of the pool.
+ * @property contended The amount of checkouts that had to wait for an engine to become available.
+ * @property waited The total time callers waited for an engine in milliseconds.
+ * @property maxWait The longest time a caller waited for an engine in milliseconds.
+ * @property utilisation The fraction of time the engines of the pool have been in use since its creation.
+ */
+data class TesseractPoolStatistics(
+    val size: Int,
+    val available: Int,
+    val checkouts: Long,
+    val contended: Long,
+    val waited: Double,
+    val maxWait: Double,
+    val utilisation: Double
+)
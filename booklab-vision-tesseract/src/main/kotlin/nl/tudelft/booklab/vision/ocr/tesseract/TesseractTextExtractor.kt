@@ -18,13 +18,56 @@ package nl.tudelft.booklab.vision.ocr.tesseract
 
 import nl.tudelft.booklab.vision.ocr.TextExtractor
 import org.opencv.core.Mat
+import java.io.Closeable
+import java.util.concurrent.Callable
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
 
 /**
  * A [TextExtractor] using the Tesseract library for OCR purposes.
  *
- * @param tesseract The Tesseract API wrapper to use for this text extractor implementation.
+ * Batches are spread over the engines of the [TesseractPool], so that the segments of a batch are processed in
+ * parallel.
+ *
+ * @param pool The pool of Tesseract engines to use for this text extractor implementation.
  */
-class TesseractTextExtractor(private val tesseract: Tesseract) : TextExtractor {
-    override fun extract(mat: Mat): List<String> = listOf(tesseract.extract(mat))
-    override fun batch(matrices: List<Mat>): List<String> = matrices.map { mat -> tesseract.extract(mat) }
+class TesseractTextExtractor(private val pool: TesseractPool) : TextExtractor, Closeable {
+    /**
+     * Construct a [TesseractTextExtractor] using a single Tesseract engine.
+     *
+     * @param tesseract The Tesseract API wrapper to use for this text extractor implementation.
+     */
+    constructor(tesseract: Tesseract) : this(TesseractPool(listOf(tesseract), null))
+
+    /**
+     * The executor on which the segments of a batch are processed.
+     */
+    private val executor = Executors.newFixedThreadPool(pool.size) { runnable ->
+        Thread(runnable, "tesseract").apply { isDaemon = true }
+    }
+
+    override fun extract(mat: Mat): List<String> = listOf(pool.use { it.extract(mat) })
+
+    override fun batch(matrices: List<Mat>): List<String> {
+        if (matrices.size <= 1 || pool.size == 1) {
+            return matrices.map { mat -> pool.use { it.extract(mat) } }
+        }
+
+        return executor
+            .invokeAll(matrices.map { mat -> Callable { pool.use { it.extract(mat) } } })
+            .map {
+                try {
+                    it.get()
+                } catch (e: ExecutionException) {
+                    throw e.cause ?: e
+                }
+            }
+    }
+
+    /**
+     * Stop the executor of this extractor. The pool itself is not closed, since it may be shared.
+     */
+    override fun close() {
+        executor.shutdown()
+    }
 }
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision.ocr.tesseract
+
+import org.bytedeco.javacpp.IntPointer
+import org.bytedeco.javacpp.lept
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Test
+import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.core.Rect
+import org.opencv.imgcodecs.Imgcodecs.CV_LOAD_IMAGE_UNCHANGED
+import org.opencv.imgcodecs.Imgcodecs.imdecode
+import org.opencv.imgproc.Imgproc
+
+/**
+ * Test suite for the conversion of OpenCV matrices into Leptonica pixel buffers.
+ */
+internal class LeptonicaTest {
+    /**
+     * The colour test image.
+     */
+    private val image = LeptonicaTest::class.java.getResourceAsStream("/bookshelf.jpg").use {
+        imdecode(MatOfByte(*it.readBytes()), CV_LOAD_IMAGE_UNCHANGED)
+    }
+
+    @Test
+    fun `direct conversion of colour image matches encoded conversion`() {
+        assertSame(image)
+    }
+
+    @Test
+    fun `direct conversion of colour image with alpha channel matches encoded conversion`() {
+        val bgra = Mat()
+        Imgproc.cvtColor(image, bgra, Imgproc.COLOR_BGR2BGRA)
+        assertSame(bgra)
+    }
+
+    @Test
+    fun `direct conversion of grayscale image matches encoded conversion`() {
+        val gray = Mat()
+        Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY)
+        assertSame(gray)
+    }
+
+    @Test
+    fun `direct conversion of padded region matches encoded conversion`() {
+        val gray = Mat()
+        Imgproc.cvtColor(image, gray, Imgproc.COLOR_BGR2GRAY)
+        assertSame(gray.submat(Rect(3, 5, 101, 67)))
+        assertSame(image.submat(Rect(3, 5, 101, 67)))
+    }
+
+    /**
+     * Assert that the direct conversion of the given matrix yields the same pixels as the encoded conversion.
+     */
+    private fun assertSame(mat: Mat) {
+        val expected = mat.toPixEncoded()
+        val actual = mat.toPix()
+        try {
+            assertEquals(lept.pixGetWidth(expected), lept.pixGetWidth(actual))
+            assertEquals(lept.pixGetHeight(expected), lept.pixGetHeight(actual))
+            assertEquals(lept.pixGetDepth(expected), lept.pixGetDepth(actual))
+
+            val same = IntPointer(1)
+            lept.pixEqualWithAlpha(expected, actual, 0, same)
+            assertEquals(1, same.get())
+        } finally {
+            lept.pixDestroy(expected)
+            lept.pixDestroy(actual)
+        }
+    }
+
+    companion object {
+        init {
+            nu.pattern.OpenCV.loadShared()
+            System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME)
+        }
+    }
+}
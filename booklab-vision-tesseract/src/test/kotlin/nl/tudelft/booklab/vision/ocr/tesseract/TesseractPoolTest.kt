@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision.ocr.tesseract
+
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertNotSame
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.BeforeEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.opencv.core.MatOfByte
+import org.opencv.imgcodecs.Imgcodecs.CV_LOAD_IMAGE_UNCHANGED
+import org.opencv.imgcodecs.Imgcodecs.imdecode
+import java.io.InputStream
+
+/**
+ * Test suite for the [TesseractPool] class.
+ */
+internal class TesseractPoolTest {
+    private lateinit var pool: TesseractPool
+
+    @BeforeEach
+    fun setUp() {
+        val data = TesseractPoolTest::class.java.getResourceAsStream("/tesseract/languages/english")
+        pool = TesseractPool(data, 2, emptyMap())
+    }
+
+    @AfterEach
+    fun tearDown() {
+        pool.close()
+    }
+
+    @Test
+    fun `checkout returns distinct engines`() {
+        val a = pool.checkout()
+        val b = pool.checkout()
+        assertNotSame(a, b)
+        assertEquals(0, pool.statistics.available)
+
+        pool.checkin(a)
+        pool.checkin(b)
+        assertEquals(2, pool.statistics.available)
+        assertEquals(2L, pool.statistics.checkouts)
+    }
+
+    @Test
+    fun `batch produces the same result as sequential extraction`() {
+        val stream = TesseractPoolTest::class.java.getResourceAsStream("/tesseract.png")
+        val image = imdecode(MatOfByte(*stream.readBytes()), CV_LOAD_IMAGE_UNCHANGED)
+        val expected = pool.use { it.extract(image) }
+
+        TesseractTextExtractor(pool).use { ocr ->
+            val res = ocr.batch(List(4) { image })
+            assertEquals(List(4) { expected }, res)
+        }
+        assertEquals(2, pool.statistics.available)
+        assertTrue(pool.statistics.utilisation > 0.0)
+    }
+
+    @Test
+    fun `pool rejects an empty size before extracting the training data`() {
+        val data = object : InputStream() {
+            override fun read(): Int = throw AssertionError("The training data was extracted")
+        }
+        assertThrows<IllegalArgumentException> { TesseractPool(data, 0, emptyMap()) }
+    }
+
+    companion object {
+        init {
+            nu.pattern.OpenCV.loadShared()
+            System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME)
+        }
+    }
+}
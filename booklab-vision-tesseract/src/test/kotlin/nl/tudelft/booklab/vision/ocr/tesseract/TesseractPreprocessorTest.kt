@@ -16,12 +16,17 @@
 
 package nl.tudelft.booklab.vision.ocr.tesseract
 
+import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.Test
 import org.opencv.core.Core
 import org.opencv.core.Core.randu
 import org.opencv.core.CvType
 import org.opencv.core.Mat
+import org.opencv.core.MatOfByte
+import org.opencv.core.Rect
+import org.opencv.imgcodecs.Imgcodecs.CV_LOAD_IMAGE_COLOR
+import org.opencv.imgcodecs.Imgcodecs.imdecode
 import org.opencv.imgproc.Imgproc.COLOR_GRAY2BGR
 import org.opencv.imgproc.Imgproc.cvtColor
 
@@ -41,6 +46,39 @@ internal class TesseractPreprocessorTest {
         assertTrue(sum.`val`[0] + sum.`val`[1] + sum.`val`[2] + sum.`val`[3] > 0)
     }
 
+    @Test
+    fun `bulk mode matches pixel mode on random image`() {
+        val image = Mat(100, 100, CvType.CV_8UC3)
+        randu(image, 0.0, 256.0)
+        assertSameOutput(image)
+    }
+
+    @Test
+    fun `bulk mode matches pixel mode on spine`() {
+        val image = TesseractPreprocessorTest::class.java.getResourceAsStream("/bookshelf.jpg").use {
+            imdecode(MatOfByte(*it.readBytes()), CV_LOAD_IMAGE_COLOR)
+        }
+
+        // A region of the image is not continuous in memory
+        assertSameOutput(image, Rect(image.cols() / 3, 0, image.cols() / 10, image.rows()))
+    }
+
+    /**
+     * Assert that both modes produce the same image and draw the same contours onto the given region of the image.
+     */
+    private fun assertSameOutput(image: Mat, region: Rect = Rect(0, 0, image.cols(), image.rows())) {
+        val pixelInput = Mat(image.clone(), region)
+        val bulkInput = Mat(image.clone(), region)
+        val pixel = TesseractPreprocessor.optimize(pixelInput, TesseractPreprocessor.Mode.PIXEL)
+        val bulk = TesseractPreprocessor.optimize(bulkInput, TesseractPreprocessor.Mode.BULK)
+
+        assertEquals(pixel.size(), bulk.size())
+        assertEquals(0, Core.countNonZero(difference(pixel, bulk)))
+        assertEquals(0, Core.countNonZero(difference(pixelInput, bulkInput).reshape(1)))
+    }
+
+    private fun difference(a: Mat, b: Mat): Mat = Mat().also { Core.absdiff(a, b, it) }
+
     companion object {
 
         init {
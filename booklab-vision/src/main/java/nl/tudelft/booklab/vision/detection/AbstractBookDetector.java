@@ -21,10 +21,14 @@ import org.jetbrains.annotations.NotNull;
 import org.opencv.core.*;
 
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static org.opencv.core.Core.*;
-import static org.opencv.imgproc.Imgproc.GaussianBlur;
 import static org.opencv.imgproc.Imgproc.line;
 
 public abstract class AbstractBookDetector implements BookDetector {
@@ -34,6 +38,93 @@ public abstract class AbstractBookDetector implements BookDetector {
         System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME);
     }
 
+    /**
+     * The default minimum amount of pixels of an image for its shelves to be processed in parallel
+     */
+    public static final long DEFAULT_PARALLEL_THRESHOLD = 2_000_000;
+
+    /**
+     * The minimum amount of pixels of an image for its shelves to be processed in parallel
+     */
+    private final long parallelThreshold;
+
+    /**
+     * The executor to process the shelves of large images on
+     */
+    private final Executor executor;
+
+    /**
+     * Construct a detector that processes the shelves of large images in parallel
+     */
+    protected AbstractBookDetector() {
+        this(DEFAULT_PARALLEL_THRESHOLD);
+    }
+
+    /**
+     * Construct a detector that processes the shelves of images of the given size in parallel on the common
+     * fork/join pool
+     *
+     * @param parallelThreshold minimum amount of pixels of an image for its shelves to be processed in parallel,
+     *                          where {@link Long#MAX_VALUE} disables parallel processing
+     */
+    protected AbstractBookDetector(long parallelThreshold) {
+        this(parallelThreshold, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Construct a detector that processes the shelves of images of the given size in parallel on the given executor
+     *
+     * @param parallelThreshold minimum amount of pixels of an image for its shelves to be processed in parallel,
+     *                          where {@link Long#MAX_VALUE} disables parallel processing
+     * @param executor          executor to process the shelves on, which is not shut down by the detector
+     */
+    protected AbstractBookDetector(long parallelThreshold, @NotNull Executor executor) {
+        if (parallelThreshold < 0) {
+            throw new IllegalArgumentException("The parallel threshold must not be negative");
+        }
+        this.parallelThreshold = parallelThreshold;
+        this.executor = Objects.requireNonNull(executor);
+    }
+
+    /**
+     * Detects the books on each shelf of an image, processing the shelves in parallel on the executor of this
+     * detector if the image is large enough, or on the calling thread otherwise
+     *
+     * @param image    openCV matrix containing the image the shelves were found in
+     * @param shelves  list of shelves from top to bottom
+     * @param detector function to detect the books on a single shelf
+     * @return list of the detected books, ordered by shelf
+     */
+    @NotNull
+    protected List<Rect> detectShelves(Mat image, List<Shelf> shelves, Function<Shelf, List<Rect>> detector) {
+        if (shelves.size() <= 1 || image.total() < parallelThreshold) {
+            return shelves.stream()
+                .map(detector)
+                .flatMap(List::stream)
+                .collect(Collectors.toList());
+        }
+
+        List<CompletableFuture<List<Rect>>> futures = new ArrayList<>(shelves.size());
+        for (Shelf shelf : shelves) {
+            futures.add(CompletableFuture.supplyAsync(() -> detector.apply(shelf), executor));
+        }
+
+        // The results are joined in the order of the shelves, so the result does not depend on scheduling
+        List<Rect> books = new ArrayList<>();
+        try {
+            for (CompletableFuture<List<Rect>> future : futures) {
+                books.addAll(future.join());
+            }
+        } catch (CompletionException e) {
+            futures.forEach(future -> future.cancel(false));
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        return books;
+    }
+
     /**
      * Uses a list of x coordinates to split the image on
      *
@@ -81,10 +172,10 @@ public abstract class AbstractBookDetector implements BookDetector {
      *
      * @param image openCV matrix containing an image
      * @param mask  openCV matrix containing a binary image of text regions
-     * @return map of shelves with each key-value pair being an image of
-     * the shelf and an image of its text regions
+     * @return list of shelves from top to bottom
      */
-    static Map<Mat, Mat> findShelves(Mat image, Mat mask) {
+    @NotNull
+    static List<Shelf> findShelves(Mat image, Mat mask) {
         Mat rotatedMask = new Mat();
         rotate(mask, rotatedMask, ROTATE_90_COUNTERCLOCKWISE);
 
@@ -93,12 +184,12 @@ public abstract class AbstractBookDetector implements BookDetector {
         List<Mat> shelves = cropShelves(image, locations);
         List<Mat> shelfMasks = cropShelves(mask, locations);
 
-        Map<Mat, Mat> shelfMaskMap = new HashMap<>();
+        List<Shelf> result = new ArrayList<>(shelves.size());
         for (int i = 0; i < shelves.size(); i++) {
-            shelfMaskMap.put(shelves.get(i), shelfMasks.get(i));
+            result.add(new Shelf(shelves.get(i), shelfMasks.get(i)));
         }
 
-        return shelfMaskMap;
+        return result;
     }
 
     /**
@@ -107,11 +198,11 @@ public abstract class AbstractBookDetector implements BookDetector {
      * @param image         openCV matrix containing an image
      * @param cropLocations list of the locations of local minima on the y-axis of the image
      * @return map of locations of the shelves with each key-value pair
-     * being the min and max y-coordinates of a shelf
+     * being the min and max y-coordinates of a shelf, ordered from top to bottom
      */
     @NotNull
     static Map<Integer, Integer> findShelfLocations(Mat image, List<Integer> cropLocations) {
-        Map<Integer, Integer> locations = new HashMap<>();
+        Map<Integer, Integer> locations = new TreeMap<>();
 
         for (int i = 1; i < cropLocations.size(); i++) {
             int distance = cropLocations.get(i) - cropLocations.get(i - 1);
@@ -172,21 +263,17 @@ public abstract class AbstractBookDetector implements BookDetector {
      */
     @NotNull
     static List<Integer> findCropLocations(Mat image, int reduceType) {
-        Mat reduced = new Mat();
-        List<Point> coordinates = new ArrayList<>();
-
-        reduce(image, reduced, 0, reduceType);
-        GaussianBlur(reduced, reduced, new Size(), 3);
+        double[] profile = ImageProcessingHelper.columnProfile(image, reduceType);
+        int[] localMinima = LocalMinima.find(profile, 5);
 
-        for (int i = 0; i < image.cols(); i++) {
-            coordinates.add(new Point(i, reduced.get(0, i)[0]));
+        List<Integer> locations = new ArrayList<>(localMinima.length + 2);
+        locations.add(0);
+        for (int location : localMinima) {
+            locations.add(location);
         }
+        locations.add(image.cols());
 
-        List<Integer> localMinima = findLocalMinima(coordinates, 5);
-        localMinima.add(0, 0);
-        localMinima.add(image.cols());
-
-        return localMinima;
+        return locations;
     }
 
     /**
@@ -195,16 +282,18 @@ public abstract class AbstractBookDetector implements BookDetector {
      * @param coordinates list of coordinate points
      * @param windowSize  size of window
      * @return list of indices of local minima
+     * @see LocalMinima#find(double[], int)
      */
     @NotNull
     static List<Integer> findLocalMinima(List<Point> coordinates, int windowSize) {
-        List<Double> yCoordinates = coordinates.stream().map(a -> a.y).collect(Collectors.toList());
+        double[] values = new double[coordinates.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = coordinates.get(i).y;
+        }
+
         List<Integer> localMinima = new ArrayList<>();
-        for (int i = windowSize; i < coordinates.size() - windowSize; i++) {
-            List<Double> sublist = yCoordinates.subList(i - windowSize, i + windowSize + 1);
-            if (sublist.indexOf(Collections.min(sublist)) == windowSize) {
-                localMinima.add((int) coordinates.get(i).x);
-            }
+        for (int i : LocalMinima.find(values, windowSize)) {
+            localMinima.add((int) coordinates.get(i).x);
         }
         return localMinima;
     }
@@ -226,4 +315,24 @@ public abstract class AbstractBookDetector implements BookDetector {
                 .rows()), new Scalar(0, 255, 0), 6);
         }
     }
+
+    /**
+     * A shelf that has been cropped from an image
+     */
+    protected static final class Shelf {
+        /**
+         * openCV matrix containing the image of the shelf
+         */
+        final Mat image;
+
+        /**
+         * openCV matrix containing a binary image of the text regions of the shelf
+         */
+        final Mat mask;
+
+        Shelf(Mat image, Mat mask) {
+            this.image = image;
+            this.mask = mask;
+        }
+    }
 }
@@ -24,7 +24,9 @@ import java.util.Arrays;
 import java.util.List;
 
 import static java.lang.StrictMath.max;
+import static org.opencv.core.Core.reduce;
 import static org.opencv.imgproc.Imgproc.Canny;
+import static org.opencv.imgproc.Imgproc.GaussianBlur;
 import static org.opencv.imgproc.Imgproc.equalizeHist;
 
 /**
@@ -100,4 +102,28 @@ public class ImageProcessingHelper {
 
         return med;
     }
+
+    /**
+     * Reduce an image to the smoothed profile of its columns
+     * @param img openCV matrix containing a single channel image
+     * @param reduceType type of openCV reduction to apply, either REDUCE_MAX or REDUCE_AVG
+     * @return the reduced value of each column, smoothed with a Gaussian kernel
+     */
+    public static double[] columnProfile(Mat img, int reduceType) {
+        Mat reduced = new Mat();
+        Mat converted = new Mat();
+        try {
+            reduce(img, reduced, 0, reduceType);
+            GaussianBlur(reduced, reduced, new Size(), 3);
+
+            // Copy the whole row at once instead of crossing JNI for every column
+            reduced.convertTo(converted, CvType.CV_64F);
+            double[] profile = new double[img.cols()];
+            converted.get(0, 0, profile);
+            return profile;
+        } finally {
+            reduced.release();
+            converted.release();
+        }
+    }
 }
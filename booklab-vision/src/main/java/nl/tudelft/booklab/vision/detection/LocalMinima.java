@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision.detection.opencv;
+
+import java.util.Arrays;
+
+/**
+ * Helper functions for finding the local minima in a one-dimensional signal, such as the column profile of an image.
+ */
+public final class LocalMinima {
+    private LocalMinima() {}
+
+    /**
+     * Find the local minima in the given signal.
+     *
+     * An index is a local minimum if its value is the smallest value in the window of {@code windowSize} values on
+     * either side of it and no value before it in this window is equally small. Indices closer than
+     * {@code windowSize} to either end of the signal are never reported.
+     *
+     * The minimum of each window is tracked using a monotonic deque, such that the signal is processed in linear time
+     * regardless of the size of the window.
+     *
+     * @param values     the values of the signal
+     * @param windowSize number of values on either side of an index that are compared against it
+     * @return indices of the local minima in ascending order
+     */
+    public static int[] find(double[] values, int windowSize) {
+        if (windowSize < 0) {
+            throw new IllegalArgumentException("The window size must not be negative");
+        }
+
+        int n = values.length;
+        int span = 2 * windowSize + 1;
+        if (n < span) {
+            return new int[0];
+        }
+
+        // Indices of the window whose values are non-decreasing from head to tail
+        int[] deque = new int[n];
+        int head = 0;
+        int tail = 0;
+
+        int[] minima = new int[n - span + 1];
+        int count = 0;
+
+        for (int k = 0; k < n; k++) {
+            double value = values[k];
+            // Equal values are kept, such that the head is the first occurrence of the minimum of the window
+            while (tail > head && values[deque[tail - 1]] > value) {
+                tail--;
+            }
+            deque[tail++] = k;
+
+            int i = k - windowSize;
+            if (i < windowSize) {
+                continue;
+            }
+
+            // Remove the indices that have left the window [i - windowSize, i + windowSize]
+            while (deque[head] < i - windowSize) {
+                head++;
+            }
+
+            if (deque[head] == i) {
+                minima[count++] = i;
+            }
+        }
+
+        return Arrays.copyOf(minima, count);
+    }
+}
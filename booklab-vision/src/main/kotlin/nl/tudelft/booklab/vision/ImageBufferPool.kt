@@ -0,0 +1,271 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision
+
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.imgcodecs.Imgcodecs.CV_LOAD_IMAGE_UNCHANGED
+import org.opencv.imgcodecs.Imgcodecs.imdecode
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * A pool of native buffers into which encoded images are read before they are decoded by OpenCV.
+ *
+ * Instead of reading the whole image onto the heap and copying it into a native matrix afterwards, the image is read
+ * in small chunks directly into a native buffer that is reused between images. This means that the heap usage per
+ * image is limited to the size of a single chunk, regardless of the size of the image.
+ *
+ * Buffers only grow, so a single large image would otherwise pin a large native buffer in the pool for good. The pool
+ * therefore tracks the working size as a moving average of the recently decoded images, and releases a returned
+ * buffer instead of retaining it if its capacity exceeds [trimRatio] times the working size (or initial capacity).
+ *
+ * @property maximumSize The maximum size of an encoded image in bytes.
+ * @property initialCapacity The initial capacity of a newly allocated buffer in bytes.
+ * @property retained The maximum amount of buffers that are kept in the pool.
+ * @property chunkSize The size of the chunks in which the images are read.
+ * @property trimRatio The ratio between the capacity of a returned buffer and the working size above which the buffer
+ * is released instead of retained.
+ */
+class ImageBufferPool(
+    val maximumSize: Int = 32 * 1024 * 1024,
+    val initialCapacity: Int = 4 * 1024 * 1024,
+    val retained: Int = Runtime.getRuntime().availableProcessors(),
+    val chunkSize: Int = 64 * 1024,
+    val trimRatio: Int = 4
+) {
+    init {
+        require(maximumSize > 0) { "The maximum size must be positive" }
+        require(initialCapacity in 1..maximumSize) { "The initial capacity must be between 1 and the maximum size" }
+        require(retained >= 0) { "The amount of retained buffers must not be negative" }
+        require(chunkSize > 0) { "The chunk size must be positive" }
+        require(trimRatio >= 1) { "The trim ratio must be at least one" }
+    }
+
+    /**
+     * The buffers that are available for reuse.
+     */
+    private val buffers = ArrayBlockingQueue<Buffer>(maxOf(1, retained))
+
+    /**
+     * The amount of buffers that have been acquired from the pool.
+     */
+    private val acquired = AtomicLong()
+
+    /**
+     * The amount of buffers that have been allocated by the pool.
+     */
+    private val allocated = AtomicLong()
+
+    /**
+     * The amount of buffers that had to grow in order to fit an image.
+     */
+    private val grown = AtomicLong()
+
+    /**
+     * The amount of images that have been rejected for exceeding the maximum size.
+     */
+    private val rejected = AtomicLong()
+
+    /**
+     * The amount of buffers that have been released for being much larger than the working size.
+     */
+    private val trimmed = AtomicLong()
+
+    /**
+     * The total amount of bytes that have been read into the buffers of the pool.
+     */
+    private val bytes = AtomicLong()
+
+    /**
+     * The moving average of the size of the recently decoded images in bytes.
+     */
+    private val workingSize = AtomicLong(initialCapacity.toLong())
+
+    /**
+     * Read the encoded image from the given [InputStream] and decode it into an OpenCV matrix.
+     *
+     * @param input The input stream to read the encoded image from.
+     * @param estimatedSize The estimated size of the image in bytes (e.g. the `Content-Length` of a request), which is
+     * only used as a hint for the capacity of the buffer.
+     * @param flags The flags to pass to [imdecode].
+     * @return The decoded image.
+     * @throws ImageTooLargeException if the image exceeds the maximum size of the pool.
+     */
+    fun decode(input: InputStream, estimatedSize: Int = initialCapacity, flags: Int = CV_LOAD_IMAGE_UNCHANGED): Mat {
+        if (estimatedSize > maximumSize) {
+            rejected.incrementAndGet()
+            throw ImageTooLargeException(maximumSize)
+        }
+
+        val buffer = acquire()
+        try {
+            val size = buffer.fill(input, estimatedSize)
+            workingSize.updateAndGet { (it * (WINDOW - 1) + size) / WINDOW }
+            return imdecode(buffer.mat.colRange(0, size), flags)
+        } finally {
+            release(buffer)
+        }
+    }
+
+    /**
+     * Take a snapshot of the statistics of this pool.
+     *
+     * @return The statistics of the pool.
+     */
+    val statistics: ImageBufferPoolStatistics
+        get() = ImageBufferPoolStatistics(
+            acquired.get(),
+            allocated.get(),
+            grown.get(),
+            rejected.get(),
+            trimmed.get(),
+            bytes.get(),
+            buffers.size,
+            buffers.sumByLong { it.mat.cols().toLong() }
+        )
+
+    /**
+     * Acquire a buffer from the pool or allocate a new buffer if the pool is empty.
+     */
+    private fun acquire(): Buffer {
+        acquired.incrementAndGet()
+        return buffers.poll() ?: Buffer().also { allocated.incrementAndGet() }
+    }
+
+    /**
+     * Return the given buffer to the pool or release it if the pool is full or the buffer is much larger than the
+     * working size.
+     */
+    private fun release(buffer: Buffer) {
+        val limit = maxOf(workingSize.get(), initialCapacity.toLong()) * trimRatio
+        if (buffer.mat.cols() > limit) {
+            trimmed.incrementAndGet()
+            buffer.mat.release()
+        } else if (retained == 0 || !buffers.offer(buffer)) {
+            buffer.mat.release()
+        }
+    }
+
+    /**
+     * Sum the given selector over the elements of the collection.
+     */
+    private inline fun <T> Iterable<T>.sumByLong(selector: (T) -> Long): Long = fold(0L) { acc, it -> acc + selector(it) }
+
+    /**
+     * A native buffer in the pool.
+     */
+    private inner class Buffer {
+        /**
+         * The native matrix holding the data of the buffer.
+         */
+        var mat = Mat(1, initialCapacity, CvType.CV_8UC1)
+
+        /**
+         * The chunk in which the input is read before it is written to the native buffer.
+         */
+        val chunk = ByteArray(chunkSize)
+
+        /**
+         * Fill this buffer with the contents of the given [InputStream].
+         *
+         * @param input The input stream to read.
+         * @param estimatedSize The estimated size of the input.
+         * @return The amount of bytes that have been read.
+         */
+        fun fill(input: InputStream, estimatedSize: Int): Int {
+            var size = 0
+            ensure(size, estimatedSize)
+
+            while (true) {
+                val read = input.read(chunk)
+                if (read < 0) {
+                    break
+                } else if (size + read > maximumSize) {
+                    rejected.incrementAndGet()
+                    throw ImageTooLargeException(maximumSize)
+                }
+
+                ensure(size, size + read)
+                mat.put(0, size, chunk, 0, read)
+                size += read
+            }
+
+            bytes.addAndGet(size.toLong())
+            return size
+        }
+
+        /**
+         * Ensure that the buffer has at least the given capacity.
+         *
+         * @param size The amount of bytes currently stored in the buffer.
+         * @param capacity The required capacity of the buffer.
+         */
+        private fun ensure(size: Int, capacity: Int) {
+            if (capacity <= mat.cols()) {
+                return
+            }
+
+            grown.incrementAndGet()
+            val next = Mat(1, minOf(maxOf(capacity, mat.cols() * 2), maximumSize), CvType.CV_8UC1)
+            if (size > 0) {
+                mat.colRange(0, size).copyTo(next.colRange(0, size))
+            }
+            mat.release()
+            mat = next
+        }
+    }
+
+    private companion object {
+        /**
+         * The amount of images over which the working size is averaged.
+         */
+        const val WINDOW = 8L
+    }
+}
+
+/**
+ * A snapshot of the statistics of an [ImageBufferPool].
+ *
+ * @property acquired The amount of buffers that have been acquired from the pool.
+ * @property allocated The amount of buffers that have been allocated by the pool.
+ * @property grown The amount of times a buffer had to grow in order to fit an image.
+ * @property rejected The amount of images that have been rejected for exceeding the maximum size.
+ * @property trimmed The amount of buffers that have been released for being much larger than the working size.
+ * @property bytes The total amount of bytes that have been read into the buffers of the pool.
+ * @property available The amount of buffers that are currently available in the pool.
+ * @property capacity The total capacity in bytes of the buffers that are currently available in the pool.
+ */
+data class ImageBufferPoolStatistics(
+    val acquired: Long,
+    val allocated: Long,
+    val grown: Long,
+    val rejected: Long,
+    val trimmed: Long,
+    val bytes: Long,
+    val available: Int,
+    val capacity: Long
+)
+
+/**
+ * An exception thrown when an encoded image exceeds the maximum size that is accepted.
+ *
+ * @property maximumSize The maximum size of an image in bytes.
+ */
+class ImageTooLargeException(val maximumSize: Int) : IOException("The image exceeds the maximum size of $maximumSize bytes")
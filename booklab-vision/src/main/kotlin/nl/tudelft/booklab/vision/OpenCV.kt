@@ -28,3 +28,11 @@ import java.io.InputStream
  */
 fun InputStream.toMat(estimatedSize: Int = DEFAULT_BUFFER_SIZE) =
     imdecode(MatOfByte(*readBytes(estimatedSize)), CV_LOAD_IMAGE_UNCHANGED)
+
+/**
+ * Convert the given [InputStream] to an OpenCV matrix by reading it into a buffer of the given [ImageBufferPool].
+ *
+ * @param pool The pool of buffers to read the input stream into.
+ * @param estimatedSize The estimated size of input stream.
+ */
+fun InputStream.toMat(pool: ImageBufferPool, estimatedSize: Int = pool.initialCapacity) = pool.decode(this, estimatedSize)
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import org.opencv.core.Core
+import org.opencv.core.Mat
+
+/**
+ * Test suite for the [ImageBufferPool] class.
+ */
+internal class ImageBufferPoolTest {
+    /**
+     * The encoded test image.
+     */
+    private val image = ImageBufferPoolTest::class.java.getResourceAsStream("/bookshelf.jpg").use { it.readBytes() }
+
+    @Test
+    fun `decode produces the same image as toMat`() {
+        val pool = ImageBufferPool()
+        val expected = image.inputStream().toMat(image.size)
+        val actual = image.inputStream().toMat(pool, image.size)
+
+        assertEquals(expected.size(), actual.size())
+        assertEquals(0, Core.countNonZero(difference(expected, actual)))
+    }
+
+    @Test
+    fun `decode grows buffer beyond initial capacity`() {
+        val pool = ImageBufferPool(initialCapacity = 1024, chunkSize = 512)
+        val mat = pool.decode(image.inputStream(), estimatedSize = -1)
+
+        assertFalse(mat.empty())
+        assertTrue(pool.statistics.grown > 0)
+        assertEquals(image.size.toLong(), pool.statistics.bytes)
+    }
+
+    @Test
+    fun `decode reuses buffers`() {
+        val pool = ImageBufferPool(retained = 1)
+        pool.decode(image.inputStream())
+        pool.decode(image.inputStream())
+
+        assertEquals(2L, pool.statistics.acquired)
+        assertEquals(1L, pool.statistics.allocated)
+        assertEquals(1, pool.statistics.available)
+    }
+
+    @Test
+    fun `decode releases buffer much larger than working size`() {
+        val pool = ImageBufferPool(initialCapacity = 1024, retained = 1, chunkSize = 512)
+        pool.decode(image.inputStream(), estimatedSize = -1)
+
+        assertEquals(1L, pool.statistics.trimmed)
+        assertEquals(0, pool.statistics.available)
+    }
+
+    @Test
+    fun `decode retains large buffers once they are the working size`() {
+        val pool = ImageBufferPool(initialCapacity = 1024, retained = 1, chunkSize = 512)
+        repeat(10) { pool.decode(image.inputStream(), estimatedSize = -1) }
+
+        assertTrue(pool.statistics.trimmed < 10)
+        assertEquals(1, pool.statistics.available)
+    }
+
+    @Test
+    fun `decode rejects image exceeding the maximum size`() {
+        val pool = ImageBufferPool(maximumSize = 1024, initialCapacity = 512)
+
+        assertThrows<ImageTooLargeException> {
+            pool.decode(image.inputStream(), estimatedSize = 512)
+        }
+        assertEquals(1L, pool.statistics.rejected)
+        assertEquals(1, pool.statistics.available)
+    }
+
+    @Test
+    fun `decode rejects estimated size exceeding the maximum size`() {
+        val pool = ImageBufferPool(maximumSize = 1024, initialCapacity = 512)
+
+        assertThrows<ImageTooLargeException> {
+            pool.decode(image.inputStream(), estimatedSize = image.size)
+        }
+        assertEquals(0L, pool.statistics.acquired)
+    }
+
+    /**
+     * Compute the single-channel absolute difference between the given images.
+     */
+    private fun difference(a: Mat, b: Mat): Mat {
+        val diff = Mat()
+        Core.absdiff(a, b, diff)
+        return diff.reshape(1)
+    }
+
+    companion object {
+        init {
+            nu.pattern.OpenCV.loadShared()
+            System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME)
+        }
+    }
+}
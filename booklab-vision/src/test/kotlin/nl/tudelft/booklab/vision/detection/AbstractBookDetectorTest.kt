@@ -0,0 +1,88 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision.detection.opencv
+
+import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertThrows
+import org.junit.jupiter.api.Test
+import org.opencv.core.CvType
+import org.opencv.core.Mat
+import org.opencv.core.Rect
+import java.util.concurrent.Executor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Function
+
+internal class AbstractBookDetectorTest {
+    private val image = Mat(100, 100, CvType.CV_8UC1)
+    private val shelves = List(16) { AbstractBookDetector.Shelf(Mat(it + 1, 100, CvType.CV_8UC1), Mat()) }
+
+    @Test
+    fun `test parallel shelves are ordered`() {
+        val tasks = AtomicInteger()
+        val executor = Executor { tasks.incrementAndGet(); Thread(it).start() }
+        val detector = TestBookDetector(0, executor)
+        val books = detector.detectShelves(image, shelves) { shelf ->
+            Thread.sleep((16L - shelf.image.rows()) * 2)
+            listOf(Rect(0, 0, 1, shelf.image.rows()), Rect(1, 0, 1, shelf.image.rows()))
+        }
+
+        assertEquals((1..16).flatMap { listOf(it, it) }, books.map { it.height })
+        assertEquals((1..16).flatMap { listOf(0, 1) }, books.map { it.x })
+        assertEquals(16, tasks.get())
+    }
+
+    @Test
+    fun `test parallel shelves propagate failure`() {
+        val detector = TestBookDetector(0, Executor { Thread(it).start() })
+
+        assertThrows(IllegalStateException::class.java) {
+            detector.detectShelves(image, shelves) { shelf ->
+                check(shelf.image.rows() != 8)
+                emptyList()
+            }
+        }
+    }
+
+    @Test
+    fun `test sequential shelves stay on caller`() {
+        val detector = TestBookDetector(Long.MAX_VALUE, Executor { throw AssertionError("Executor was used") })
+        val caller = Thread.currentThread()
+        val books = detector.detectShelves(image, shelves) { shelf ->
+            assertEquals(caller, Thread.currentThread())
+            listOf(Rect(0, 0, 1, shelf.image.rows()))
+        }
+
+        assertEquals((1..16).toList(), books.map { it.height })
+    }
+
+    private class TestBookDetector(
+        parallelThreshold: Long,
+        executor: Executor
+    ) : AbstractBookDetector(parallelThreshold, executor) {
+        override fun detect(mat: Mat): List<Rect> = emptyList()
+
+        fun detectShelves(image: Mat, shelves: List<Shelf>, detector: (Shelf) -> List<Rect>): List<Rect> =
+            detectShelves(image, shelves, Function(detector))
+    }
+
+    companion object {
+        init {
+            nu.pattern.OpenCV.loadShared()
+            System.loadLibrary(org.opencv.core.Core.NATIVE_LIBRARY_NAME)
+        }
+    }
+}
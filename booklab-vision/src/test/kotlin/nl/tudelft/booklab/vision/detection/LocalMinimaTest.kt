@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018 The BookLab Authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package nl.tudelft.booklab.vision.detection.opencv
+
+import org.junit.jupiter.api.Assertions.assertArrayEquals
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.assertThrows
+import java.util.Random
+
+internal class LocalMinimaTest {
+    @Test
+    fun `test minima are found`() {
+        val values = doubleArrayOf(5.0, 4.0, 3.0, 4.0, 5.0, 6.0, 5.0, 1.0, 5.0, 6.0)
+        assertArrayEquals(intArrayOf(2, 7), LocalMinima.find(values, 2))
+    }
+
+    @Test
+    fun `test edges are ignored`() {
+        val values = doubleArrayOf(0.0, 4.0, 3.0, 4.0, 0.0)
+        assertArrayEquals(intArrayOf(), LocalMinima.find(values, 2))
+    }
+
+    @Test
+    fun `test first of equal minima is found`() {
+        val values = doubleArrayOf(5.0, 5.0, 1.0, 1.0, 5.0, 5.0)
+        assertArrayEquals(intArrayOf(2), LocalMinima.find(values, 2))
+    }
+
+    @Test
+    fun `test short signal`() {
+        assertArrayEquals(intArrayOf(), LocalMinima.find(doubleArrayOf(1.0, 0.0), 1))
+    }
+
+    @Test
+    fun `test negative window`() {
+        assertThrows<IllegalArgumentException> { LocalMinima.find(doubleArrayOf(), -1) }
+    }
+
+    @Test
+    fun `test matches naive search`() {
+        val random = Random(42)
+        repeat(1000) {
+            val values = DoubleArray(random.nextInt(100)) { random.nextInt(8).toDouble() }
+            val windowSize = random.nextInt(8)
+            assertArrayEquals(naive(values, windowSize), LocalMinima.find(values, windowSize))
+        }
+    }
+
+    /**
+     * Find the local minima by comparing each index against its whole window.
+     */
+    private fun naive(values: DoubleArray, windowSize: Int): IntArray =
+        (windowSize until values.size - windowSize).filter { i ->
+            val window = values.slice(i - windowSize..i + windowSize)
+            window.indexOf(window.min()) == windowSize
+        }.toIntArray()
+}